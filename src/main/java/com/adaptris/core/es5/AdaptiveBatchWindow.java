@@ -0,0 +1,211 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.util.TimeInterval;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Adjusts the number of documents in each bulk request based on how the cluster is responding.
+ *
+ * <p>
+ * The batch window grows by {@link #getIncrement()} documents each time a full bulk request (i.e. one that reached the current
+ * batch window) completes within {@link #getTargetLatency()} without any rejected items; smaller requests, such as the last
+ * batch of each message, say nothing about whether a bigger batch would be handled as well, so never grow the window. If any items are rejected, or the request takes longer than the
+ * target latency then the window is multiplied by {@link #getDecreaseFactor()}. The window is always kept between
+ * {@link #getMinBatchWindow()} and {@link #getMaxBatchWindow()}. The latency used is the larger of the round trip time and the
+ * time ElasticSearch reports it took to process the request.
+ * </p>
+ *
+ * @config es5-adaptive-batch-window
+ */
+@XStreamAlias("es5-adaptive-batch-window")
+public class AdaptiveBatchWindow {
+
+  private static final int DEFAULT_MIN = 100;
+  private static final int DEFAULT_MAX = 20000;
+  private static final int DEFAULT_INCREMENT = 500;
+  private static final double DEFAULT_DECREASE_FACTOR = 0.5;
+  private static final TimeInterval DEFAULT_TARGET_LATENCY = new TimeInterval(2L, TimeUnit.SECONDS);
+
+  @Min(1)
+  @InputFieldDefault(value = "100")
+  private Integer minBatchWindow;
+  @Min(1)
+  @InputFieldDefault(value = "20000")
+  private Integer maxBatchWindow;
+  @Min(1)
+  @InputFieldDefault(value = "500")
+  private Integer increment;
+  @InputFieldDefault(value = "0.5")
+  private Double decreaseFactor;
+  @Valid
+  private TimeInterval targetLatency;
+
+  private transient Logger log = LoggerFactory.getLogger(this.getClass());
+  private transient int current = -1;
+
+  public AdaptiveBatchWindow() {
+
+  }
+
+  public AdaptiveBatchWindow(Integer min, Integer max) {
+    this();
+    setMinBatchWindow(min);
+    setMaxBatchWindow(max);
+  }
+
+  /**
+   * Reset the current batch window.
+   *
+   * @param initial the initial value, which will be constrained between the min and max values.
+   */
+  public synchronized void reset(int initial) {
+    current = constrain(initial);
+  }
+
+  /**
+   * Get the current batch window.
+   *
+   */
+  public synchronized int current() {
+    if (current < 0) {
+      current = minBatchWindow();
+    }
+    return current;
+  }
+
+  /**
+   * Adjust the batch window based on the outcome of a bulk request.
+   *
+   * @param batchSize the number of items in the request.
+   * @param tookMs how long ElasticSearch reported the request took.
+   * @param roundTripMs the round trip time as measured by the producer.
+   * @param rejected the number of items that were rejected.
+   */
+  public synchronized void update(int batchSize, long tookMs, long roundTripMs, int rejected) {
+    int before = current();
+    if (rejected > 0 || Math.max(tookMs, roundTripMs) > targetLatencyMs()) {
+      current = constrain((int) (before * decreaseFactor()));
+    }
+    else if (batchSize >= before) {
+      current = constrain(before + increment());
+    }
+    if (current != before) {
+      log.debug("Batch window adjusted from {} to {} (size={}, took={}ms, rtt={}ms, rejected={})", before, current, batchSize,
+          tookMs, roundTripMs, rejected);
+    }
+  }
+
+  private int constrain(int i) {
+    return Math.max(minBatchWindow(), Math.min(maxBatchWindow(), i));
+  }
+
+  public Integer getMinBatchWindow() {
+    return minBatchWindow;
+  }
+
+  /**
+   * Set the smallest batch window.
+   *
+   * @param i the minimum, default is 100 if not specified.
+   */
+  public void setMinBatchWindow(Integer i) {
+    this.minBatchWindow = i;
+  }
+
+  int minBatchWindow() {
+    return getMinBatchWindow() != null ? getMinBatchWindow().intValue() : DEFAULT_MIN;
+  }
+
+  public Integer getMaxBatchWindow() {
+    return maxBatchWindow;
+  }
+
+  /**
+   * Set the largest batch window.
+   *
+   * @param i the maximum, default is 20000 if not specified.
+   */
+  public void setMaxBatchWindow(Integer i) {
+    this.maxBatchWindow = i;
+  }
+
+  int maxBatchWindow() {
+    return getMaxBatchWindow() != null ? getMaxBatchWindow().intValue() : DEFAULT_MAX;
+  }
+
+  public Integer getIncrement() {
+    return increment;
+  }
+
+  /**
+   * Set the number of documents to add to the batch window after a successful request.
+   *
+   * @param i the increment, default is 500 if not specified.
+   */
+  public void setIncrement(Integer i) {
+    this.increment = i;
+  }
+
+  int increment() {
+    return getIncrement() != null ? getIncrement().intValue() : DEFAULT_INCREMENT;
+  }
+
+  public Double getDecreaseFactor() {
+    return decreaseFactor;
+  }
+
+  /**
+   * Set the factor applied to the batch window when the cluster is struggling.
+   *
+   * @param d the decrease factor, default is 0.5 if not specified.
+   */
+  public void setDecreaseFactor(Double d) {
+    this.decreaseFactor = d;
+  }
+
+  double decreaseFactor() {
+    return getDecreaseFactor() != null ? getDecreaseFactor().doubleValue() : DEFAULT_DECREASE_FACTOR;
+  }
+
+  public TimeInterval getTargetLatency() {
+    return targetLatency;
+  }
+
+  /**
+   * Set the latency above which the batch window will be reduced.
+   *
+   * @param t the target latency, default is 2 seconds if not specified.
+   */
+  public void setTargetLatency(TimeInterval t) {
+    this.targetLatency = t;
+  }
+
+  long targetLatencyMs() {
+    return getTargetLatency() != null ? getTargetLatency().toMilliseconds() : DEFAULT_TARGET_LATENCY.toMilliseconds();
+  }
+}
@@ -0,0 +1,416 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.validation.Valid;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+
+import com.adaptris.annotation.AdapterComponent;
+import com.adaptris.annotation.AdvancedConfig;
+import com.adaptris.annotation.ComponentProfile;
+import com.adaptris.annotation.DisplayOrder;
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.CoreException;
+import com.adaptris.core.ProduceDestination;
+import com.adaptris.core.ProduceException;
+import com.adaptris.core.util.CloseableIterable;
+import com.adaptris.core.util.ExceptionHelper;
+import com.adaptris.util.TimeInterval;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Index/Delete/Update documents to ElasticSearch aggregating documents from multiple messages into a single bulk request.
+ *
+ * <p>
+ * Where {@link BulkOperation} sends at least one bulk request for each message, this collects documents from all the messages
+ * that are being produced concurrently (e.g. from a {@code PoolingWorkflow}) into a shared batch. The batch is sent when it
+ * contains {@link #setBatchWindow(Integer)} documents, when its estimated size reaches {@link #setBatchSizeBytes(Long)}, or when
+ * the first document in the batch has been waiting for {@link #setLingerTime(TimeInterval)}; whichever happens first.
+ * </p>
+ * <p>
+ * Each message is only considered produced once all of the bulk requests that contain its documents have completed; if any of
+ * its documents failed, then only that message fails. Rejected items are retried according to the configured
+ * {@link BulkRetryPolicy} in the same way as {@link BulkOperation}.
+ * </p>
+ * <p>
+ * Since each message waits for its batch to be sent, there is little benefit in using this with a single threaded workflow.
+ * </p>
+ *
+ * @config es5-aggregating-bulk-operation
+ *
+ */
+@XStreamAlias("es5-aggregating-bulk-operation")
+@AdapterComponent
+@ComponentProfile(summary = "Aggregate documents from multiple messages into bulk requests to an ElasticSearch 5.x instance",
+    tag = "producer,elastic,bulk,batch")
+@DisplayOrder(order =
+{
+    "batchWindow", "batchSizeBytes", "lingerTime", "adaptiveBatchWindow", "documentBuilder", "action", "refreshPolicy", "concurrentRequests",
+    "retryPolicy", "failOnItemFailure", "resultReport", "changeDetection", "timeout"
+})
+public class AggregatingBulkOperation extends BulkOperation {
+
+  private static final TimeInterval DEFAULT_LINGER_TIME = new TimeInterval(50L, TimeUnit.MILLISECONDS);
+
+  @AdvancedConfig
+  @Valid
+  private TimeInterval lingerTime;
+
+  private transient final Object lock = new Object();
+  private transient PendingBatch currentBatch;
+  private transient ScheduledExecutorService scheduler;
+  private transient Semaphore inFlight;
+  // Batches that are ready to send, but are waiting for an in-flight request to complete.
+  private transient final Deque<PendingBatch> waiting = new ArrayDeque<>();
+
+  public AggregatingBulkOperation() {
+    super();
+  }
+
+  public AggregatingBulkOperation(ProduceDestination dest, ElasticDocumentBuilder b) {
+    super(dest, b);
+  }
+
+  @Override
+  public void start() throws CoreException {
+    super.start();
+    inFlight = new Semaphore(Math.max(1, concurrentRequests()));
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @Override
+  public void stop() {
+    PendingBatch remaining = null;
+    synchronized (lock) {
+      remaining = currentBatch;
+      currentBatch = null;
+    }
+    if (remaining != null) {
+      flush(remaining, true);
+    }
+    if (scheduler != null) {
+      scheduler.shutdown();
+    }
+    super.stop();
+  }
+
+  @Override
+  protected AdaptrisMessage doRequest(AdaptrisMessage msg, ProduceDestination destination, long timeout) throws ProduceException {
+    Set<PendingBatch> batches = new LinkedHashSet<>();
+    Deadline deadline = Deadline.after(timeout);
+    try (BulkResultReport.Writer results = openReport(msg)) {
+      Ticket ticket = new Ticket(results);
+      final String index = destination.getDestination(msg);
+      beginBulkLoad(index);
+      try {
+        try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(getDocumentBuilder().build(msg))) {
+          for (DocumentWrapper doc : docs) {
+            DocumentAction action = actionFor(msg, doc);
+            if (!unchanged(index, action, doc)) {
+              batches.add(append(index, action, doc, ticket));
+            }
+          }
+        }
+        for (PendingBatch batch : batches) {
+          batch.await(deadline);
+        }
+      }
+      finally {
+        endBulkLoad(index);
+      }
+      ticket.check();
+      if (results != null) {
+        results.finish(msg);
+      }
+      log.trace("Produced a total of {} documents in {} batches", ticket.documents, batches.size());
+    }
+    catch (Exception e) {
+      throw ExceptionHelper.wrapProduceException(e);
+    }
+    return msg;
+  }
+
+  private PendingBatch append(String index, DocumentAction action, DocumentWrapper doc, Ticket ticket) throws Exception {
+    PendingBatch batch = null;
+    boolean full = false;
+    // Not while holding the lock, it may wait for other batches to complete.
+    reserve(action, doc);
+    synchronized (lock) {
+      if (currentBatch == null) {
+        currentBatch = new PendingBatch(newBulkRequest());
+        final PendingBatch lingering = currentBatch;
+        scheduler.schedule(() -> lingerExpired(lingering), lingerTimeMs(), TimeUnit.MILLISECONDS);
+      }
+      batch = currentBatch;
+      addReserved(batch.request, index, action, doc);
+      batch.owners.add(ticket);
+      ticket.documents++;
+      if (batchFull(batch.owners.size(), batch.request)) {
+        currentBatch = null;
+        full = true;
+      }
+    }
+    if (full) {
+      // Waiting for a permit here is what stops producers getting too far ahead of the cluster.
+      flush(batch, true);
+    }
+    return batch;
+  }
+
+  private void lingerExpired(PendingBatch batch) {
+    synchronized (lock) {
+      if (currentBatch != batch) {
+        // Already sent because it was full.
+        return;
+      }
+      currentBatch = null;
+    }
+    // Never block the scheduler, retries are scheduled on it and they're what releases permits.
+    flush(batch, false);
+  }
+
+  private void flush(PendingBatch batch, boolean block) {
+    if (getSpillBuffer() != null) {
+      try {
+        getSpillBuffer().append(batch.request.request());
+        batch.complete();
+      }
+      catch (Exception e) {
+        batch.failAll(e);
+      }
+      return;
+    }
+    if (block) {
+      try {
+        inFlight.acquire();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        batch.failAll(e);
+        return;
+      }
+    }
+    else if (!tryAcquire(batch)) {
+      // Sent by releasePermit() instead.
+      return;
+    }
+    send(batch, batch.request, batch.owners, 0);
+  }
+
+  private boolean tryAcquire(PendingBatch batch) {
+    synchronized (waiting) {
+      if (inFlight.tryAcquire()) {
+        return true;
+      }
+      waiting.add(batch);
+      return false;
+    }
+  }
+
+  // Hand the permit straight to the next waiting batch if there is one.
+  private void releasePermit() {
+    PendingBatch next = null;
+    synchronized (waiting) {
+      next = waiting.poll();
+      if (next == null) {
+        inFlight.release();
+      }
+    }
+    if (next != null) {
+      send(next, next.request, next.owners, 0);
+    }
+  }
+
+  private void send(PendingBatch batch, BulkRequestBuilder request, List<Ticket> owners, int attempt) {
+    final long started = System.nanoTime();
+    try {
+      request.execute(new ActionListener<BulkResponse>() {
+        @Override
+        public void onResponse(BulkResponse response) {
+          try {
+            log.trace("Producing batch of {} requests took {}", request.numberOfActions(), response.getTook().toString());
+            List<Ticket> retryOwners = new ArrayList<>();
+            BulkRequestBuilder retry = retryFailures(request, response, owners, retryOwners, attempt);
+            adapt(request.numberOfActions(), response, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+                retryOwners.size());
+            if (retry != null) {
+              scheduler.schedule(() -> send(batch, retry, retryOwners, attempt + 1), retryPolicy().backoffMillis(attempt),
+                  TimeUnit.MILLISECONDS);
+              return;
+            }
+            batch.complete();
+            releasePermit();
+          }
+          catch (Exception e) {
+            onFailure(e);
+          }
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+          owners.forEach(o -> o.fail(e.getMessage()));
+          batch.complete();
+          releasePermit();
+        }
+      });
+    }
+    catch (RuntimeException e) {
+      owners.forEach(o -> o.fail(e.getMessage()));
+      batch.complete();
+      releasePermit();
+    }
+  }
+
+  private BulkRequestBuilder retryFailures(BulkRequestBuilder request, BulkResponse response, List<Ticket> owners,
+      List<Ticket> retryOwners, int attempt) {
+    BulkRetryPolicy policy = retryPolicy();
+    List<?> originals = request.request().requests();
+    BulkRequestBuilder retry = null;
+    for (BulkItemResponse item : response.getItems()) {
+      Ticket owner = owners.get(item.getItemId());
+      if (!item.isFailed()) {
+        owner.record(item);
+        written(originals.get(item.getItemId()), item);
+        continue;
+      }
+      if (policy.isRetryable(item)) {
+        if (attempt < policy.maxRetries()) {
+          retry = retry != null ? retry : newBulkRequest();
+          copyRequest(retry, originals.get(item.getItemId()));
+          retryOwners.add(owner);
+        }
+        else {
+          owner.record(item);
+          written(originals.get(item.getItemId()), item);
+          owner.fail("still rejected after " + attempt + " retries : " + item.getFailureMessage());
+        }
+      }
+      else {
+        owner.record(item);
+        written(originals.get(item.getItemId()), item);
+        log.warn("[{}] [{}] failed permanently: {}", item.getOpType(), item.getId(), item.getFailureMessage());
+        if (failOnItemFailure()) {
+          owner.fail(item.getFailureMessage());
+        }
+      }
+    }
+    return retry;
+  }
+
+  public TimeInterval getLingerTime() {
+    return lingerTime;
+  }
+
+  /**
+   * Set the maximum amount of time a document waits for the batch to fill up before it is sent.
+   *
+   * @param t the linger time; default is 50ms if not specified.
+   */
+  public void setLingerTime(TimeInterval t) {
+    this.lingerTime = t;
+  }
+
+  long lingerTimeMs() {
+    return getLingerTime() != null ? getLingerTime().toMilliseconds() : DEFAULT_LINGER_TIME.toMilliseconds();
+  }
+
+  // A batch of documents shared between messages.
+  private class PendingBatch {
+    private final BulkRequestBuilder request;
+    // The message that owns each item in the request.
+    private final List<Ticket> owners = new ArrayList<>();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+
+    PendingBatch(BulkRequestBuilder request) {
+      this.request = request;
+    }
+
+    void complete() {
+      // Only release the memory budget once, even if it's failed from more than one place.
+      if (completed.compareAndSet(false, true)) {
+        release(request);
+        done.countDown();
+      }
+    }
+
+    void failAll(Exception e) {
+      owners.forEach(o -> o.fail(e.getMessage()));
+      complete();
+    }
+
+    void await(Deadline deadline) throws InterruptedException, ProduceException {
+      if (!done.await(Math.max(0, deadline.remainingMs()), TimeUnit.MILLISECONDS)) {
+        throw deadline.timedOut();
+      }
+    }
+  }
+
+  // Tracks the failures for a single message.
+  private static class Ticket {
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+    private final BulkResultReport.Writer results;
+    private long documents = 0;
+
+    Ticket(BulkResultReport.Writer results) {
+      this.results = results;
+    }
+
+    void fail(String reason) {
+      failures.add(reason);
+    }
+
+    void record(BulkItemResponse item) {
+      if (results == null) {
+        return;
+      }
+      try {
+        results.record(item);
+      }
+      catch (IOException e) {
+        fail(e.getMessage());
+      }
+    }
+
+    void check() throws ProduceException {
+      synchronized (failures) {
+        if (!failures.isEmpty()) {
+          throw new ProduceException(failures.size() + " documents failed : " + failures.get(0));
+        }
+      }
+    }
+  }
+}
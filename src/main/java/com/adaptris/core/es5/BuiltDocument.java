@@ -0,0 +1,37 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.adaptris.core.es5;
+
+import java.util.concurrent.Callable;
+
+/**
+ * A task from {@link StagedDocumentBuilder#buildTasks(com.adaptris.core.AdaptrisMessage)} for a document that was built while
+ * the record was being read; {@link ParallelDocumentBuilder} returns it directly rather than handing it to a worker thread.
+ *
+ */
+final class BuiltDocument implements Callable<DocumentWrapper> {
+
+  private final DocumentWrapper doc;
+
+  BuiltDocument(DocumentWrapper doc) {
+    this.doc = doc;
+  }
+
+  @Override
+  public DocumentWrapper call() {
+    return doc;
+  }
+}
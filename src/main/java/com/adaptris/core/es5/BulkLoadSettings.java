@@ -0,0 +1,293 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.util.TimeInterval;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Tunes the index settings for the duration of a large bulk load.
+ *
+ * <p>
+ * Before the first document is sent to an index, the current {@code index.refresh_interval} and
+ * {@code index.number_of_replicas} are recorded, and then set to {@code -1} and {@code 0} respectively. If the index is an alias,
+ * then the settings of each index it refers to are recorded and changed; an index that does not exist yet is not tuned until the
+ * first message after it has been created. When the load has finished (i.e. no messages have been produced to that index for
+ * {@link #setIdleTimeout(TimeInterval)}), the original settings are restored and optionally the index is force-merged. If the
+ * producer is stopped or closed while a load is in progress, then the original settings are restored at that point.
+ * </p>
+ * <p>
+ * Because the index will not be refreshed during the load, the refresh policy of the producer is not applied to each bulk
+ * request; instead the index is refreshed once at the end of the load.
+ * </p>
+ *
+ * @config es5-bulk-load-settings
+ */
+@XStreamAlias("es5-bulk-load-settings")
+public class BulkLoadSettings {
+
+  static final String REFRESH_INTERVAL = "index.refresh_interval";
+  static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+
+  private static final TimeInterval DEFAULT_IDLE_TIMEOUT = new TimeInterval(30L, TimeUnit.SECONDS);
+
+  @InputFieldDefault(value = "false")
+  private Boolean forceMerge;
+  @Min(1)
+  @InputFieldDefault(value = "1")
+  private Integer maxNumSegments;
+  @Valid
+  private TimeInterval idleTimeout;
+
+  private transient Logger log = LoggerFactory.getLogger(this.getClass());
+  private transient Map<String, TunedIndex> tuned = new HashMap<>();
+  private transient ScheduledExecutorService scheduler;
+
+  public BulkLoadSettings() {
+
+  }
+
+  /**
+   * Start loading into the index; tuning the settings if a load isn't already in progress.
+   *
+   */
+  public synchronized void begin(Client client, String index) {
+    TunedIndex t = tuned.get(index);
+    if (t == null) {
+      GetSettingsResponse current = client.admin().indices().prepareGetSettings(index)
+          .setIndicesOptions(IndicesOptions.lenientExpandOpen()).setNames(REFRESH_INTERVAL, NUMBER_OF_REPLICAS).get();
+      // Keyed by the concrete index, so that aliases are resolved.
+      t = new TunedIndex();
+      for (Iterator<String> i = current.getIndexToSettings().keysIt(); i.hasNext();) {
+        String concrete = i.next();
+        t.originals.put(concrete, original(current.getSetting(concrete, REFRESH_INTERVAL),
+            current.getSetting(concrete, NUMBER_OF_REPLICAS)));
+      }
+      if (t.originals.isEmpty()) {
+        // Doesn't exist yet (it'll be created by this load), so there's nothing to tune until the next message.
+        log.trace("[{}] does not exist, not tuning for bulk load", index);
+        return;
+      }
+      log.trace("Disabling refresh and replicas on {} for bulk load", t.originals.keySet());
+      try {
+        client.admin().indices().prepareUpdateSettings(t.concreteIndices())
+            .setSettings(Settings.builder().put(REFRESH_INTERVAL, "-1").put(NUMBER_OF_REPLICAS, 0)).get();
+      }
+      catch (RuntimeException e) {
+        // It may have been partially applied.
+        restore(client, index, t);
+        throw e;
+      }
+      tuned.put(index, t);
+    }
+    t.inProgress++;
+    t.generation++;
+  }
+
+  /**
+   * Finish loading into the index; restoring the settings if there are no more concurrent loads once the idle timeout has
+   * passed.
+   *
+   * @param refresh whether to explicitly refresh the index after restoring the settings.
+   */
+  public synchronized void end(Client client, String index, boolean refresh) {
+    TunedIndex t = tuned.get(index);
+    if (t == null) {
+      return;
+    }
+    t.inProgress = Math.max(0, t.inProgress - 1);
+    t.refresh |= refresh;
+    if (t.inProgress == 0) {
+      if (idleTimeoutMs() <= 0) {
+        restoreAndOptimize(client, index, t);
+        return;
+      }
+      final long generation = t.generation;
+      scheduler().schedule(() -> restoreIfIdle(client, index, generation), idleTimeoutMs(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private synchronized void restoreIfIdle(Client client, String index, long generation) {
+    TunedIndex t = tuned.get(index);
+    // Another load has started since, it'll schedule its own.
+    if (t != null && t.inProgress == 0 && t.generation == generation) {
+      restoreAndOptimize(client, index, t);
+    }
+  }
+
+  /**
+   * Restore the settings of every index that is still tuned.
+   *
+   */
+  public synchronized void restoreAll(Client client) {
+    for (Map.Entry<String, TunedIndex> e : new HashMap<>(tuned).entrySet()) {
+      restore(client, e.getKey(), e.getValue());
+    }
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  private ScheduledExecutorService scheduler() {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+    return scheduler;
+  }
+
+  private void restoreAndOptimize(Client client, String index, TunedIndex t) {
+    if (restore(client, index, t)) {
+      optimize(client, index, t.refresh);
+    }
+  }
+
+  private boolean restore(Client client, String index, TunedIndex t) {
+    try {
+      for (Map.Entry<String, Settings> e : t.originals.entrySet()) {
+        log.trace("Restoring {} on [{}]", e.getValue().getAsMap(), e.getKey());
+        client.admin().indices().prepareUpdateSettings(e.getKey()).setSettings(e.getValue()).get();
+      }
+      tuned.remove(index);
+      return true;
+    }
+    catch (RuntimeException e) {
+      log.warn("Failed to restore settings on [{}], will try again on stop/close", index, e);
+    }
+    return false;
+  }
+
+  private void optimize(Client client, String index, boolean refresh) {
+    try {
+      if (refresh) {
+        client.admin().indices().prepareRefresh(index).get();
+      }
+      if (forceMerge()) {
+        log.trace("Force merging [{}] to {} segments", index, maxNumSegments());
+        client.admin().indices().prepareForceMerge(index).setMaxNumSegments(maxNumSegments()).get();
+      }
+    }
+    catch (RuntimeException e) {
+      log.warn("Failed to refresh/force-merge [{}]", index, e);
+    }
+  }
+
+  public Boolean getForceMerge() {
+    return forceMerge;
+  }
+
+  /**
+   * Whether or not to force-merge the index after the load has completed.
+   *
+   * @param b true to force-merge, default is false if not specified.
+   */
+  public void setForceMerge(Boolean b) {
+    this.forceMerge = b;
+  }
+
+  boolean forceMerge() {
+    return BooleanUtils.toBooleanDefaultIfNull(getForceMerge(), false);
+  }
+
+  public Integer getMaxNumSegments() {
+    return maxNumSegments;
+  }
+
+  /**
+   * Set the number of segments to force-merge down to.
+   *
+   * @param i the number of segments, default is 1 if not specified.
+   */
+  public void setMaxNumSegments(Integer i) {
+    this.maxNumSegments = i;
+  }
+
+  int maxNumSegments() {
+    return getMaxNumSegments() != null ? getMaxNumSegments().intValue() : 1;
+  }
+
+  public TimeInterval getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Set how long an index must be idle before the load is considered finished.
+   * <p>
+   * This stops the settings being changed back and forth when a load is split across many messages.
+   * </p>
+   *
+   * @param t the idle timeout; default is 30 seconds if not specified. A timeout of 0 restores the settings as soon as there are
+   *          no messages being produced to the index.
+   */
+  public void setIdleTimeout(TimeInterval t) {
+    this.idleTimeout = t;
+  }
+
+  long idleTimeoutMs() {
+    return getIdleTimeout() != null ? getIdleTimeout().toMilliseconds() : DEFAULT_IDLE_TIMEOUT.toMilliseconds();
+  }
+
+  // If it wasn't explicitly set, then reset it to the default.
+  private static Settings original(String refreshInterval, String replicas) {
+    Settings.Builder builder = Settings.builder();
+    if (refreshInterval != null) {
+      builder.put(REFRESH_INTERVAL, refreshInterval);
+    }
+    else {
+      builder.putNull(REFRESH_INTERVAL);
+    }
+    if (replicas != null) {
+      builder.put(NUMBER_OF_REPLICAS, replicas);
+    }
+    else {
+      builder.putNull(NUMBER_OF_REPLICAS);
+    }
+    return builder.build();
+  }
+
+  private static class TunedIndex {
+    // The original settings of each concrete index.
+    private final Map<String, Settings> originals = new LinkedHashMap<>();
+    private int inProgress = 0;
+    private long generation = 0;
+    private boolean refresh = false;
+
+    String[] concreteIndices() {
+      return originals.keySet().toArray(new String[originals.size()]);
+    }
+  }
+}
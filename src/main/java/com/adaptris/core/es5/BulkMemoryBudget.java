@@ -0,0 +1,181 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+
+import org.apache.commons.lang3.BooleanUtils;
+
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.core.ProduceException;
+import com.adaptris.util.TimeInterval;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Limits the amount of document data that can be pending in bulk requests across all the producers that share an
+ * {@link ElasticSearchConnection}.
+ *
+ * <p>
+ * Before a document is added to a bulk request (or to the batch of documents waiting to be coalesced), the producer reserves the
+ * estimated size of the document from the budget; the reservation is released once the bulk request has completed. If there isn't enough left in the budget, then the producer will
+ * first send any partial batches that it holds, and then either wait for up to {@link #getMaxWait()} for other producers to release
+ * their reservations or fail immediately if {@link #getBlockWhenExhausted()} is false. A single document that is larger than the
+ * whole budget is allowed if nothing else is pending.
+ * </p>
+ *
+ * @config es5-bulk-memory-budget
+ */
+@XStreamAlias("es5-bulk-memory-budget")
+public class BulkMemoryBudget {
+
+  private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+  private static final TimeInterval DEFAULT_MAX_WAIT = new TimeInterval(2L, TimeUnit.MINUTES);
+
+  @Min(1)
+  @InputFieldDefault(value = "268435456")
+  private Long maxBytes;
+  @InputFieldDefault(value = "true")
+  private Boolean blockWhenExhausted;
+  @Valid
+  private TimeInterval maxWait;
+
+  private transient long used = 0;
+
+  public BulkMemoryBudget() {
+
+  }
+
+  public BulkMemoryBudget(Long max) {
+    this();
+    setMaxBytes(max);
+  }
+
+  /**
+   * Reserve from the budget if it can be done immediately.
+   *
+   * @return true if the bytes were reserved.
+   */
+  public synchronized boolean tryReserve(long bytes) {
+    if (used == 0 || used + bytes <= maxBytes()) {
+      used += bytes;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Reserve from the budget, waiting if configured to do so.
+   *
+   * @throws ProduceException if the budget is exhausted and couldn't be reserved.
+   */
+  public synchronized void reserve(long bytes) throws ProduceException, InterruptedException {
+    if (tryReserve(bytes)) {
+      return;
+    }
+    if (!blockWhenExhausted()) {
+      throw new ProduceException("Bulk memory budget exhausted; " + used + " of " + maxBytes() + " bytes in use");
+    }
+    long deadline = System.currentTimeMillis() + maxWaitMs();
+    while (!tryReserve(bytes)) {
+      long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0) {
+        throw new ProduceException("Timed out waiting for bulk memory budget; " + used + " of " + maxBytes() + " bytes in use");
+      }
+      wait(wait);
+    }
+  }
+
+  /**
+   * Release a reservation.
+   *
+   */
+  public synchronized void release(long bytes) {
+    used = Math.max(0, used - bytes);
+    notifyAll();
+  }
+
+  /**
+   * Correct a reservation once the actual size is known.
+   *
+   */
+  synchronized void adjust(long delta) {
+    used = Math.max(0, used + delta);
+    notifyAll();
+  }
+
+  /**
+   * The number of bytes currently reserved.
+   *
+   */
+  public synchronized long usedBytes() {
+    return used;
+  }
+
+  public Long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Set the size of the budget.
+   *
+   * @param l the budget in bytes, default is 256Mb if not specified.
+   */
+  public void setMaxBytes(Long l) {
+    this.maxBytes = l;
+  }
+
+  long maxBytes() {
+    return getMaxBytes() != null ? getMaxBytes().longValue() : DEFAULT_MAX_BYTES;
+  }
+
+  public Boolean getBlockWhenExhausted() {
+    return blockWhenExhausted;
+  }
+
+  /**
+   * Whether to wait when the budget has been used up, or fail immediately.
+   *
+   * @param b true to wait, default is true if not specified.
+   */
+  public void setBlockWhenExhausted(Boolean b) {
+    this.blockWhenExhausted = b;
+  }
+
+  boolean blockWhenExhausted() {
+    return BooleanUtils.toBooleanDefaultIfNull(getBlockWhenExhausted(), true);
+  }
+
+  public TimeInterval getMaxWait() {
+    return maxWait;
+  }
+
+  /**
+   * Set how long to wait for the budget before failing.
+   *
+   * @param t the max wait, default is 2 minutes if not specified.
+   */
+  public void setMaxWait(TimeInterval t) {
+    this.maxWait = t;
+  }
+
+  long maxWaitMs() {
+    return getMaxWait() != null ? getMaxWait().toMilliseconds() : DEFAULT_MAX_WAIT.toMilliseconds();
+  }
+}
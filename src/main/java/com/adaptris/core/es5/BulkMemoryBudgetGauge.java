@@ -0,0 +1,70 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.adaptris.core.es5;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes the usage of a {@link BulkMemoryBudget} via JMX as
+ * {@code com.adaptris:type=ElasticSearchBulkMemoryBudget,id=<connection unique-id>}.
+ *
+ */
+class BulkMemoryBudgetGauge implements BulkMemoryBudgetGaugeMBean {
+
+  private static final String OBJECT_NAME_PREFIX = "com.adaptris:type=ElasticSearchBulkMemoryBudget,id=";
+
+  private final BulkMemoryBudget budget;
+  private final ObjectName name;
+
+  BulkMemoryBudgetGauge(String id, BulkMemoryBudget budget) throws JMException {
+    this.budget = budget;
+    name = ObjectName.getInstance(OBJECT_NAME_PREFIX + ObjectName.quote(id));
+  }
+
+  @Override
+  public long getPendingBulkBytes() {
+    return budget.usedBytes();
+  }
+
+  @Override
+  public long getMaxBytes() {
+    return budget.maxBytes();
+  }
+
+  ObjectName objectName() {
+    return name;
+  }
+
+  void register() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    // Replace anything left behind by a connection with the same id that wasn't closed.
+    if (server.isRegistered(name)) {
+      server.unregisterMBean(name);
+    }
+    server.registerMBean(this, name);
+  }
+
+  void unregister() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    if (server.isRegistered(name)) {
+      server.unregisterMBean(name);
+    }
+  }
+}
@@ -0,0 +1,35 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.adaptris.core.es5;
+
+/**
+ * Management interface that reports the usage of the {@link BulkMemoryBudget} configured on an {@link ElasticSearchConnection}.
+ *
+ */
+public interface BulkMemoryBudgetGaugeMBean {
+
+  /**
+   * The number of bytes currently reserved by bulk requests using the connection.
+   *
+   */
+  long getPendingBulkBytes();
+
+  /**
+   * The size of the budget in bytes.
+   *
+   */
+  long getMaxBytes();
+}
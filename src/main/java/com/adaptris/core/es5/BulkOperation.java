@@ -16,22 +16,44 @@
 
 package com.adaptris.core.es5;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.validation.Valid;
 import javax.validation.constraints.Min;
 
+import org.apache.commons.lang3.BooleanUtils;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 
 import com.adaptris.annotation.AdapterComponent;
+import com.adaptris.annotation.AdvancedConfig;
 import com.adaptris.annotation.ComponentProfile;
 import com.adaptris.annotation.DisplayOrder;
 import com.adaptris.annotation.InputFieldDefault;
 import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.CoreException;
 import com.adaptris.core.ProduceDestination;
 import com.adaptris.core.ProduceException;
+import com.adaptris.core.es5.InFlightBulkRequests.Retry;
 import com.adaptris.core.es5.actions.ActionExtractor;
 import com.adaptris.core.util.CloseableIterable;
 import com.adaptris.core.util.ExceptionHelper;
+import com.adaptris.util.TimeInterval;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
 /**
@@ -48,6 +70,56 @@ import com.thoughtworks.xstream.annotations.XStreamAlias;
  * that the document generated contains all the data required, not just a subset. If in doubt; stick to a normal
  * {@link DocumentAction#UPDATE} which will throw a {@code DocumentMissingException} failing the messages.
  * </p>
+ * <p>
+ * A batch is sent when it contains {@link #setBatchWindow(Integer)} documents (or the current window as determined by
+ * {@link AdaptiveBatchWindow} if configured) or when the estimated size of the bulk request
+ * reaches {@link #setBatchSizeBytes(Long)}, whichever happens first.
+ * </p>
+ * <p>
+ * If {@link #setShardAwareBatching(Boolean)} is true, then the routing table for the index is fetched from the cluster state (once,
+ * when first used) and the target shard for each document is calculated locally. Documents are then batched according to the
+ * node that holds their primary shard, so that each bulk request only needs to be forwarded to a single node. The
+ * {@code TransportClient} still chooses which node coordinates each request; but the coordinating node no longer needs to split
+ * each bulk request across the whole cluster. Note that each node gets its own batch window.
+ * </p>
+ * <p>
+ * If {@link #setCoalesce(Boolean)} is true, then multiple operations on the same document within a batch are merged into a single
+ * operation before the batch is sent (e.g. an index followed by an update becomes a single index of the merged document); the
+ * batch window then applies to the number of operations after merging. This has no effect on
+ * {@link AggregatingBulkOperation}.
+ * </p>
+ * <p>
+ * For large initial loads, configure {@link BulkLoadSettings} to disable refreshes and replicas on the index for the duration of
+ * the load.
+ * </p>
+ * <p>
+ * If a {@link SpillBuffer} is configured, then each batch is written to a local write-ahead log instead of being sent directly;
+ * the message is considered produced once the batch is on disk, and the batches are sent to the cluster in the background.
+ * </p>
+ * <p>
+ * The timeout passed to {@link #request(AdaptrisMessage, ProduceDestination, long)} (or {@link #setTimeout(TimeInterval)} if
+ * there isn't one) is the deadline for producing the whole message; each bulk request is given the time remaining as its timeout,
+ * and any requests still outstanding when the deadline passes are abandoned and the message fails.
+ * </p>
+ * <p>
+ * Each item in the bulk response is inspected individually. Items that were rejected because the cluster is overloaded
+ * ({@code 429 TOO_MANY_REQUESTS}) are retried on their own according to the configured {@link BulkRetryPolicy}; if they are still
+ * rejected once the retries are exhausted the message fails. Items that failed for any other reason (e.g. mapping errors) are
+ * logged, and will only fail the message if {@link #setFailOnItemFailure(Boolean)} is true (the default).
+ * </p>
+ * <p>
+ * Configure a {@link BulkResultReport} to get the outcome of each individual document as newline delimited JSON.
+ * </p>
+ * <p>
+ * Where most documents are resent without changes (e.g. periodic full snapshots), configure a {@link ChangeDetectionCache} to
+ * skip documents that are identical to the last version that was successfully written.
+ * </p>
+ * <p>
+ * By default each batch is sent synchronously, and the next batch is only built once the previous batch has completed. If
+ * {@link #setConcurrentRequests(Integer)} is greater than 0, then batches are sent asynchronously while the next batch is being
+ * built; up to the specified number of batches may be outstanding at any one time. All outstanding batches will be complete
+ * before the message is considered produced.
+ * </p>
  * 
  * @author lchan
  * @config es5-bulk-operation
@@ -58,16 +130,63 @@ import com.thoughtworks.xstream.annotations.XStreamAlias;
 @ComponentProfile(summary = "Use the bulk API to interact with an ElasticSearch 5.x instance", tag = "producer,elastic,bulk,batch")
 @DisplayOrder(order =
 {
-    "batchWindow", "documentBuilder", "action", "refreshPolicy"
+    "batchWindow", "documentBuilder", "action", "refreshPolicy", "batchSizeBytes", "adaptiveBatchWindow", "concurrentRequests", "shardAwareBatching", "coalesce", "bulkLoadSettings",
+    "spillBuffer", "retryPolicy", "failOnItemFailure", "resultReport", "changeDetection", "timeout"
 })
 public class BulkOperation extends SingleOperation {
 
   private static final int DEFAULT_BATCH_WINDOW = 10000;
+  private static final BulkRetryPolicy NO_RETRIES = new BulkRetryPolicy(0);
+  private static final long REQUEST_OVERHEAD = 50;
 
   @Min(0)
   @InputFieldDefault(value = "10000")
   private Integer batchWindow;
 
+  @AdvancedConfig
+  @Min(0)
+  @InputFieldDefault(value = "0")
+  private Long batchSizeBytes;
+
+  @AdvancedConfig
+  @Valid
+  private AdaptiveBatchWindow adaptiveBatchWindow;
+
+  @AdvancedConfig
+  @InputFieldDefault(value = "false")
+  private Boolean shardAwareBatching;
+
+  @AdvancedConfig
+  @InputFieldDefault(value = "false")
+  private Boolean coalesce;
+
+  @AdvancedConfig
+  @Valid
+  private BulkLoadSettings bulkLoadSettings;
+
+  @AdvancedConfig
+  @Valid
+  private SpillBuffer spillBuffer;
+
+  @AdvancedConfig
+  @Valid
+  private BulkResultReport resultReport;
+
+  @AdvancedConfig
+  @Valid
+  private BulkRetryPolicy retryPolicy;
+
+  @AdvancedConfig
+  @InputFieldDefault(value = "true")
+  private Boolean failOnItemFailure;
+
+  @AdvancedConfig
+  @Valid
+  private ChangeDetectionCache changeDetection;
+
+  private transient Map<String, ShardLocator> shardLocators = new ConcurrentHashMap<>();
+  private transient BulkMemoryBudget memoryBudget;
+
   public BulkOperation() {
     super();
   }
@@ -76,64 +195,460 @@ public class BulkOperation extends SingleOperation {
     super(dest, b);
   }
 
+  @Override
+  public void start() throws CoreException {
+    super.start();
+    if (getSpillBuffer() != null) {
+      getSpillBuffer().start(this::replay);
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (getSpillBuffer() != null) {
+      getSpillBuffer().stop();
+    }
+    if (getBulkLoadSettings() != null && transportClient != null) {
+      getBulkLoadSettings().restoreAll(transportClient);
+    }
+    super.stop();
+  }
+
+  @Override
+  public void close() {
+    if (getBulkLoadSettings() != null && transportClient != null) {
+      getBulkLoadSettings().restoreAll(transportClient);
+    }
+    if (getSpillBuffer() != null) {
+      getSpillBuffer().close();
+    }
+    super.close();
+  }
+
+  @Override
+  public void init() throws CoreException {
+    super.init();
+    shardLocators.clear();
+    memoryBudget = retrieveConnection(ElasticSearchConnection.class).getBulkMemoryBudget();
+    if (getSpillBuffer() != null) {
+      getSpillBuffer().init();
+    }
+    if (getAdaptiveBatchWindow() != null) {
+      getAdaptiveBatchWindow().reset(batchWindow());
+    }
+    if (getChangeDetection() != null) {
+      getChangeDetection().init();
+    }
+  }
+
   @Override
   protected AdaptrisMessage doRequest(AdaptrisMessage msg, ProduceDestination destination, long timeout) throws ProduceException {
     try {
       final String index = destination.getDestination(msg);
-      BulkRequestBuilder bulkRequest = transportClient.prepareBulk().setRefreshPolicy(getRefreshPolicy());
+      beginBulkLoad(index);
+      try {
+        produce(msg, index, Deadline.after(timeout));
+      }
+      finally {
+        endBulkLoad(index);
+      }
+    }
+    catch (Exception e) {
+      throw ExceptionHelper.wrapProduceException(e);
+    }
+    return msg;
+  }
+
+  private void produce(AdaptrisMessage msg, String index, Deadline deadline) throws Exception {
+    // Keyed by the node holding the primary shard if shard aware, otherwise there's just the one.
+    Map<String, BulkRequestBuilder> batches = new HashMap<>();
+    Map<String, CoalescingBatch> coalescing = new HashMap<>();
+    // Resources are closed in reverse order, so every request has finished (or been cancelled) before the report is closed.
+    try (BulkResultReport.Writer results = openReport(msg);
+        InFlightBulkRequests inFlight = new InFlightBulkRequests(concurrentRequests(), deadline, this::release)) {
+      final ShardLocator locator = shardLocator(index);
       long total = 0;
+      long unchanged = 0;
       try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(getDocumentBuilder().build(msg))) {
-        int count = 0;
         for (DocumentWrapper doc : docs) {
-          count++;
           total++;
-          DocumentAction action = doc.action() != null ? doc.action() : DocumentAction.valueOf(actionExtractor().extract(msg, doc));
-          switch(action) {
-          case INDEX:
-            bulkRequest.add(transportClient.prepareIndex(index, doc.type(), doc.uniqueId()).setRouting(doc.routing())
-                .setParent(doc.parent()).setSource(doc.content()));
-            break;
-          case UPDATE:
-            bulkRequest.add(transportClient.prepareUpdate(index, doc.type(), doc.uniqueId()).setRouting(doc.routing())
-                .setParent(doc.parent()).setDoc(doc.content()));
-            break;
-          case DELETE:
-            bulkRequest.add(
-                transportClient.prepareDelete(index, doc.type(), doc.uniqueId()).setRouting(doc.routing()).setParent(doc.parent()));
-            break;
-          case UPSERT:
-            bulkRequest.add(transportClient.prepareUpdate(index, doc.type(), doc.uniqueId()).setRouting(doc.routing())
-                .setParent(doc.parent()).setDoc(doc.content()).setUpsert(doc.content()));
-            break;
-          default:
-            throw new ProduceException("Unrecognized action: " + action);
+          DocumentAction action = actionFor(msg, doc);
+          if (unchanged(index, action, doc)) {
+            unchanged++;
+            continue;
           }
-          if (count >= batchWindow()) {
-            doSend(bulkRequest);
-            count = 0;
-            bulkRequest = transportClient.prepareBulk().setRefreshPolicy(getRefreshPolicy());
+          String partition = locator != null ? locator.primaryNode(doc) : "";
+          if (coalesce()) {
+            if (memoryBudget != null && !memoryBudget.tryReserve(estimatedSize(action, doc))) {
+              // As add(), but the documents waiting to be coalesced also hold reservations.
+              for (Map.Entry<String, CoalescingBatch> e : coalescing.entrySet()) {
+                sendCoalesced(e.getValue(), e.getKey(), batches, index, inFlight, results);
+              }
+              sendAll(batches, inFlight, results);
+              memoryBudget.reserve(estimatedSize(action, doc));
+            }
+            CoalescingBatch batch = coalescing.computeIfAbsent(partition, (k) -> new CoalescingBatch());
+            batch.add(action, doc, estimatedSize(action, doc));
+            if (batch.size() >= currentBatchWindow()) {
+              sendCoalesced(batch, partition, batches, index, inFlight, results);
+            }
+            continue;
           }
+          add(partition, batches, index, action, doc, inFlight, results);
         }
       }
-      if (bulkRequest.numberOfActions() > 0) {
-        doSend(bulkRequest);
+      for (Map.Entry<String, CoalescingBatch> e : coalescing.entrySet()) {
+        sendCoalesced(e.getValue(), e.getKey(), batches, index, inFlight, results);
+      }
+      sendAll(batches, inFlight, results);
+      inFlight.await();
+      if (results != null) {
+        results.finish(msg);
       }
       log.trace("Produced a total of {} documents", total);
+      if (getChangeDetection() != null) {
+        log.debug("Skipped {} unchanged documents; hit rate is now {}", unchanged, getChangeDetection().hitRate());
+      }
     }
-    catch (Exception e) {
-      throw ExceptionHelper.wrapProduceException(e);
+    finally {
+      // Anything left over was never sent.
+      batches.values().forEach(this::release);
+      coalescing.values().forEach(this::releaseCoalesced);
+    }
+  }
+
+  private void add(String partition, Map<String, BulkRequestBuilder> batches, String index, DocumentAction action,
+      DocumentWrapper doc, InFlightBulkRequests inFlight, BulkResultReport.Writer results) throws Exception {
+    if (memoryBudget != null && !memoryBudget.tryReserve(estimatedSize(action, doc))) {
+      // Send our own partial batches before waiting, otherwise every producer could end up waiting for each other.
+      sendAll(batches, inFlight, results);
+      memoryBudget.reserve(estimatedSize(action, doc));
+    }
+    BulkRequestBuilder bulkRequest = batches.computeIfAbsent(partition, (k) -> newBulkRequest());
+    addReserved(bulkRequest, index, action, doc);
+    if (batchFull(bulkRequest.numberOfActions(), bulkRequest)) {
+      batches.remove(partition);
+      doSend(bulkRequest, inFlight, results);
     }
-    return msg;
   }
 
-  private void doSend(BulkRequestBuilder bulkRequest) throws Exception {
-    int count = bulkRequest.numberOfActions();
-    BulkResponse response = bulkRequest.get();
-    if (response.hasFailures()) {
-      throw new ProduceException(response.buildFailureMessage());
+  private void sendAll(Map<String, BulkRequestBuilder> batches, InFlightBulkRequests inFlight, BulkResultReport.Writer results)
+      throws Exception {
+    for (Iterator<BulkRequestBuilder> i = batches.values().iterator(); i.hasNext();) {
+      BulkRequestBuilder bulkRequest = i.next();
+      i.remove();
+      if (bulkRequest.numberOfActions() > 0) {
+        doSend(bulkRequest, inFlight, results);
+      }
+    }
+  }
+
+  /**
+   * Reserve the estimated size of the document from the memory budget, waiting if required.
+   *
+   */
+  void reserve(DocumentAction action, DocumentWrapper doc) throws ProduceException, InterruptedException {
+    if (memoryBudget != null) {
+      memoryBudget.reserve(estimatedSize(action, doc));
+    }
+  }
+
+  /**
+   * Add a document whose size has already been reserved from the memory budget.
+   *
+   */
+  void addReserved(BulkRequestBuilder bulkRequest, String index, DocumentAction action, DocumentWrapper doc)
+      throws ProduceException {
+    long before = bulkRequest.request().estimatedSizeInBytes();
+    try {
+      addDocument(bulkRequest, index, action, doc);
+    }
+    finally {
+      if (memoryBudget != null) {
+        // Make sure that what's released matches what's in the request.
+        memoryBudget.adjust(bulkRequest.request().estimatedSizeInBytes() - before - estimatedSize(action, doc));
+      }
+    }
+  }
+
+  // Same calculation as BulkRequest#estimatedSizeInBytes()
+  private static long estimatedSize(DocumentAction action, DocumentWrapper doc) {
+    long content = doc.source() != null ? doc.source().length() : 0;
+    switch (action) {
+    case DELETE:
+      return REQUEST_OVERHEAD;
+    case UPSERT:
+      return REQUEST_OVERHEAD + content * 2;
+    default:
+      return REQUEST_OVERHEAD + content;
+    }
+  }
+
+  void release(BulkRequestBuilder bulkRequest) {
+    if (memoryBudget != null) {
+      memoryBudget.release(bulkRequest.request().estimatedSizeInBytes());
+    }
+  }
+
+  private void releaseCoalesced(CoalescingBatch batch) {
+    if (memoryBudget != null) {
+      memoryBudget.release(batch.reservedBytes());
+    }
+  }
+
+  // The batch may still be split if it exceeds the batch size in bytes.
+  private void sendCoalesced(CoalescingBatch batch, String partition, Map<String, BulkRequestBuilder> batches, String index,
+      InFlightBulkRequests inFlight, BulkResultReport.Writer results) throws Exception {
+    long reserved = batch.reservedBytes();
+    AtomicLong added = new AtomicLong();
+    try {
+      // Each document's size was reserved when it was added to the batch (or merged into another one).
+      batch.drain((action, doc) -> {
+        BulkRequestBuilder bulkRequest = batches.computeIfAbsent(partition, (k) -> newBulkRequest());
+        added.addAndGet(estimatedSize(action, doc));
+        addReserved(bulkRequest, index, action, doc);
+        if (batchFull(bulkRequest.numberOfActions(), bulkRequest)) {
+          batches.remove(partition);
+          doSend(bulkRequest, inFlight, results);
+        }
+      });
+    }
+    finally {
+      if (memoryBudget != null) {
+        // Give back what merging saved; anything that wasn't added is released along with it.
+        memoryBudget.adjust(added.get() - reserved);
+      }
+    }
+    BulkRequestBuilder remaining = batches.remove(partition);
+    if (remaining != null && remaining.numberOfActions() > 0) {
+      doSend(remaining, inFlight, results);
+    }
+  }
+
+  boolean batchFull(int count, BulkRequestBuilder bulkRequest) {
+    if (count >= currentBatchWindow()) {
+      return true;
+    }
+    return batchSizeBytes() > 0 && bulkRequest.request().estimatedSizeInBytes() >= batchSizeBytes();
+  }
+
+  private void doSend(BulkRequestBuilder bulkRequest, InFlightBulkRequests inFlight, BulkResultReport.Writer results)
+      throws Exception {
+    if (getSpillBuffer() != null) {
+      try {
+        getSpillBuffer().append(bulkRequest.request());
+      }
+      finally {
+        release(bulkRequest);
+      }
+    }
+    else if (concurrentRequests() > 0) {
+      if (inFlight.hasFailures()) {
+        release(bulkRequest);
+        // No point building any more batches, wait for the rest to finish and report.
+        inFlight.await();
+      }
+      // released by inFlight once complete.
+      inFlight.execute(bulkRequest, (request, response, attempt, roundTrip) -> handleResponse(request, response, attempt,
+          roundTrip, results));
+    }
+    else {
+      try {
+        sendAndWait(bulkRequest, inFlight.deadline(), results);
+      }
+      finally {
+        release(bulkRequest);
+      }
+    }
+  }
+
+  private void sendAndWait(BulkRequestBuilder bulkRequest, Deadline deadline, BulkResultReport.Writer results)
+      throws Exception {
+    BulkRequestBuilder request = bulkRequest;
+    for (int attempt = 0; request != null; attempt++) {
+      long started = System.nanoTime();
+      BulkResponse response = request.setTimeout(deadline.requestTimeout()).get(deadline.remaining());
+      Retry retry = handleResponse(request, response, attempt, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+          results);
+      request = null;
+      if (retry != null) {
+        Thread.sleep(Math.max(0, Math.min(retry.delayMs(), deadline.remainingMs())));
+        request = retry.request();
+      }
+    }
+  }
+
+  private Retry handleResponse(BulkRequestBuilder request, BulkResponse response, int attempt, long roundTripMs,
+      BulkResultReport.Writer results) throws Exception {
+    log.trace("Producing batch of {} requests took {}", request.numberOfActions(), response.getTook().toString());
+    BulkRetryPolicy policy = retryPolicy();
+    List<BulkItemResponse> retryable = new ArrayList<>();
+    List<BulkItemResponse> permanent = new ArrayList<>();
+    List<?> originals = request.request().requests();
+    for (BulkItemResponse item : response.getItems()) {
+      if (item.isFailed() && policy.isRetryable(item) && attempt < policy.maxRetries()) {
+        // Not the final outcome, so it's not reported.
+        retryable.add(item);
+        continue;
+      }
+      if (results != null) {
+        results.record(item);
+      }
+      written(originals.get(item.getItemId()), item);
+      if (item.isFailed()) {
+        if (policy.isRetryable(item)) {
+          retryable.add(item);
+        }
+        else {
+          permanent.add(item);
+        }
+      }
+    }
+    adapt(request.numberOfActions(), response, roundTripMs, retryable.size());
+    if (!permanent.isEmpty()) {
+      for (BulkItemResponse item : permanent) {
+        log.warn("[{}] [{}] failed permanently: {}", item.getOpType(), item.getId(), item.getFailureMessage());
+      }
+      if (failOnItemFailure()) {
+        throw new ProduceException(permanent.size() + " documents failed : " + permanent.get(0).getFailureMessage());
+      }
+    }
+    if (retryable.isEmpty()) {
+      return null;
+    }
+    if (attempt >= policy.maxRetries()) {
+      throw new ProduceException(retryable.size() + " documents still rejected after " + attempt + " retries : "
+          + retryable.get(0).getFailureMessage());
+    }
+    BulkRequestBuilder retryRequest = newBulkRequest();
+    for (BulkItemResponse item : retryable) {
+      copyRequest(retryRequest, originals.get(item.getItemId()));
+    }
+    long delay = policy.backoffMillis(attempt);
+    log.debug("Retrying {} rejected documents in {}ms", retryable.size(), delay);
+    return new Retry(retryRequest, delay);
+  }
+
+  /**
+   * Replay a batch from the spill buffer; rejected documents are retried until the cluster accepts them.
+   *
+   * @return the number of documents that failed permanently.
+   */
+  int replay(BulkRequest spilled) throws InterruptedException {
+    BulkRetryPolicy policy = retryPolicy();
+    BulkRequestBuilder request = newBulkRequest();
+    for (Object item : spilled.requests()) {
+      copyRequest(request, item);
+    }
+    TimeValue timeout = TimeValue.timeValueMillis(getSpillBuffer().replayTimeoutMs());
+    int failed = 0;
+    for (int attempt = 0; request.numberOfActions() > 0; attempt++) {
+      long started = System.nanoTime();
+      // If it times out, then the spill buffer replays the whole request again.
+      BulkResponse response = request.setTimeout(timeout).get(timeout);
+      List<?> originals = request.request().requests();
+      BulkRequestBuilder retryRequest = newBulkRequest();
+      for (BulkItemResponse item : response.getItems()) {
+        if (!item.isFailed()) {
+          written(originals.get(item.getItemId()), item);
+          continue;
+        }
+        if (policy.isRetryable(item)) {
+          copyRequest(retryRequest, originals.get(item.getItemId()));
+        }
+        else {
+          written(originals.get(item.getItemId()), item);
+          log.warn("[{}] [{}] failed permanently: {}", item.getOpType(), item.getId(), item.getFailureMessage());
+          failed++;
+        }
+      }
+      adapt(request.numberOfActions(), response, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+          retryRequest.numberOfActions());
+      if (retryRequest.numberOfActions() > 0) {
+        Thread.sleep(policy.backoffMillis(attempt));
+      }
+      request = retryRequest;
+    }
+    return failed;
+  }
+
+  private ShardLocator shardLocator(String index) {
+    if (!shardAwareBatching()) {
+      return null;
+    }
+    ShardLocator locator = shardLocators.get(index);
+    if (locator == null) {
+      try {
+        locator = ShardLocator.create(transportClient, index);
+      }
+      catch (RuntimeException e) {
+        log.warn("Failed to get routing table for [{}], batches will not be shard aware", index, e);
+      }
+      if (locator != null) {
+        shardLocators.put(index, locator);
+      }
+    }
+    return locator;
+  }
+
+  boolean unchanged(String index, DocumentAction action, DocumentWrapper doc) {
+    return getChangeDetection() != null && getChangeDetection().unchanged(index, action, doc);
+  }
+
+  /**
+   * Record the final outcome of a document for change detection.
+   *
+   */
+  void written(Object request, BulkItemResponse item) {
+    if (getChangeDetection() != null) {
+      getChangeDetection().written(request, !item.isFailed());
+    }
+  }
+
+  void adapt(int batchSize, BulkResponse response, long roundTripMs, int rejected) {
+    if (getAdaptiveBatchWindow() != null) {
+      getAdaptiveBatchWindow().update(batchSize, response.getTook().millis(), roundTripMs, rejected);
+    }
+  }
+
+  static void copyRequest(BulkRequestBuilder bulkRequest, Object request) {
+    if (request instanceof IndexRequest) {
+      bulkRequest.add((IndexRequest) request);
+    }
+    else if (request instanceof UpdateRequest) {
+      bulkRequest.add((UpdateRequest) request);
+    }
+    else if (request instanceof DeleteRequest) {
+      bulkRequest.add((DeleteRequest) request);
+    }
+  }
+
+  BulkResultReport.Writer openReport(AdaptrisMessage msg) throws IOException {
+    // Results aren't known until the spill buffer is drained.
+    if (getResultReport() == null || getSpillBuffer() != null) {
+      return null;
+    }
+    return getResultReport().open(msg);
+  }
+
+  BulkRequestBuilder newBulkRequest() {
+    // The index is refreshed once at the end of a bulk load.
+    if (getBulkLoadSettings() != null) {
+      return transportClient.prepareBulk();
+    }
+    return transportClient.prepareBulk().setRefreshPolicy(getRefreshPolicy());
+  }
+
+  void beginBulkLoad(String index) {
+    if (getBulkLoadSettings() != null) {
+      getBulkLoadSettings().begin(transportClient, index);
+    }
+  }
+
+  void endBulkLoad(String index) {
+    if (getBulkLoadSettings() != null) {
+      getBulkLoadSettings().end(transportClient, index, getRefreshPolicy() != null);
     }
-    log.trace("Producing batch of {} requests took {}", count, response.getTook().toString());
-    return;
   }
 
   /**
@@ -154,4 +669,174 @@ public class BulkOperation extends SingleOperation {
     return getBatchWindow() != null ? getBatchWindow().intValue() : DEFAULT_BATCH_WINDOW;
   }
 
+  public AdaptiveBatchWindow getAdaptiveBatchWindow() {
+    return adaptiveBatchWindow;
+  }
+
+  /**
+   * Adjust the batch window dynamically based on how the cluster responds.
+   * <p>
+   * If configured, then {@link #setBatchWindow(Integer)} is only the starting point; the batch window will be adjusted between the
+   * bounds configured on the {@link AdaptiveBatchWindow}.
+   * </p>
+   * 
+   * @param a the adaptive behaviour; default is null, which means that the batch window is fixed.
+   */
+  public void setAdaptiveBatchWindow(AdaptiveBatchWindow a) {
+    this.adaptiveBatchWindow = a;
+  }
+
+  /**
+   * Return the batch window currently in effect.
+   * 
+   * @return the batch window; which may differ from {@link #getBatchWindow()} if {@link #setAdaptiveBatchWindow(AdaptiveBatchWindow)}
+   *         is configured.
+   */
+  public int currentBatchWindow() {
+    return getAdaptiveBatchWindow() != null ? getAdaptiveBatchWindow().current() : batchWindow();
+  }
+
+  public Long getBatchSizeBytes() {
+    return batchSizeBytes;
+  }
+
+  /**
+   * Set the estimated size of a bulk request (in bytes) that will cause the batch to be sent.
+   * <p>
+   * This works in conjunction with {@link #setBatchWindow(Integer)}; whichever limit is reached first causes the batch to be
+   * sent. Elasticsearch generally performs best with bulk requests of between 5 and 15MB.
+   * </p>
+   * 
+   * @param l the size in bytes; default is 0 if not specified which means that only the batch window is used.
+   */
+  public void setBatchSizeBytes(Long l) {
+    this.batchSizeBytes = l;
+  }
+
+  long batchSizeBytes() {
+    return getBatchSizeBytes() != null ? getBatchSizeBytes().longValue() : 0;
+  }
+
+  public BulkRetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  /**
+   * Set the policy for retrying items rejected by ElasticSearch.
+   * 
+   * @param p the retry policy; default is null, which means rejected items are never retried.
+   */
+  public void setRetryPolicy(BulkRetryPolicy p) {
+    this.retryPolicy = p;
+  }
+
+  BulkRetryPolicy retryPolicy() {
+    return getRetryPolicy() != null ? getRetryPolicy() : NO_RETRIES;
+  }
+
+  public Boolean getFailOnItemFailure() {
+    return failOnItemFailure;
+  }
+
+  /**
+   * Whether or not to fail the message if individual documents fail for reasons other than rejection (e.g. mapping errors).
+   * 
+   * @param b true to fail the message; false to log the failures and carry on; default is true if not specified.
+   */
+  public void setFailOnItemFailure(Boolean b) {
+    this.failOnItemFailure = b;
+  }
+
+  boolean failOnItemFailure() {
+    return BooleanUtils.toBooleanDefaultIfNull(getFailOnItemFailure(), true);
+  }
+
+  public Boolean getShardAwareBatching() {
+    return shardAwareBatching;
+  }
+
+  /**
+   * Whether or not to group documents into batches by the node that holds their primary shard.
+   * 
+   * @param b true to enable; default is false if not specified.
+   */
+  public void setShardAwareBatching(Boolean b) {
+    this.shardAwareBatching = b;
+  }
+
+  boolean shardAwareBatching() {
+    return BooleanUtils.toBooleanDefaultIfNull(getShardAwareBatching(), false);
+  }
+
+  public BulkLoadSettings getBulkLoadSettings() {
+    return bulkLoadSettings;
+  }
+
+  /**
+   * Tune the index settings while documents are being loaded.
+   * 
+   * @param b the settings; default is null, which means index settings are never changed.
+   */
+  public void setBulkLoadSettings(BulkLoadSettings b) {
+    this.bulkLoadSettings = b;
+  }
+
+  public SpillBuffer getSpillBuffer() {
+    return spillBuffer;
+  }
+
+  /**
+   * Write batches to a local write-ahead log, and send them to the cluster in the background.
+   * 
+   * @param b the spill buffer; default is null, which means that batches are sent directly.
+   */
+  public void setSpillBuffer(SpillBuffer b) {
+    this.spillBuffer = b;
+  }
+
+  public BulkResultReport getResultReport() {
+    return resultReport;
+  }
+
+  /**
+   * Report the outcome of each document.
+   * 
+   * @param r the report; default is null, which means that only failures are logged.
+   */
+  public void setResultReport(BulkResultReport r) {
+    this.resultReport = r;
+  }
+
+  public ChangeDetectionCache getChangeDetection() {
+    return changeDetection;
+  }
+
+  /**
+   * Skip documents that haven't changed since they were last written.
+   * 
+   * @param c the cache; default is null, which means that every document is sent.
+   */
+  public void setChangeDetection(ChangeDetectionCache c) {
+    this.changeDetection = c;
+  }
+
+  public Boolean getCoalesce() {
+    return coalesce;
+  }
+
+  /**
+   * Whether or not to merge operations on the same document within a batch.
+   * <p>
+   * Useful where a single message contains a stream of changes to the same documents, such as from change data capture.
+   * </p>
+   * 
+   * @param b true to merge operations, default is false if not specified.
+   */
+  public void setCoalesce(Boolean b) {
+    this.coalesce = b;
+  }
+
+  boolean coalesce() {
+    return BooleanUtils.toBooleanDefaultIfNull(getCoalesce(), false);
+  }
 }
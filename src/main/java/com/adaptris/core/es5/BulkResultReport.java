@@ -0,0 +1,234 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.core.AdaptrisMessage;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Reports the outcome of each document in a bulk operation as newline delimited JSON.
+ *
+ * <p>
+ * Each line contains the {@code index}, {@code type}, {@code id}, {@code action}, {@code version} and {@code status} of the
+ * document, along with the {@code result} if it succeeded or the {@code failure} if it did not. Only the final outcome of each
+ * document is reported; if a document was rejected and then successfully retried, only the success is reported.
+ * </p>
+ * <p>
+ * Results are written to a file as each batch completes, so the report is never held in memory. Once all the documents have
+ * been produced, the report is then
+ * <ul>
+ * <li>{@link Target#PAYLOAD} : streamed into the payload of the message, replacing the existing payload.</li>
+ * <li>{@link Target#METADATA} : stored against {@link #getMetadataKey()}; only use this if the number of documents in each
+ * message is small.</li>
+ * <li>{@link Target#FILE} : left in {@link #getDirectory()} as {@code <message-id>.ndjson}; the path of the file is stored
+ * against {@link #getMetadataKey()}.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Results are not available if the batches are written to a {@link SpillBuffer}.
+ * </p>
+ *
+ * @config es5-bulk-result-report
+ */
+@XStreamAlias("es5-bulk-result-report")
+public class BulkResultReport {
+
+  private static final String DEFAULT_METADATA_KEY = "elasticBulkResults";
+  private static final JsonFactory JSON = new JsonFactory();
+
+  public enum Target {
+    PAYLOAD, METADATA, FILE
+  }
+
+  @InputFieldDefault(value = "PAYLOAD")
+  private Target target;
+  @InputFieldDefault(value = DEFAULT_METADATA_KEY)
+  private String metadataKey;
+  private String directory;
+
+  public BulkResultReport() {
+
+  }
+
+  public BulkResultReport(Target t) {
+    this();
+    setTarget(t);
+  }
+
+  /**
+   * Start a report for the message.
+   *
+   */
+  Writer open(AdaptrisMessage msg) throws IOException {
+    if (target() == Target.FILE) {
+      if (StringUtils.isBlank(getDirectory())) {
+        throw new IOException("No directory configured for the bulk result report");
+      }
+      Path dir = Files.createDirectories(Paths.get(getDirectory()));
+      return new Writer(dir.resolve(msg.getUniqueId() + ".ndjson"));
+    }
+    return new Writer(Files.createTempFile(getClass().getSimpleName(), ".ndjson"));
+  }
+
+  public Target getTarget() {
+    return target;
+  }
+
+  /**
+   * Set where the report ends up.
+   *
+   * @param t the target, default is {@link Target#PAYLOAD} if not specified.
+   */
+  public void setTarget(Target t) {
+    this.target = t;
+  }
+
+  Target target() {
+    return getTarget() != null ? getTarget() : Target.PAYLOAD;
+  }
+
+  public String getMetadataKey() {
+    return metadataKey;
+  }
+
+  /**
+   * Set the metadata key used by {@link Target#METADATA} and {@link Target#FILE}.
+   *
+   * @param s the key, default is {@value #DEFAULT_METADATA_KEY} if not specified.
+   */
+  public void setMetadataKey(String s) {
+    this.metadataKey = s;
+  }
+
+  String metadataKey() {
+    return StringUtils.defaultIfBlank(getMetadataKey(), DEFAULT_METADATA_KEY);
+  }
+
+  public String getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Set the directory used by {@link Target#FILE}.
+   *
+   * @param s the directory, which will be created if it doesn't exist.
+   */
+  public void setDirectory(String s) {
+    this.directory = s;
+  }
+
+  /**
+   * Writes the results for a single message.
+   *
+   */
+  class Writer implements Closeable {
+    private final Path file;
+    private final JsonGenerator generator;
+    private boolean finished = false;
+    private boolean closed = false;
+    private long count = 0;
+
+    private Writer(Path file) throws IOException {
+      this.file = file;
+      generator = JSON.createGenerator(Files.newOutputStream(file), JsonEncoding.UTF8);
+      generator.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+    }
+
+    /**
+     * Record the final outcome of a document; this may be called by multiple threads.
+     * <p>
+     * Outcomes that arrive after the writer has been closed (e.g. the message has already timed out) are discarded.
+     * </p>
+     */
+    synchronized void record(BulkItemResponse item) throws IOException {
+      if (closed) {
+        return;
+      }
+      generator.writeStartObject();
+      generator.writeStringField("index", item.getIndex());
+      generator.writeStringField("type", item.getType());
+      generator.writeStringField("id", item.getId());
+      generator.writeStringField("action", String.valueOf(item.getOpType()).toLowerCase(Locale.ROOT));
+      generator.writeNumberField("version", item.getVersion());
+      generator.writeNumberField("status", item.status().getStatus());
+      if (item.isFailed()) {
+        generator.writeStringField("failure", item.getFailureMessage());
+      }
+      else {
+        generator.writeStringField("result", item.getResponse().getResult().getLowercase());
+      }
+      generator.writeEndObject();
+      count++;
+    }
+
+    /**
+     * Finish the report, and put it where it has been configured to go.
+     *
+     */
+    synchronized void finish(AdaptrisMessage msg) throws IOException {
+      if (count > 0) {
+        generator.writeRaw('\n');
+      }
+      closed = true;
+      generator.close();
+      switch (target()) {
+      case PAYLOAD:
+        try (OutputStream out = msg.getOutputStream()) {
+          Files.copy(file, out);
+        }
+        break;
+      case METADATA:
+        msg.addMetadata(metadataKey(), new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        break;
+      case FILE:
+        msg.addMetadata(metadataKey(), file.toString());
+        finished = true;
+        break;
+      }
+    }
+
+    /**
+     * Discard any temporary files (or an incomplete report if {@link #finish(AdaptrisMessage)} was not called).
+     *
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      closed = true;
+      generator.close();
+      if (!finished) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.util.TimeInterval;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Controls the retry of individual items within a bulk request that were rejected by ElasticSearch.
+ *
+ * <p>
+ * Only items that failed with {@code 429 TOO_MANY_REQUESTS} (generally an {@code EsRejectedExecutionException} because the
+ * bulk queue is full) are retried; only those items are sent again, not the entire batch. The delay between retries grows
+ * exponentially from {@link #getInitialBackoff()} up to {@link #getMaxBackoff()}, with a random jitter so that multiple
+ * producers do not all retry at the same time.
+ * </p>
+ *
+ * @config es5-bulk-retry-policy
+ */
+@XStreamAlias("es5-bulk-retry-policy")
+public class BulkRetryPolicy {
+
+  private static final int DEFAULT_MAX_RETRIES = 3;
+  private static final TimeInterval DEFAULT_INITIAL_BACKOFF = new TimeInterval(100L, TimeUnit.MILLISECONDS);
+  private static final TimeInterval DEFAULT_MAX_BACKOFF = new TimeInterval(30L, TimeUnit.SECONDS);
+
+  @Min(0)
+  @InputFieldDefault(value = "3")
+  private Integer maxRetries;
+  @Valid
+  private TimeInterval initialBackoff;
+  @Valid
+  private TimeInterval maxBackoff;
+
+  public BulkRetryPolicy() {
+
+  }
+
+  public BulkRetryPolicy(Integer maxRetries) {
+    this();
+    setMaxRetries(maxRetries);
+  }
+
+  /**
+   * Whether or not the failed item can be retried.
+   *
+   */
+  public boolean isRetryable(BulkItemResponse item) {
+    if (!item.isFailed()) {
+      return false;
+    }
+    BulkItemResponse.Failure failure = item.getFailure();
+    return failure.getStatus() == RestStatus.TOO_MANY_REQUESTS
+        || ExceptionsHelper.unwrapCause(failure.getCause()) instanceof EsRejectedExecutionException;
+  }
+
+  /**
+   * Calculate how long to wait before retrying.
+   *
+   * @param attempt the number of retries that have already happened.
+   * @return the delay in milliseconds.
+   */
+  public long backoffMillis(int attempt) {
+    long ceiling = Math.min(maxBackoffMs(), initialBackoffMs() << Math.min(attempt, 30));
+    if (ceiling <= 1) {
+      return ceiling;
+    }
+    long half = ceiling / 2;
+    return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+  }
+
+  public Integer getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Set the maximum number of times rejected items are retried.
+   *
+   * @param i the max number of retries, default is 3 if not specified.
+   */
+  public void setMaxRetries(Integer i) {
+    this.maxRetries = i;
+  }
+
+  public int maxRetries() {
+    return getMaxRetries() != null ? getMaxRetries().intValue() : DEFAULT_MAX_RETRIES;
+  }
+
+  public TimeInterval getInitialBackoff() {
+    return initialBackoff;
+  }
+
+  /**
+   * Set the delay before the first retry.
+   *
+   * @param t the initial delay, default is 100ms if not specified.
+   */
+  public void setInitialBackoff(TimeInterval t) {
+    this.initialBackoff = t;
+  }
+
+  long initialBackoffMs() {
+    return getInitialBackoff() != null ? getInitialBackoff().toMilliseconds() : DEFAULT_INITIAL_BACKOFF.toMilliseconds();
+  }
+
+  public TimeInterval getMaxBackoff() {
+    return maxBackoff;
+  }
+
+  /**
+   * Set the maximum delay between retries.
+   *
+   * @param t the max delay, default is 30 seconds if not specified.
+   */
+  public void setMaxBackoff(TimeInterval t) {
+    this.maxBackoff = t;
+  }
+
+  long maxBackoffMs() {
+    return getMaxBackoff() != null ? getMaxBackoff().toMilliseconds() : DEFAULT_MAX_BACKOFF.toMilliseconds();
+  }
+}
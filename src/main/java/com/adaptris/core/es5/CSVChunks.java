@@ -0,0 +1,197 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.io.CharArrayReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+import org.apache.commons.csv.CSVFormat;
+
+/**
+ * Splits CSV into chunks of whole records, so that each chunk can be parsed independently.
+ *
+ * <p>
+ * Only line feeds outside of a quoted field are treated as the end of a record; so records must be separated by {@code \n} or
+ * {@code \r\n} for the input to be split, otherwise it is returned as a single chunk. The scan honours the quote, escape and
+ * comment characters from the {@link CSVFormat}, but does not otherwise validate the CSV.
+ * </p>
+ */
+final class CSVChunks implements Closeable {
+
+  private static final int FIELD_START = 0;
+  private static final int UNQUOTED = 1;
+  private static final int QUOTED = 2;
+  // A quote inside a quoted field; either the end of the field, or the first of a doubled quote.
+  private static final int QUOTE_IN_QUOTED = 3;
+  private static final int ESCAPED = 4;
+  private static final int COMMENT = 5;
+
+  private final Reader in;
+  private final int chunkSize;
+  private final char delimiter;
+  private final int quote;
+  private final int escape;
+  private final int comment;
+  private final boolean ignoreSurroundingSpaces;
+
+  private char[] buf;
+  private int len = 0;
+  // Everything before this has already been scanned, and state is the state at that point.
+  private int scanned = 0;
+  private int state = FIELD_START;
+  // The state to return to after an escaped character.
+  private int escapedFrom = UNQUOTED;
+  private boolean lineStart = true;
+  private boolean eof = false;
+
+  /**
+   * @param unquoted if true then the quote, escape and comment characters from the format are ignored.
+   */
+  CSVChunks(Reader in, CSVFormat format, int chunkSize, boolean unquoted) {
+    this.in = in;
+    this.chunkSize = chunkSize;
+    delimiter = format.getDelimiter();
+    quote = format.getQuoteCharacter() != null && !unquoted ? format.getQuoteCharacter().charValue() : -1;
+    // An escape that's the same as the quote is just a doubled quote.
+    escape = format.getEscapeCharacter() != null && format.getEscapeCharacter().charValue() != quote && !unquoted
+        ? format.getEscapeCharacter().charValue() : -1;
+    comment = format.getCommentMarker() != null && !unquoted ? format.getCommentMarker().charValue() : -1;
+    ignoreSurroundingSpaces = format.getIgnoreSurroundingSpaces();
+    buf = new char[chunkSize];
+  }
+
+  /**
+   * The next chunk.
+   *
+   * @param single if true then the chunk contains just the next record, otherwise as many records as will fit in the chunk size.
+   * @return a reader over the chunk, or null if there is nothing left.
+   */
+  Reader next(boolean single) throws IOException {
+    while (true) {
+      fill();
+      if (eof && len == 0) {
+        return null;
+      }
+      int cut = scan(single);
+      if (cut < 0 && eof) {
+        cut = len;
+      }
+      if (cut > 0) {
+        char[] chunk = buf;
+        buf = new char[Math.max(chunkSize, (len - cut) * 2)];
+        System.arraycopy(chunk, cut, buf, 0, len - cut);
+        len -= cut;
+        scanned -= cut;
+        return new CharArrayReader(chunk, 0, cut);
+      }
+      // A single record that's bigger than the buffer.
+      buf = Arrays.copyOf(buf, buf.length * 2);
+    }
+  }
+
+  private void fill() throws IOException {
+    while (!eof && len < buf.length) {
+      int n = in.read(buf, len, buf.length - len);
+      if (n < 0) {
+        eof = true;
+      }
+      else {
+        len += n;
+      }
+    }
+  }
+
+  // Returns the position after the last (or first) end of record in the buffer, -1 if there isn't one.
+  private int scan(boolean single) {
+    int cut = -1;
+    for (; scanned < len; scanned++) {
+      char c = buf[scanned];
+      boolean wasLineStart = lineStart;
+      lineStart = false;
+      switch (state) {
+      case COMMENT:
+        if (c == '\n') {
+          state = FIELD_START;
+          lineStart = true;
+        }
+        continue;
+      case ESCAPED:
+        state = escapedFrom;
+        continue;
+      case QUOTED:
+        if (c == quote) {
+          state = QUOTE_IN_QUOTED;
+        }
+        else if (c == escape) {
+          escapedFrom = QUOTED;
+          state = ESCAPED;
+        }
+        continue;
+      case QUOTE_IN_QUOTED:
+        if (c == quote) {
+          state = QUOTED;
+          continue;
+        }
+        break;
+      case FIELD_START:
+        if (c == quote) {
+          state = QUOTED;
+          continue;
+        }
+        if (wasLineStart && c == comment) {
+          state = COMMENT;
+          continue;
+        }
+        if (ignoreSurroundingSpaces && (c == ' ' || c == '\t')) {
+          continue;
+        }
+        break;
+      default:
+        break;
+      }
+      // Outside of a quoted field.
+      if (c == '\n') {
+        state = FIELD_START;
+        lineStart = true;
+        cut = scanned + 1;
+        if (single) {
+          scanned++;
+          return cut;
+        }
+      }
+      else if (c == delimiter) {
+        state = FIELD_START;
+      }
+      else if (c == escape) {
+        escapedFrom = UNQUOTED;
+        state = ESCAPED;
+      }
+      else {
+        state = UNQUOTED;
+      }
+    }
+    return cut;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,117 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import javax.validation.constraints.NotNull;
+
+import org.hibernate.validator.constraints.NotBlank;
+
+import com.adaptris.annotation.AutoPopulated;
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.core.util.Args;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * The type of a column in a {@link CSVSchema}.
+ *
+ * @config es5-csv-column
+ */
+@XStreamAlias("es5-csv-column")
+public class CSVColumn {
+
+  /**
+   * How the values in the column are written to the document.
+   */
+  public enum Type {
+    /** Written as a string, which is what happens to columns that aren't in the schema. */
+    KEYWORD,
+    /** Written as a number using {@link Long#parseLong(String)}. */
+    LONG,
+    /** Written as a number using {@link Double#parseDouble(String)}. */
+    DOUBLE,
+    /** Written as a boolean; true/false, yes/no, on/off, y/n, t/f or 1/0. */
+    BOOLEAN,
+    /** Parsed using the date pattern, and written as milliseconds since the epoch; or as a string if there is no pattern. */
+    DATE,
+    /** Not written at all. */
+    SKIP
+  }
+
+  @NotBlank
+  private String name;
+  @NotNull
+  @AutoPopulated
+  @InputFieldDefault(value = "KEYWORD")
+  private Type type;
+  private String datePattern;
+
+  public CSVColumn() {
+    setType(Type.KEYWORD);
+  }
+
+  public CSVColumn(String name, Type type) {
+    this();
+    setName(name);
+    setType(type);
+  }
+
+  public CSVColumn(String name, String datePattern) {
+    this(name, Type.DATE);
+    setDatePattern(datePattern);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Set the name of the column.
+   *
+   * @param s the name from the header record, with spaces replaced by underscores; or {@code field_N} (where the first column is
+   *          {@code field_0}) if there is no header record.
+   */
+  public void setName(String s) {
+    this.name = Args.notBlank(s, "name");
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Set the type of the column.
+   *
+   * @param t the type, defaults to {@link Type#KEYWORD}.
+   */
+  public void setType(Type t) {
+    this.type = Args.notNull(t, "type");
+  }
+
+  public String getDatePattern() {
+    return datePattern;
+  }
+
+  /**
+   * Set the pattern for a {@link Type#DATE} column.
+   *
+   * @param s the pattern as understood by {@link java.time.format.DateTimeFormatter}; dates without an offset are assumed to
+   *          be UTC, and dates without a time are assumed to be the start of the day.
+   */
+  public void setDatePattern(String s) {
+    this.datePattern = s;
+  }
+}
@@ -0,0 +1,189 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.stream.IntStream;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.adaptris.core.es5.CSVColumn.Type;
+import com.adaptris.core.es5.fields.FieldNameMapper;
+
+/**
+ * How each column of a CSV record is written to a document, worked out once per message from the header record.
+ *
+ * <p>
+ * Without a header record, the columns are named {@code field_N} and are added the first time that a record has that many
+ * columns.
+ * </p>
+ */
+final class CSVColumnPlan {
+
+  private static final Column SKIPPED = new Column(null, Type.SKIP, null);
+
+  private final CSVSchema schema;
+  private final FieldNameMapper mapper;
+  private final BiPredicate<Integer, String> include;
+  private volatile Layout layout;
+
+  /**
+   * @param headers the names from the header record, which is empty if there isn't one.
+   * @param schema the schema, may be null.
+   * @param mapper maps the name of each column to its field name.
+   * @param include whether a column (by its index and name) should be written to the document at all.
+   */
+  CSVColumnPlan(List<String> headers, CSVSchema schema, FieldNameMapper mapper, BiPredicate<Integer, String> include) {
+    this.schema = schema;
+    this.mapper = mapper;
+    this.include = include;
+    Column[] result = new Column[headers.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = compile(i, headers.get(i));
+    }
+    layout = new Layout(result);
+  }
+
+  private Column compile(int index, String name) {
+    if (!include.test(index, name)) {
+      return SKIPPED;
+    }
+    CSVColumn c = schema != null ? schema.column(name) : null;
+    if (c == null) {
+      return new Column(mapper.map(name), Type.KEYWORD, null);
+    }
+    DateTimeFormatter format = c.getType() == Type.DATE && !isBlank(c.getDatePattern())
+        ? DateTimeFormatter.ofPattern(c.getDatePattern()).withZone(ZoneOffset.UTC) : null;
+    return new Column(mapper.map(name), c.getType(), format);
+  }
+
+  /**
+   * Write the fields of the record.
+   *
+   */
+  void write(XContentBuilder builder, CSVRow record) throws IOException {
+    int size = record.size();
+    Layout l = layout(size);
+    for (int i : l.written) {
+      if (i >= size) {
+        break;
+      }
+      l.columns[i].write(builder, record, i);
+    }
+  }
+
+  private Layout layout(int size) {
+    Layout l = layout;
+    return size <= l.columns.length ? l : grow(size);
+  }
+
+  private synchronized Layout grow(int size) {
+    Layout l = layout;
+    if (size > l.columns.length) {
+      Column[] c = new Column[size];
+      System.arraycopy(l.columns, 0, c, 0, l.columns.length);
+      for (int i = l.columns.length; i < size; i++) {
+        c[i] = compile(i, "field_" + i);
+      }
+      l = new Layout(c);
+      layout = l;
+    }
+    return l;
+  }
+
+  // The columns, and the indexes of those that are written, so that the rest are never looked at.
+  private static final class Layout {
+    private final Column[] columns;
+    private final int[] written;
+
+    Layout(Column[] columns) {
+      this.columns = columns;
+      written = IntStream.range(0, columns.length).filter((i) -> columns[i].type != Type.SKIP).toArray();
+    }
+  }
+
+  private static final class Column {
+    private final String fieldName;
+    private final Type type;
+    private final DateTimeFormatter dateFormat;
+
+    Column(String fieldName, Type type, DateTimeFormatter dateFormat) {
+      this.fieldName = fieldName;
+      this.type = type;
+      this.dateFormat = dateFormat;
+    }
+
+    void write(XContentBuilder builder, CSVRow record, int i) throws IOException {
+      if (type == Type.SKIP) {
+        return;
+      }
+      if (type == Type.KEYWORD || type == Type.DATE && dateFormat == null) {
+        builder.field(fieldName, record.get(i));
+        return;
+      }
+      String value = record.get(i);
+      if (isBlank(value)) {
+        return;
+      }
+      try {
+        switch (type) {
+        case LONG:
+          builder.field(fieldName, Long.parseLong(value.trim()));
+          break;
+        case DOUBLE:
+          builder.field(fieldName, Double.parseDouble(value));
+          break;
+        case BOOLEAN:
+          builder.field(fieldName, toBoolean(value.trim()));
+          break;
+        default:
+          builder.field(fieldName, toMillis(dateFormat.parse(value.trim())));
+          break;
+        }
+      }
+      catch (RuntimeException e) {
+        throw new IllegalArgumentException("Could not convert [" + value + "] to " + type + " for " + fieldName, e);
+      }
+    }
+
+    private static boolean toBoolean(String value) {
+      Boolean result = "1".equals(value) ? Boolean.TRUE : "0".equals(value) ? Boolean.FALSE : BooleanUtils.toBooleanObject(value);
+      if (result == null) {
+        throw new IllegalArgumentException("Not a boolean");
+      }
+      return result.booleanValue();
+    }
+
+    private static long toMillis(TemporalAccessor parsed) {
+      if (parsed.isSupported(ChronoField.INSTANT_SECONDS)) {
+        return Instant.from(parsed).toEpochMilli();
+      }
+      return LocalDate.from(parsed).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+  }
+}
@@ -22,9 +22,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
-import org.elasticsearch.common.text.Text;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 
 import com.adaptris.annotation.AdvancedConfig;
@@ -95,51 +92,41 @@ public class CSVDocumentBuilder extends CSVWithTypeBuilder {
   }
 
   @Override
-  protected CSVDocumentWrapper buildWrapper(CSVParser parser, AdaptrisMessage msg) throws Exception {
-    return new MyWrapper(parser, getTypeBuilder().getType(msg));
+  CSVRowWrapper buildWrapper(CSVRow.Rows rows, AdaptrisMessage msg) throws Exception {
+    return new MyWrapper(rows, getTypeBuilder().getType(msg));
   }
 
-  private class MyWrapper extends CSVDocumentWrapper {
+  private class MyWrapper extends CSVRowWrapper {
     private List<String> headers = new ArrayList<>();
+    private CSVColumnPlan plan;
     private String type;
 
-    public MyWrapper(CSVParser p, String mytype) {
+    public MyWrapper(CSVRow.Rows p, String mytype) {
       super(p);
       if (useHeaderRecord()) {
-        headers = buildHeaders(csvIterator.next());
+        headers = buildHeaders(rows.next());
       }
+      plan = compilePlan(headers, (name) -> true);
       type = mytype;
     }
 
     @Override
-    public DocumentWrapper next() {
-      DocumentWrapper result = null;
-      try {
-        CSVRecord record = csvIterator.next();
-        int idField = 0;
-        if (uniqueIdField() <= record.size()) {
-          idField = uniqueIdField();
-        }
-        else {
-          throw new IllegalArgumentException("unique-id field > number of fields in record");
-        }
-        String uniqueId = record.get(idField);
-        XContentBuilder builder = jsonBuilder();
-        builder.startObject();
-        addTimestamp(builder);
-        for (int i = 0; i < record.size(); i++) {
-          String fieldName = getFieldNameMapper().map(headers.size() > 0 ? headers.get(i) : "field_" + i);
-          String data = record.get(i);
-          builder.field(fieldName, new Text(data));
-        }
-        builder.endObject();
-
-        result = new DocumentWrapper(uniqueId, builder, type);
+    DocumentWrapper build(CSVRow record) throws IOException {
+      int idField = 0;
+      if (uniqueIdField() <= record.size()) {
+        idField = uniqueIdField();
       }
-      catch (IOException e) {
-        throw new RuntimeException(e);
+      else {
+        throw new IllegalArgumentException("unique-id field > number of fields in record");
       }
-      return result;
+      String uniqueId = record.get(idField);
+      XContentBuilder builder = jsonBuilder();
+      builder.startObject();
+      addTimestamp(builder);
+      plan.write(builder, record);
+      builder.endObject();
+
+      return new DocumentWrapper(uniqueId, builder, type);
     }
 
   }
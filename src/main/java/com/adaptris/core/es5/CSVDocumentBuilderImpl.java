@@ -17,11 +17,20 @@
 package com.adaptris.core.es5;
 
 import static org.apache.commons.lang3.StringUtils.defaultIfBlank;
+import static org.apache.commons.lang3.StringUtils.isBlank;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
 
 import javax.validation.Valid;
 import javax.validation.constraints.Min;
@@ -31,6 +40,7 @@ import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.BooleanUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,7 +57,7 @@ import com.adaptris.core.util.Args;
 import com.adaptris.core.util.CloseableIterable;
 import com.adaptris.core.util.ExceptionHelper;
 
-public abstract class CSVDocumentBuilderImpl implements ElasticDocumentBuilder {
+public abstract class CSVDocumentBuilderImpl implements StagedDocumentBuilder {
   @NotNull
   @AutoPopulated
   @Valid
@@ -60,8 +70,25 @@ public abstract class CSVDocumentBuilderImpl implements ElasticDocumentBuilder {
   @NotNull
   @Valid
   private FieldNameMapper fieldNameMapper;
+  @AdvancedConfig
+  @Valid
+  private CSVSchema schema;
+  @AdvancedConfig
+  private String includeColumns;
+  @AdvancedConfig
+  private String excludeColumns;
+  @AdvancedConfig
+  @InputFieldDefault(value = "false")
+  private Boolean unquoted;
+  @AdvancedConfig
+  @Min(1)
+  private Integer parallelChunkSize;
+  @AdvancedConfig
+  @Min(1)
+  private Integer threads;
 
   protected transient Logger log = LoggerFactory.getLogger(this.getClass());
+  private transient ForkJoinPool pool;
 
   public CSVDocumentBuilderImpl() {
     this(new BasicFormatBuilder());
@@ -97,25 +124,64 @@ public abstract class CSVDocumentBuilderImpl implements ElasticDocumentBuilder {
     return getUniqueIdField() != null ? getUniqueIdField().intValue() : 0;
   }
 
-  protected List<String> buildHeaders(CSVRecord hdrRec) {
+  List<String> buildHeaders(CSVRow hdrRec) {
     List<String> result = new ArrayList<>();
-    for (String hdrValue : hdrRec) {
-      result.add(safeName(hdrValue));
+    for (int i = 0; i < hdrRec.size(); i++) {
+      result.add(safeName(hdrRec.get(i)));
     }
     return result;
   }
 
+  /**
+   * @deprecated since 3.10.0, the builders in this package use their own record type so that {@link #setUnquoted(Boolean)} works;
+   *             kept for subclasses that still extend {@link CSVDocumentWrapper}.
+   */
+  @Deprecated
+  protected List<String> buildHeaders(CSVRecord hdrRec) {
+    return buildHeaders(new CSVRow.Record(hdrRec));
+  }
+
   private String safeName(String input) {
     return defaultIfBlank(input, "").trim().replaceAll(" ", "_");
   }
 
+  /**
+   * Work out how each column is written to the document.
+   *
+   * @param headers the headers from {@link #buildHeaders(CSVRow)}, or empty if there is no header record.
+   * @param include whether a column should be written to the document at all.
+   */
+  CSVColumnPlan compilePlan(List<String> headers, Predicate<String> include) {
+    Set<String> included = columnSet(getIncludeColumns());
+    Set<String> excluded = columnSet(getExcludeColumns());
+    return new CSVColumnPlan(headers, getSchema(), getFieldNameMapper(), (index, name) -> {
+      String i = String.valueOf(index);
+      return include.test(name) && (included.isEmpty() || included.contains(name) || included.contains(i))
+          && !excluded.contains(name) && !excluded.contains(i);
+    });
+  }
+
+  private static Set<String> columnSet(String list) {
+    Set<String> result = new HashSet<>();
+    for (String s : defaultIfBlank(list, "").split(",")) {
+      if (!isBlank(s)) {
+        result.add(s.trim());
+      }
+    }
+    return result;
+  }
+
   @Override
   public Iterable<DocumentWrapper> build(AdaptrisMessage msg) throws ProduceException {
-    CSVDocumentWrapper result = null;
+    Iterable<DocumentWrapper> result = null;
     try {
       CSVFormat format = getFormat().createFormat();
-      CSVParser parser = format.parse(msg.getReader());
-      result = buildWrapper(parser, msg);
+      if (getParallelChunkSize() != null) {
+        result = buildParallel(format, msg);
+      }
+      else {
+        result = buildWrapper(rows(format, msg.getReader()), msg);
+      }
     }
     catch (Exception e) {
       throw ExceptionHelper.wrapProduceException(e);
@@ -123,7 +189,85 @@ public abstract class CSVDocumentBuilderImpl implements ElasticDocumentBuilder {
     return result;
   }
 
-  protected abstract CSVDocumentWrapper buildWrapper(CSVParser parser, AdaptrisMessage msg) throws Exception;
+  @Override
+  public CloseableIterable<Callable<DocumentWrapper>> buildTasks(AdaptrisMessage msg) throws ProduceException {
+    Iterable<DocumentWrapper> built = build(msg);
+    if (built instanceof ChunkedDocuments) {
+      // Parsing is already parallel, so there's nothing for ParallelDocumentBuilder to do.
+      ChunkedDocuments docs = (ChunkedDocuments) built;
+      return new MappedIterable<>(docs, docs, (doc) -> new BuiltDocument(doc));
+    }
+    if (built instanceof LegacyWrapper) {
+      // The wrapper builds each document as it iterates, so there's nothing that can be handed off.
+      LegacyWrapper docs = (LegacyWrapper) built;
+      return new MappedIterable<>(docs, docs, (doc) -> new BuiltDocument(doc));
+    }
+    CSVRowWrapper docs = (CSVRowWrapper) built;
+    return new MappedIterable<>(docs.rows, docs.rows, (record) -> () -> docs.build(record));
+  }
+
+  private CSVRow.Rows rows(CSVFormat format, Reader reader) throws IOException {
+    return unquoted() ? new CSVTokenizer(reader, format) : CSVRow.of(format.parse(reader));
+  }
+
+  private ChunkedDocuments buildParallel(CSVFormat format, AdaptrisMessage msg) throws Exception {
+    // The chunks will be closed during the iterator close.
+    CSVChunks chunks = new CSVChunks(msg.getReader(), format, getParallelChunkSize(), unquoted()); // lgtm
+    CSVRowWrapper wrapper = null;
+    try {
+      // Just the first record, so that the wrapper can read the header from it.
+      Reader first = chunks.next(true);
+      wrapper = buildWrapper(rows(format, first != null ? first : new StringReader("")), msg);
+      if (wrapper instanceof LegacyWrapper) {
+        throw new ProduceException(getClass().getSimpleName() + " implements buildWrapper(CSVParser, AdaptrisMessage)"
+            + ", and does not support parallel-chunk-size");
+      }
+    }
+    catch (Exception e) {
+      IOUtils.closeQuietly(wrapper);
+      IOUtils.closeQuietly(chunks);
+      throw e;
+    }
+    ChunkTasks tasks = new ChunkTasks(wrapper, chunks, format);
+    return new ChunkedDocuments(tasks, tasks, pool(), threads() * 2, true);
+  }
+
+  private synchronized ForkJoinPool pool() {
+    if (pool == null) {
+      pool = new ForkJoinPool(threads());
+    }
+    return pool;
+  }
+
+  /**
+   * Create the documents from the records.
+   * <p>
+   * The default implementation calls {@link #buildWrapper(CSVParser, AdaptrisMessage)} for subclasses that still implement
+   * that; which means that they can't use {@link #setUnquoted(Boolean)} or {@link #setParallelChunkSize(Integer)}.
+   * </p>
+   */
+  CSVRowWrapper buildWrapper(CSVRow.Rows rows, AdaptrisMessage msg) throws Exception {
+    if (!(rows instanceof CSVRow.Records)) {
+      throw new ProduceException(getClass().getSimpleName() + " implements buildWrapper(CSVParser, AdaptrisMessage)"
+          + ", and does not support unquoted");
+    }
+    return new LegacyWrapper((CSVRow.Records) rows, buildWrapper(((CSVRow.Records) rows).parser(), msg));
+  }
+
+  /**
+   * Create the documents from the parser.
+   * <p>
+   * This is no longer abstract; subclasses that implement it continue to work, but can't use {@link #setUnquoted(Boolean)} or
+   * {@link #setParallelChunkSize(Integer)}.
+   * </p>
+   *
+   * @deprecated since 3.10.0, the builders in this package no longer implement this so that {@link #setUnquoted(Boolean)} works;
+   *             it is still called for subclasses that do.
+   */
+  @Deprecated
+  protected CSVDocumentWrapper buildWrapper(CSVParser parser, AdaptrisMessage msg) throws Exception {
+    throw new ProduceException(getClass().getSimpleName() + " does not implement buildWrapper(CSVParser, AdaptrisMessage)");
+  }
   
   public FieldNameMapper getFieldNameMapper() {
     return fieldNameMapper;
@@ -133,6 +277,242 @@ public abstract class CSVDocumentBuilderImpl implements ElasticDocumentBuilder {
     this.fieldNameMapper = Args.notNull(fieldNameMapper, "fieldNameMapper");
   }
 
+  public CSVSchema getSchema() {
+    return schema;
+  }
+
+  /**
+   * Set the types of the columns.
+   *
+   * @param s the schema; default is null, which writes every column as a string.
+   */
+  public void setSchema(CSVSchema s) {
+    this.schema = s;
+  }
+
+  public String getIncludeColumns() {
+    return includeColumns;
+  }
+
+  /**
+   * Only write these columns to the document.
+   * <p>
+   * Columns are matched against the header record once per message; a column that isn't written is never converted or
+   * serialized, although it can still be used as the unique-id.
+   * </p>
+   *
+   * @param s a comma separated list of column names (with spaces replaced by underscores) or indexes (the first column is
+   *          '0'); default is null, which writes every column.
+   */
+  public void setIncludeColumns(String s) {
+    this.includeColumns = s;
+  }
+
+  public String getExcludeColumns() {
+    return excludeColumns;
+  }
+
+  /**
+   * Don't write these columns to the document.
+   *
+   * @param s a comma separated list of column names (with spaces replaced by underscores) or indexes (the first column is
+   *          '0'); takes precedence over {@link #setIncludeColumns(String)}.
+   */
+  public void setExcludeColumns(String s) {
+    this.excludeColumns = s;
+  }
+
+  public Boolean getUnquoted() {
+    return unquoted;
+  }
+
+  /**
+   * Whether the CSV is known to have no quoted fields, escapes or comments.
+   * <p>
+   * If true, then a simpler tokenizer is used in place of commons-csv: each line is a record, and each delimiter from the
+   * {@link FormatBuilder} starts a new field. Quote, escape and comment characters are treated like any other character, and
+   * surrounding spaces are never ignored.
+   * </p>
+   *
+   * @param b true if the CSV is unquoted; default is false.
+   */
+  public void setUnquoted(Boolean b) {
+    this.unquoted = b;
+  }
+
+  boolean unquoted() {
+    return BooleanUtils.toBooleanDefaultIfNull(getUnquoted(), false);
+  }
+
+  public Integer getParallelChunkSize() {
+    return parallelChunkSize;
+  }
+
+  /**
+   * Parse the CSV concurrently in chunks of this size.
+   * <p>
+   * The header is read once, and the rest of the CSV is split into chunks of whole records which are parsed concurrently;
+   * documents are still returned in the order they appear in the CSV. A quoted field may span lines, but otherwise records
+   * must be separated by {@code \n} or {@code \r\n} for the CSV to be split.
+   * </p>
+   *
+   * @param i the approximate number of characters in each chunk; default is null, which parses the CSV on a single thread.
+   */
+  public void setParallelChunkSize(Integer i) {
+    this.parallelChunkSize = i;
+  }
+
+  public Integer getThreads() {
+    return threads;
+  }
+
+  /**
+   * Set the number of threads used to parse chunks if {@link #setParallelChunkSize(Integer)} is set.
+   * <p>
+   * Twice this many chunks are read ahead of the producer.
+   * </p>
+   *
+   * @param i the number of threads, defaults to the number of available processors.
+   */
+  public void setThreads(Integer i) {
+    this.threads = i;
+  }
+
+  int threads() {
+    return getThreads() != null ? getThreads().intValue() : Runtime.getRuntime().availableProcessors();
+  }
+
+  private static List<DocumentWrapper> buildAll(CSVRowWrapper wrapper, Iterator<CSVRow> records) throws IOException {
+    List<DocumentWrapper> result = new ArrayList<>();
+    while (records.hasNext()) {
+      result.add(wrapper.build(records.next()));
+    }
+    return result;
+  }
+
+  // The first task builds anything left over from the first record; the rest parse a chunk each.
+  private class ChunkTasks implements ChunkedDocuments.ChunkTasks, Closeable {
+    private final CSVRowWrapper wrapper;
+    private final CSVChunks chunks;
+    private final CSVFormat format;
+    private boolean first = true;
+
+    ChunkTasks(CSVRowWrapper wrapper, CSVChunks chunks, CSVFormat format) {
+      this.wrapper = wrapper;
+      this.chunks = chunks;
+      this.format = format;
+    }
+
+    @Override
+    public Callable<List<DocumentWrapper>> next() throws IOException {
+      if (first) {
+        first = false;
+        return () -> buildAll(wrapper, wrapper.rows);
+      }
+      Reader chunk = chunks.next(false);
+      if (chunk == null) {
+        return null;
+      }
+      return () -> {
+        try (CSVRow.Rows rows = rows(format, chunk)) {
+          return buildAll(wrapper, rows);
+        }
+      };
+    }
+
+    @Override
+    public void close() throws IOException {
+      IOUtils.closeQuietly(wrapper);
+      IOUtils.closeQuietly(chunks);
+    }
+  }
+
+  // Builds the documents from the records, whether they came from commons-csv or CSVTokenizer.
+  abstract class CSVRowWrapper implements CloseableIterable<DocumentWrapper>, Iterator<DocumentWrapper> {
+    final CSVRow.Rows rows;
+    private boolean iteratorInvoked = false;
+
+    CSVRowWrapper(CSVRow.Rows rows) {
+      this.rows = rows;
+    }
+
+    @Override
+    public Iterator<DocumentWrapper> iterator() {
+      if (iteratorInvoked) {
+        throw new IllegalStateException("iterator already invoked");
+      }
+      iteratorInvoked = true;
+      return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return rows.hasNext();
+    }
+
+    @Override
+    public DocumentWrapper next() {
+      try {
+        return build(rows.next());
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    /**
+     * Build the document from the record.
+     * <p>
+     * This may be called from a different thread to the one iterating over the records, implementations should not depend on
+     * any state other than that which was established when the wrapper was constructed.
+     * </p>
+     */
+    abstract DocumentWrapper build(CSVRow record) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+      IOUtils.closeQuietly(rows);
+    }
+  }
+
+  // Adapts a CSVDocumentWrapper from a subclass that implements buildWrapper(CSVParser, AdaptrisMessage).
+  @SuppressWarnings("deprecation")
+  private class LegacyWrapper extends CSVRowWrapper {
+    private final CSVDocumentWrapper wrapper;
+
+    LegacyWrapper(CSVRow.Records rows, CSVDocumentWrapper wrapper) {
+      super(rows);
+      this.wrapper = wrapper;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return wrapper.hasNext();
+    }
+
+    @Override
+    public DocumentWrapper next() {
+      return (DocumentWrapper) wrapper.next();
+    }
+
+    // Only ever called by buildParallel() and buildTasks(), which don't use this wrapper's records.
+    @Override
+    DocumentWrapper build(CSVRow record) throws IOException {
+      throw new IOException(CSVDocumentBuilderImpl.this.getClass().getSimpleName()
+          + " implements buildWrapper(CSVParser, AdaptrisMessage), and builds documents as it iterates");
+    }
+
+    @Override
+    public void close() throws IOException {
+      IOUtils.closeQuietly(wrapper);
+      super.close();
+    }
+  }
+
+  /**
+   * @deprecated since 3.10.0, kept for subclasses that implement {@link CSVDocumentBuilderImpl#buildWrapper(CSVParser, AdaptrisMessage)}.
+   */
+  @Deprecated
   protected abstract class CSVDocumentWrapper implements CloseableIterable<DocumentWrapper>, Iterator {
     protected CSVParser parser;
     protected Iterator<CSVRecord> csvIterator;
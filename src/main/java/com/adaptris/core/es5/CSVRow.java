@@ -0,0 +1,107 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A record from a CSV file, either from commons-csv or from {@link CSVTokenizer}.
+ *
+ */
+interface CSVRow {
+
+  /**
+   * The records from a CSV file.
+   *
+   */
+  interface Rows extends Iterator<CSVRow>, Closeable {
+  }
+
+  int size();
+
+  String get(int i);
+
+  /**
+   * The records from a commons-csv parser.
+   *
+   */
+  static Records of(CSVParser parser) {
+    return new Records(parser, parser.iterator());
+  }
+
+  /**
+   * The records from a commons-csv parser.
+   *
+   */
+  final class Records implements Rows {
+    private final CSVParser parser;
+    private final Iterator<CSVRecord> records;
+
+    // The iterator must be from the parser.
+    Records(CSVParser parser, Iterator<CSVRecord> records) {
+      this.parser = parser;
+      this.records = records;
+    }
+
+    CSVParser parser() {
+      return parser;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return records.hasNext();
+    }
+
+    @Override
+    public CSVRow next() {
+      return new Record(records.next());
+    }
+
+    @Override
+    public void close() throws IOException {
+      IOUtils.closeQuietly(parser);
+    }
+  }
+
+  final class Record implements CSVRow {
+    private final CSVRecord record;
+
+    Record(CSVRecord record) {
+      this.record = record;
+    }
+
+    CSVRecord record() {
+      return record;
+    }
+
+    @Override
+    public int size() {
+      return record.size();
+    }
+
+    @Override
+    public String get(int i) {
+      return record.get(i);
+    }
+  }
+}
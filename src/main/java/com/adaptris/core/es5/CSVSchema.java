@@ -0,0 +1,79 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+
+import com.adaptris.annotation.AutoPopulated;
+import com.adaptris.core.util.Args;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * The types of the columns in a CSV file.
+ *
+ * <p>
+ * Each column is matched against the header record once per message, so rows are written as numbers, booleans and dates without
+ * looking anything up for each field. Columns that aren't listed are written as strings. A value in a typed column that is blank
+ * is omitted from the document; one that can't be converted fails the message.
+ * </p>
+ *
+ * @config es5-csv-schema
+ */
+@XStreamAlias("es5-csv-schema")
+public class CSVSchema {
+
+  @NotNull
+  @AutoPopulated
+  @Valid
+  private List<CSVColumn> columns;
+
+  public CSVSchema() {
+    setColumns(new ArrayList<CSVColumn>());
+  }
+
+  public CSVSchema(CSVColumn... columns) {
+    this();
+    setColumns(new ArrayList<>(Arrays.asList(columns)));
+  }
+
+  public List<CSVColumn> getColumns() {
+    return columns;
+  }
+
+  public void setColumns(List<CSVColumn> list) {
+    this.columns = Args.notNull(list, "columns");
+  }
+
+  /**
+   * The column with this name.
+   *
+   * @return the column, or null if it isn't in the schema.
+   */
+  CSVColumn column(String name) {
+    for (CSVColumn c : getColumns()) {
+      if (c.getName().equals(name)) {
+        return c;
+      }
+    }
+    return null;
+  }
+}
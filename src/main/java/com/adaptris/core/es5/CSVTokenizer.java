@@ -0,0 +1,181 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Splits CSV that has no quoting, escaping or comments into records.
+ *
+ * <p>
+ * Each line (ending in {@code \n} or {@code \r\n}) is a record, and each delimiter starts a new field. The input is read in
+ * blocks, and each record refers to the fields within its block rather than copying them; a field only becomes a
+ * {@link String} when it is asked for, so columns that are never written are never copied. Only the delimiter and whether to
+ * ignore empty lines are taken from the {@link CSVFormat}.
+ * </p>
+ */
+final class CSVTokenizer implements CSVRow.Rows {
+
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  private final Reader in;
+  private final char delimiter;
+  private final boolean ignoreEmptyLines;
+
+  // Never reused, since the records refer to it.
+  private char[] block = new char[0];
+  private int pos = 0;
+  private int len = 0;
+  private boolean eof = false;
+  private CSVRow nextRow;
+
+  CSVTokenizer(Reader in, CSVFormat format) {
+    this.in = in;
+    delimiter = format.getDelimiter();
+    ignoreEmptyLines = format.getIgnoreEmptyLines();
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (nextRow == null) {
+      try {
+        nextRow = readRow();
+      }
+      catch (IOException e) {
+        throw new RuntimeException("Could not read next record", e);
+      }
+    }
+    return nextRow != null;
+  }
+
+  @Override
+  public CSVRow next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    CSVRow result = nextRow;
+    nextRow = null;
+    return result;
+  }
+
+  private CSVRow readRow() throws IOException {
+    while (true) {
+      int end = indexOfNewline();
+      if (end < 0) {
+        if (!eof) {
+          refill();
+          continue;
+        }
+        if (pos >= len) {
+          return null;
+        }
+        end = len;
+      }
+      int start = pos;
+      pos = end + 1;
+      if (end > start && block[end - 1] == '\r') {
+        end--;
+      }
+      if (end == start && ignoreEmptyLines) {
+        continue;
+      }
+      return tokenize(start, end);
+    }
+  }
+
+  private int indexOfNewline() {
+    for (int i = pos; i < len; i++) {
+      if (block[i] == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // Start a new block with whatever is left of the current one.
+  private void refill() throws IOException {
+    int remaining = len - pos;
+    char[] next = new char[Math.max(BLOCK_SIZE, remaining * 2)];
+    System.arraycopy(block, pos, next, 0, remaining);
+    block = next;
+    pos = 0;
+    len = remaining;
+    while (!eof && len < block.length) {
+      int n = in.read(block, len, block.length - len);
+      if (n < 0) {
+        eof = true;
+      }
+      else {
+        len += n;
+      }
+    }
+  }
+
+  private CSVRow tokenize(int start, int end) {
+    int fields = 1;
+    for (int i = start; i < end; i++) {
+      if (block[i] == delimiter) {
+        fields++;
+      }
+    }
+    // Field n is from bounds[n] up to (but excluding) the delimiter at bounds[n + 1] - 1.
+    int[] bounds = new int[fields + 1];
+    int field = 0;
+    bounds[field++] = start;
+    for (int i = start; i < end; i++) {
+      if (block[i] == delimiter) {
+        bounds[field++] = i + 1;
+      }
+    }
+    bounds[field] = end + 1;
+    return new Slices(block, bounds);
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOUtils.closeQuietly(in);
+  }
+
+  private static final class Slices implements CSVRow {
+    private final char[] chars;
+    private final int[] bounds;
+
+    Slices(char[] chars, int[] bounds) {
+      this.chars = chars;
+      this.bounds = bounds;
+    }
+
+    @Override
+    public int size() {
+      return bounds.length - 1;
+    }
+
+    @Override
+    public String get(int i) {
+      return new String(chars, bounds[i], length(i));
+    }
+
+    private int length(int i) {
+      return bounds[i + 1] - 1 - bounds[i];
+    }
+  }
+}
@@ -26,9 +26,6 @@ import java.util.List;
 import java.util.Set;
 
 import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
-import org.elasticsearch.common.text.Text;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 
 import com.adaptris.annotation.AdvancedConfig;
@@ -127,57 +124,45 @@ public class CSVWithGeoPointBuilder extends CSVWithTypeBuilder {
   }
   
   @Override
-  protected CSVDocumentWrapper buildWrapper(CSVParser parser, AdaptrisMessage msg) throws Exception {
+  CSVRowWrapper buildWrapper(CSVRow.Rows rows, AdaptrisMessage msg) throws Exception {
     Set<String> latitudeFieldNames = new HashSet<String>(Arrays.asList(latitudeFieldNames().toLowerCase().split(",")));
     Set<String> longitudeFieldNames = new HashSet<String>(Arrays.asList(longitudeFieldNames().toLowerCase().split(",")));
-    return new MyWrapper(latitudeFieldNames, longitudeFieldNames, parser, getTypeBuilder().getType(msg));
+    return new MyWrapper(latitudeFieldNames, longitudeFieldNames, rows, getTypeBuilder().getType(msg));
   }
 
-  private class MyWrapper extends CSVDocumentWrapper {
+  private class MyWrapper extends CSVRowWrapper {
     private List<String> headers = new ArrayList<>();
     private LatLongHandler latLong;
+    private CSVColumnPlan plan;
     private String type;
 
-    public MyWrapper(Set<String> latitudeFieldNames, Set<String> longitudeFieldNames, CSVParser p, String type) {
+    public MyWrapper(Set<String> latitudeFieldNames, Set<String> longitudeFieldNames, CSVRow.Rows p, String type) {
       super(p);
-      headers = buildHeaders(csvIterator.next());
+      headers = buildHeaders(rows.next());
       latLong = new LatLongHandler(latitudeFieldNames, longitudeFieldNames, headers);
+      plan = compilePlan(headers, (name) -> !latLong.isLatOrLong(name));
       this.type = type;
     }
 
     @Override
-    public DocumentWrapper next() {
-      DocumentWrapper result = null;
-      try {
-        CSVRecord record = csvIterator.next();
-        int idField = 0;
-        if (uniqueIdField() <= record.size()) {
-          idField = uniqueIdField();
-        }
-        else {
-          throw new IllegalArgumentException("unique-id field > number of fields in record");
-        }
-        String uniqueId = record.get(idField);
-        XContentBuilder builder = jsonBuilder();
-        builder.startObject();
-        
-        addTimestamp(builder);
-        
-        for (int i = 0; i < record.size(); i++) {
-          String fieldName = headers.size() > 0 ? headers.get(i) : "field_" + i;
-          String data = record.get(i);
-          if (!latLong.isLatOrLong(fieldName)) {
-            builder.field(getFieldNameMapper().map(fieldName), new Text(data));
-          }
-        }
-        latLong.addLatLong(builder, record);
-        builder.endObject();
-        result = new DocumentWrapper(uniqueId, builder, type);
+    DocumentWrapper build(CSVRow record) throws IOException {
+      int idField = 0;
+      if (uniqueIdField() <= record.size()) {
+        idField = uniqueIdField();
       }
-      catch (IOException e) {
-        throw new RuntimeException(e);
+      else {
+        throw new IllegalArgumentException("unique-id field > number of fields in record");
       }
-      return result;
+      String uniqueId = record.get(idField);
+      XContentBuilder builder = jsonBuilder();
+      builder.startObject();
+      
+      addTimestamp(builder);
+      
+      plan.write(builder, record);
+      latLong.addLatLong(builder, record);
+      builder.endObject();
+      return new DocumentWrapper(uniqueId, builder, type);
     }
   }
   
@@ -201,7 +186,7 @@ public class CSVWithGeoPointBuilder extends CSVWithTypeBuilder {
       }
     }
 
-    void addLatLong(XContentBuilder builder, CSVRecord record) throws IOException {
+    void addLatLong(XContentBuilder builder, CSVRow record) throws IOException {
       if (lat == -1 || lon == -1) {
         return;
       }
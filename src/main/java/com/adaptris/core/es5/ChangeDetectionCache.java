@@ -0,0 +1,257 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.validation.constraints.Min;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MurmurHash3;
+
+import com.adaptris.annotation.InputFieldDefault;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Skips documents whose content has not changed since they were last successfully written.
+ *
+ * <p>
+ * A 64 bit hash of each document's content is remembered against its index, type and id once ElasticSearch has confirmed that
+ * the write succeeded; an {@link DocumentAction#INDEX}, {@link DocumentAction#UPDATE} or {@link DocumentAction#UPSERT} with the
+ * same content as the last successful write of the same kind is then dropped rather than sent. A {@link DocumentAction#DELETE}
+ * or a failed write forgets the document, as do documents without an id.
+ * </p>
+ * <p>
+ * The hashes are held outside the java heap in a fixed size table of {@link #getMaxEntries()} entries (24 bytes each); when it is
+ * full, the least recently used entry among those that share a bucket is evicted. The cache is local to the producer and is
+ * empty when the producer is initialised. It assumes that nothing else is writing to the same documents; if something else
+ * changes a document then an unchanged copy from this producer will not overwrite it.
+ * </p>
+ *
+ * @config es5-bulk-change-detection-cache
+ */
+@XStreamAlias("es5-bulk-change-detection-cache")
+public class ChangeDetectionCache {
+
+  private static final int DEFAULT_MAX_ENTRIES = 1024 * 1024;
+  private static final int WAYS = 8;
+  private static final int ENTRY_SIZE = 24;
+  private static final long SEED = 0x9747b28cL;
+  // Mixed into the content hash of a partial update, so that it never matches a whole document.
+  private static final long PARTIAL = 0x5bd1e9955bd1e995L;
+
+  @Min(WAYS)
+  @InputFieldDefault(value = "1048576")
+  private Integer maxEntries;
+
+  // [key hash][content hash][last used] for each entry; a key hash of 0 is an empty entry.
+  private transient ByteBuffer table;
+  private transient int bucketMask;
+  private transient long clock;
+  private transient long lookups;
+  private transient long hits;
+
+  public ChangeDetectionCache() {
+
+  }
+
+  public ChangeDetectionCache(Integer max) {
+    this();
+    setMaxEntries(max);
+  }
+
+  /**
+   * Allocate the table, discarding anything already in it.
+   *
+   */
+  synchronized void init() {
+    int buckets = Integer.highestOneBit(Math.max(1, maxEntries() / WAYS));
+    table = ByteBuffer.allocateDirect(buckets * WAYS * ENTRY_SIZE);
+    bucketMask = buckets - 1;
+    clock = lookups = hits = 0;
+  }
+
+  /**
+   * Whether the document is the same as the last one successfully written.
+   *
+   */
+  boolean unchanged(String index, DocumentAction action, DocumentWrapper doc) {
+    if (doc.uniqueId() == null) {
+      return false;
+    }
+    long key = keyHash(index, doc.type(), doc.uniqueId());
+    if (action == DocumentAction.DELETE || doc.source() == null) {
+      forget(key);
+      return false;
+    }
+    return matches(key, contentHash(doc.source(), action == DocumentAction.UPDATE));
+  }
+
+  /**
+   * Record the outcome of a request.
+   *
+   * @param request the {@code IndexRequest}, {@code UpdateRequest} or {@code DeleteRequest} from the bulk request.
+   * @param succeeded whether ElasticSearch says that it succeeded.
+   */
+  void written(Object request, boolean succeeded) {
+    if (request instanceof IndexRequest) {
+      IndexRequest r = (IndexRequest) request;
+      update(r.index(), r.type(), r.id(), succeeded ? r.source() : null, false);
+    }
+    else if (request instanceof UpdateRequest) {
+      UpdateRequest r = (UpdateRequest) request;
+      BytesReference source = succeeded && r.doc() != null ? r.doc().source() : null;
+      update(r.index(), r.type(), r.id(), source, r.upsertRequest() == null);
+    }
+    else if (request instanceof DeleteRequest) {
+      DeleteRequest r = (DeleteRequest) request;
+      update(r.index(), r.type(), r.id(), null, false);
+    }
+  }
+
+  private void update(String index, String type, String id, BytesReference source, boolean partial) {
+    if (id == null) {
+      return;
+    }
+    long key = keyHash(index, type, id);
+    if (source == null) {
+      forget(key);
+    }
+    else {
+      put(key, contentHash(source, partial));
+    }
+  }
+
+  private synchronized boolean matches(long key, long content) {
+    lookups++;
+    int entry = find(key);
+    if (entry >= 0 && table.getLong(entry + 8) == content) {
+      table.putLong(entry + 16, ++clock);
+      hits++;
+      return true;
+    }
+    return false;
+  }
+
+  private synchronized void put(long key, long content) {
+    int entry = find(key);
+    if (entry < 0) {
+      entry = victim(key);
+    }
+    table.putLong(entry, key);
+    table.putLong(entry + 8, content);
+    table.putLong(entry + 16, ++clock);
+  }
+
+  private synchronized void forget(long key) {
+    int entry = find(key);
+    if (entry >= 0) {
+      table.putLong(entry, 0);
+    }
+  }
+
+  private int find(long key) {
+    int bucket = bucket(key);
+    for (int i = 0; i < WAYS; i++) {
+      int entry = bucket + i * ENTRY_SIZE;
+      if (table.getLong(entry) == key) {
+        return entry;
+      }
+    }
+    return -1;
+  }
+
+  // An empty entry if there is one, otherwise the least recently used entry in the bucket.
+  private int victim(long key) {
+    int bucket = bucket(key);
+    int oldest = bucket;
+    for (int i = 0; i < WAYS; i++) {
+      int entry = bucket + i * ENTRY_SIZE;
+      if (table.getLong(entry) == 0) {
+        return entry;
+      }
+      if (table.getLong(entry + 16) < table.getLong(oldest + 16)) {
+        oldest = entry;
+      }
+    }
+    return oldest;
+  }
+
+  private int bucket(long key) {
+    return (int) ((key ^ (key >>> 32)) & bucketMask) * WAYS * ENTRY_SIZE;
+  }
+
+  private static long keyHash(String index, String type, String id) {
+    byte[] bytes = (index + '\u0000' + type + '\u0000' + id).getBytes(StandardCharsets.UTF_8);
+    long h = MurmurHash3.hash128(bytes, 0, bytes.length, SEED, new MurmurHash3.Hash128()).h1;
+    // 0 marks an empty entry.
+    return h != 0 ? h : 1;
+  }
+
+  private static long contentHash(BytesReference source, boolean partial) {
+    BytesRef bytes = source.toBytesRef();
+    long h = MurmurHash3.hash128(bytes.bytes, bytes.offset, bytes.length, SEED, new MurmurHash3.Hash128()).h1;
+    return partial ? h ^ PARTIAL : h;
+  }
+
+  /**
+   * The number of documents checked against the cache.
+   *
+   */
+  public synchronized long lookups() {
+    return lookups;
+  }
+
+  /**
+   * The number of documents that were skipped because they were unchanged.
+   *
+   */
+  public synchronized long hits() {
+    return hits;
+  }
+
+  /**
+   * The proportion of documents that were skipped.
+   *
+   * @return the hit rate between 0 and 1, or 0 if nothing has been checked yet.
+   */
+  public synchronized double hitRate() {
+    return lookups > 0 ? (double) hits / lookups : 0;
+  }
+
+  public Integer getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * Set the maximum number of documents to remember.
+   *
+   * @param i the number of documents, default is 1048576 if not specified; rounded down to a power of 2.
+   */
+  public void setMaxEntries(Integer i) {
+    this.maxEntries = i;
+  }
+
+  int maxEntries() {
+    return getMaxEntries() != null ? getMaxEntries().intValue() : DEFAULT_MAX_ENTRIES;
+  }
+}
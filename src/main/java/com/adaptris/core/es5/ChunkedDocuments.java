@@ -0,0 +1,151 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+
+import com.adaptris.core.util.CloseableIterable;
+
+/**
+ * Single use {@link CloseableIterable} that builds the documents from each chunk of a payload concurrently.
+ *
+ * <p>
+ * At most {@code maxPending} chunks are read ahead of the caller. If ordered, the documents from each chunk are returned in the
+ * order that the chunks were read; otherwise in the order that the chunks finish.
+ * </p>
+ */
+final class ChunkedDocuments implements CloseableIterable<DocumentWrapper>, Iterator<DocumentWrapper> {
+
+  /**
+   * Supplies the task that builds the documents for the next chunk.
+   *
+   */
+  @FunctionalInterface
+  interface ChunkTasks {
+    /**
+     * @return the task, or null if there are no more chunks.
+     */
+    Callable<List<DocumentWrapper>> next() throws IOException;
+  }
+
+  private final ChunkTasks tasks;
+  private final Closeable resource;
+  private final ExecutorService workers;
+  private final int maxPending;
+  // Only if unordered.
+  private final CompletionService<List<DocumentWrapper>> completion;
+  // In the order they were submitted.
+  private final Deque<Future<List<DocumentWrapper>>> pending = new ArrayDeque<>();
+  private Iterator<DocumentWrapper> current = Collections.emptyIterator();
+  private boolean exhausted = false;
+  private boolean iteratorInvoked = false;
+
+  ChunkedDocuments(ChunkTasks tasks, Closeable resource, ExecutorService workers, int maxPending, boolean ordered) {
+    this.tasks = tasks;
+    this.resource = resource;
+    this.workers = workers;
+    this.maxPending = maxPending;
+    this.completion = ordered ? null : new ExecutorCompletionService<>(workers);
+  }
+
+  @Override
+  public Iterator<DocumentWrapper> iterator() {
+    if (iteratorInvoked) {
+      throw new IllegalStateException("iterator already invoked");
+    }
+    iteratorInvoked = true;
+    return this;
+  }
+
+  private void fill() throws IOException {
+    while (!exhausted && pending.size() < maxPending) {
+      Callable<List<DocumentWrapper>> task = tasks.next();
+      if (task == null) {
+        exhausted = true;
+      }
+      else {
+        pending.add(completion != null ? completion.submit(task) : workers.submit(task));
+      }
+    }
+  }
+
+  private List<DocumentWrapper> take() throws InterruptedException, ExecutionException {
+    if (completion == null) {
+      return pending.poll().get();
+    }
+    Future<List<DocumentWrapper>> f = completion.take();
+    pending.remove(f);
+    return f.get();
+  }
+
+  @Override
+  public boolean hasNext() {
+    try {
+      while (!current.hasNext()) {
+        fill();
+        if (pending.isEmpty()) {
+          return false;
+        }
+        current = take().iterator();
+      }
+      return true;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException("Could not construct next DocumentWrapper", e.getCause());
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Could not read next chunk", e);
+    }
+  }
+
+  @Override
+  public DocumentWrapper next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return current.next();
+  }
+
+  @Override
+  public void close() throws IOException {
+    pending.forEach(f -> f.cancel(true));
+    pending.clear();
+    IOUtils.closeQuietly(resource);
+  }
+}
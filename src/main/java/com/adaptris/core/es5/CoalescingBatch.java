@@ -0,0 +1,233 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+
+/**
+ * Collects the documents for a single bulk request, merging operations on the same document.
+ *
+ * <p>
+ * Documents are keyed by type and id (the index is the same for every document in the batch); documents without an id are never
+ * merged. When a document is merged, it stays in the position of its first occurrence, so the order of operations on different
+ * documents is preserved. The rules are
+ * <ul>
+ * <li>Anything followed by {@link DocumentAction#DELETE} or {@link DocumentAction#INDEX} becomes the later operation.</li>
+ * <li>{@link DocumentAction#INDEX}, {@link DocumentAction#UPDATE} or {@link DocumentAction#UPSERT} followed by
+ * {@link DocumentAction#UPDATE} keeps the original action, with the update merged into the document in the same way that
+ * ElasticSearch merges a partial document.</li>
+ * <li>{@link DocumentAction#INDEX} or {@link DocumentAction#UPSERT} followed by {@link DocumentAction#UPSERT} keeps the original
+ * action with the documents merged.</li>
+ * <li>{@link DocumentAction#DELETE} followed by {@link DocumentAction#UPSERT} becomes an {@link DocumentAction#INDEX}.</li>
+ * </ul>
+ * Anything else (e.g. an update to a document that has just been deleted, or a change of routing) is not merged, and is sent as
+ * a separate operation.
+ * </p>
+ */
+class CoalescingBatch {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final List<Entry> entries = new ArrayList<>();
+
+  // Open addressing (linear probing) from key -> position in entries, avoids a node object per document.
+  private String[] keys = new String[INITIAL_CAPACITY];
+  private int[] positions = new int[INITIAL_CAPACITY];
+  private int keyCount = 0;
+  // Reserved from the memory budget for the operations in the batch, including those that have been merged away.
+  private long reservedBytes = 0;
+
+  /**
+   * Add an operation to the batch, merging it with any previous operation on the same document.
+   *
+   */
+  void add(DocumentAction action, DocumentWrapper doc) throws IOException {
+    add(action, doc, 0);
+  }
+
+  /**
+   * Add an operation whose size has been reserved from the memory budget.
+   *
+   */
+  void add(DocumentAction action, DocumentWrapper doc, long reserved) throws IOException {
+    reservedBytes += reserved;
+    if (doc.uniqueId() == null) {
+      append(null, action, doc);
+      return;
+    }
+    String key = doc.type() + '\u0000' + doc.uniqueId();
+    int slot = find(key);
+    if (keys[slot] != null) {
+      int pos = positions[slot];
+      Entry previous = entries.get(pos);
+      if (previous.merge(action, doc)) {
+        return;
+      }
+      positions[slot] = entries.size();
+      entries.add(new Entry(action, doc));
+      return;
+    }
+    append(key, action, doc);
+  }
+
+  private void append(String key, DocumentAction action, DocumentWrapper doc) {
+    if (key != null) {
+      if ((keyCount + 1) * 2 > keys.length) {
+        resize();
+      }
+      int slot = find(key);
+      keys[slot] = key;
+      positions[slot] = entries.size();
+      keyCount++;
+    }
+    entries.add(new Entry(action, doc));
+  }
+
+  /**
+   * The number of operations that will be sent.
+   *
+   */
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * The bytes reserved for the operations added since the batch was last drained.
+   *
+   */
+  long reservedBytes() {
+    return reservedBytes;
+  }
+
+  /**
+   * Visit the operations in order, and clear the batch.
+   *
+   */
+  void drain(Visitor visitor) throws Exception {
+    try {
+      for (Entry e : entries) {
+        visitor.visit(e.action, e.document());
+      }
+    }
+    finally {
+      entries.clear();
+      Arrays.fill(keys, null);
+      keyCount = 0;
+      reservedBytes = 0;
+    }
+  }
+
+  private int find(String key) {
+    int mask = keys.length - 1;
+    int h = key.hashCode();
+    int slot = (h ^ (h >>> 16)) & mask;
+    while (keys[slot] != null && !keys[slot].equals(key)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize() {
+    String[] oldKeys = keys;
+    int[] oldPositions = positions;
+    keys = new String[oldKeys.length * 2];
+    positions = new int[oldKeys.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null) {
+        int slot = find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        positions[slot] = oldPositions[i];
+      }
+    }
+  }
+
+  @FunctionalInterface
+  interface Visitor {
+    void visit(DocumentAction action, DocumentWrapper doc) throws Exception;
+  }
+
+  private static class Entry {
+    private DocumentAction action;
+    private DocumentWrapper doc;
+    // The merged source, only parsed if a merge actually happens.
+    private Map<String, Object> source;
+
+    Entry(DocumentAction action, DocumentWrapper doc) {
+      this.action = action;
+      this.doc = doc;
+    }
+
+    boolean merge(DocumentAction next, DocumentWrapper nextDoc) {
+      if (!Objects.equals(doc.routing(), nextDoc.routing()) || !Objects.equals(doc.parent(), nextDoc.parent())) {
+        return false;
+      }
+      switch (next) {
+      case DELETE:
+      case INDEX:
+        replace(next, nextDoc);
+        return true;
+      case UPDATE:
+        if (action == DocumentAction.DELETE) {
+          return false;
+        }
+        mergeSource(nextDoc);
+        return true;
+      case UPSERT:
+        if (action == DocumentAction.DELETE) {
+          replace(DocumentAction.INDEX, nextDoc);
+          return true;
+        }
+        if (action == DocumentAction.UPDATE) {
+          return false;
+        }
+        mergeSource(nextDoc);
+        return true;
+      default:
+        return false;
+      }
+    }
+
+    private void replace(DocumentAction next, DocumentWrapper nextDoc) {
+      action = next;
+      doc = nextDoc;
+      source = null;
+    }
+
+    private void mergeSource(DocumentWrapper nextDoc) {
+      if (source == null) {
+        source = XContentHelper.convertToMap(doc.source(), true).v2();
+      }
+      XContentHelper.update(source, XContentHelper.convertToMap(nextDoc.source(), true).v2(), false);
+    }
+
+    DocumentWrapper document() throws IOException {
+      if (source == null) {
+        return doc;
+      }
+      return new DocumentWrapper(doc.uniqueId(), XContentFactory.jsonBuilder().map(source), doc.type())
+          .withRouting(doc.routing()).withParent(doc.parent()).withAction(action);
+    }
+  }
+}
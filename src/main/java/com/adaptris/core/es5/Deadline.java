@@ -0,0 +1,99 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.support.replication.ReplicationRequest;
+import org.elasticsearch.common.unit.TimeValue;
+
+import com.adaptris.core.ProduceException;
+
+/**
+ * The point in time by which a message must have been produced.
+ *
+ */
+class Deadline {
+
+  /**
+   * Passed as the timeout where there is no deadline.
+   */
+  static final long NONE = -1;
+
+  private final long timeoutMs;
+  private final long expiresAt;
+
+  private Deadline(long timeoutMs) {
+    this.timeoutMs = timeoutMs;
+    expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+  }
+
+  /**
+   * Create a deadline.
+   *
+   * @param timeoutMs the timeout from now; if negative then there is no deadline.
+   */
+  static Deadline after(long timeoutMs) {
+    return new Deadline(timeoutMs);
+  }
+
+  boolean bounded() {
+    return timeoutMs >= 0;
+  }
+
+  /**
+   * The time remaining, which may be zero or negative if the deadline has passed; {@link Long#MAX_VALUE} if there is no deadline.
+   *
+   */
+  long remainingMs() {
+    if (!bounded()) {
+      return Long.MAX_VALUE;
+    }
+    return TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime());
+  }
+
+  boolean expired() {
+    return remainingMs() <= 0;
+  }
+
+  /**
+   * The time remaining, suitable for passing to ElasticSearch.
+   *
+   * @throws ProduceException if the deadline has passed.
+   */
+  TimeValue remaining() throws ProduceException {
+    long remaining = remainingMs();
+    if (remaining <= 0) {
+      throw timedOut();
+    }
+    return TimeValue.timeValueMillis(remaining);
+  }
+
+  /**
+   * The timeout to set on a request sent to ElasticSearch; the time remaining, or ElasticSearch's own default if there is no
+   * deadline.
+   *
+   * @throws ProduceException if the deadline has passed.
+   */
+  TimeValue requestTimeout() throws ProduceException {
+    return bounded() ? remaining() : ReplicationRequest.DEFAULT_TIMEOUT;
+  }
+
+  ProduceException timedOut() {
+    return new ProduceException("Timed out; failed to produce within " + timeoutMs + "ms");
+  }
+}
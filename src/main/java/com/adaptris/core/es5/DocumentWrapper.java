@@ -16,8 +16,23 @@
 
 package com.adaptris.core.es5;
 
-import org.elasticsearch.common.xcontent.XContentBuilder;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * A document to be sent to ElasticSearch.
+ * <p>
+ * The content is either an {@link XContentBuilder}, or the raw JSON bytes taken directly from the message; use {@link #source()}
+ * to get the bytes in either case without converting them.
+ * </p>
+ */
 public class DocumentWrapper {
 
   private final String uniqueId;
@@ -25,11 +40,27 @@ public class DocumentWrapper {
   private String parent;
   private DocumentAction action;
   private final String type;
-  private final XContentBuilder content;
+  private XContentBuilder content;
+  private final BytesReference source;
   
   public DocumentWrapper(String uid, XContentBuilder content, String type) {
     this.uniqueId = uid;
     this.content = content;
+    this.source = null;
+    this.type = type;
+  }
+
+  /**
+   * Create a document from raw JSON.
+   * 
+   * @param uid the id.
+   * @param source the document as UTF-8 encoded JSON, which is used as-is.
+   * @param type the type.
+   */
+  public DocumentWrapper(String uid, BytesReference source, String type) {
+    this.uniqueId = uid;
+    this.content = null;
+    this.source = source;
     this.type = type;
   }
   
@@ -37,10 +68,41 @@ public class DocumentWrapper {
     return type;
   }
 
+  /**
+   * The document as an {@link XContentBuilder}.
+   * <p>
+   * If the document was created from raw JSON then this parses it, so prefer {@link #source()}.
+   * </p>
+   */
   public XContentBuilder content() {
+    if (content == null && source != null) {
+      try (XContentParser p = XContentFactory.xContent(XContentType.JSON).createParser(NamedXContentRegistry.EMPTY, source)) {
+        content = XContentFactory.jsonBuilder().copyCurrentStructure(p);
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
     return content;
   }
 
+  /**
+   * The document as bytes.
+   * 
+   * @return the raw JSON if that's what the document was created from, otherwise the bytes from the {@link XContentBuilder}.
+   */
+  public BytesReference source() {
+    return source != null ? source : content != null ? content.bytes() : null;
+  }
+
+  /**
+   * Whether the document was created from raw JSON.
+   * 
+   */
+  public boolean isRaw() {
+    return source != null;
+  }
+
   public String uniqueId() {
     return uniqueId;
   }
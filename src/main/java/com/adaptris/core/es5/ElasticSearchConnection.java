@@ -16,11 +16,14 @@
 
 package com.adaptris.core.es5;
 
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import javax.mail.URLName;
+import javax.management.JMException;
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
@@ -37,12 +40,20 @@ import com.adaptris.annotation.InputFieldDefault;
 import com.adaptris.core.CoreException;
 import com.adaptris.core.NoOpConnection;
 import com.adaptris.core.util.Args;
+import com.adaptris.core.util.ExceptionHelper;
 import com.adaptris.util.KeyValuePair;
 import com.adaptris.util.KeyValuePairSet;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 import com.thoughtworks.xstream.annotations.XStreamImplicit;
 
 /**
+ * 
+ * <p>
+ * If a {@link BulkMemoryBudget} is configured, then it limits the amount of document data that can be pending in bulk requests
+ * across all the producers using this connection; {@link #pendingBulkBytes()} reports how much is currently in use. If the
+ * connection has a unique-id, then this is also available via JMX as the {@code PendingBulkBytes} attribute of
+ * {@code com.adaptris:type=ElasticSearchBulkMemoryBudget,id=<unique-id>}.
+ * </p>
  * 
  * @config es5-connection
  */
@@ -51,7 +62,7 @@ import com.thoughtworks.xstream.annotations.XStreamImplicit;
 @ComponentProfile(summary = "Connection to an ElasticSearch 5.x instance", tag = "connections,elastic")
 @DisplayOrder(order =
 {
-    "transport-url", "settings"
+    "transport-url", "settings", "bulkMemoryBudget"
 })
 public class ElasticSearchConnection extends NoOpConnection {
 
@@ -80,7 +91,12 @@ public class ElasticSearchConnection extends NoOpConnection {
   @InputFieldDefault(value = "true")
   private Boolean sharedTransportClient;
 
+  @Valid
+  @AdvancedConfig
+  private BulkMemoryBudget bulkMemoryBudget;
+
   private transient TransportClient transportClient = null;
+  private transient BulkMemoryBudgetGauge budgetGauge = null;
 
   public ElasticSearchConnection() {
     setTransportUrls(new ArrayList<String>());
@@ -99,10 +115,29 @@ public class ElasticSearchConnection extends NoOpConnection {
     super.closeConnection();
     IOUtils.closeQuietly(transportClient);
     transportClient = null;
+    if (budgetGauge != null) {
+      try {
+        budgetGauge.unregister();
+      }
+      catch (JMException e) {
+        log.warn("Failed to unregister {}", budgetGauge.objectName(), e);
+      }
+      budgetGauge = null;
+    }
   }
 
   @Override
   protected void initConnection() throws CoreException {
+    if (getBulkMemoryBudget() != null && !isBlank(getUniqueId())) {
+      try {
+        BulkMemoryBudgetGauge gauge = new BulkMemoryBudgetGauge(getUniqueId(), getBulkMemoryBudget());
+        gauge.register();
+        budgetGauge = gauge;
+      }
+      catch (JMException e) {
+        throw ExceptionHelper.wrapCoreException(e);
+      }
+    }
   }
 
   protected synchronized TransportClient createClient() throws CoreException {
@@ -220,4 +255,26 @@ public class ElasticSearchConnection extends NoOpConnection {
   private boolean sharedTransportClient() {
     return BooleanUtils.toBooleanDefaultIfNull(getSharedTransportClient(), true);
   }
+
+  public BulkMemoryBudget getBulkMemoryBudget() {
+    return bulkMemoryBudget;
+  }
+
+  /**
+   * Limit the amount of data pending in bulk requests across all producers using this connection.
+   * 
+   * @param b the budget; default is null, which means that there is no limit.
+   */
+  public void setBulkMemoryBudget(BulkMemoryBudget b) {
+    this.bulkMemoryBudget = b;
+  }
+
+  /**
+   * The number of bytes currently reserved by bulk requests using this connection.
+   * 
+   * @return the bytes in use, or 0 if there is no {@link BulkMemoryBudget}.
+   */
+  public long pendingBulkBytes() {
+    return getBulkMemoryBudget() != null ? getBulkMemoryBudget().usedBytes() : 0;
+  }
 }
@@ -0,0 +1,280 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+
+import com.adaptris.core.ProduceException;
+
+/**
+ * Tracks bulk requests that have been executed asynchronously, limiting the number that can be outstanding at any one time.
+ * <p>
+ * ElasticSearch has no way of cancelling a bulk request that has been sent; cancelling a request here means that we stop waiting
+ * for it and ignore the response when it does arrive.
+ * </p>
+ */
+class InFlightBulkRequests implements AutoCloseable {
+
+  private final int maxInFlight;
+  private final Semaphore permits;
+  private final Deadline deadline;
+  private final List<Exception> failures = new CopyOnWriteArrayList<>();
+  private final Set<Pending> outstanding = ConcurrentHashMap.newKeySet();
+  private final Consumer<BulkRequestBuilder> onComplete;
+  private transient ScheduledExecutorService retryScheduler;
+
+  /**
+   * 
+   * @param max the maximum number of outstanding requests.
+   * @param deadline the deadline for all the requests; anything still outstanding at the deadline is cancelled.
+   * @param onComplete called with the original request once it (and any retries) have completed, successfully or not.
+   */
+  InFlightBulkRequests(int max, Deadline deadline, Consumer<BulkRequestBuilder> onComplete) {
+    maxInFlight = Math.max(1, max);
+    permits = new Semaphore(maxInFlight);
+    this.deadline = deadline;
+    this.onComplete = onComplete;
+  }
+
+  /**
+   * Execute the request, blocking until there is capacity to do so.
+   *
+   * @param request the request.
+   * @param handler what to do with the response; this will be called on an elasticsearch thread.
+   * @throws ProduceException if there was no capacity before the deadline.
+   */
+  void execute(BulkRequestBuilder request, ResponseHandler handler) throws InterruptedException, ProduceException {
+    if (!permits.tryAcquire(Math.max(0, deadline.remainingMs()), TimeUnit.MILLISECONDS)) {
+      onComplete.accept(request);
+      throw deadline.timedOut();
+    }
+    Pending pending = new Pending(request);
+    outstanding.add(pending);
+    try {
+      request.setTimeout(deadline.requestTimeout());
+      execute(pending, request, handler, 0);
+    }
+    catch (ProduceException | RuntimeException e) {
+      completed(pending);
+      throw e;
+    }
+  }
+
+  private void execute(Pending pending, BulkRequestBuilder request, ResponseHandler handler, int attempt) {
+    final long started = System.nanoTime();
+    ListenableActionFuture<BulkResponse> future = request.execute();
+    pending.current = future;
+    future.addListener(new ActionListener<BulkResponse>() {
+      @Override
+      public void onResponse(BulkResponse response) {
+        if (pending.isFinished()) {
+          // cancelled; nobody is interested any more.
+          return;
+        }
+        try {
+          long roundTrip = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+          Retry retry = handler.handle(request, response, attempt, roundTrip);
+          if (retry != null) {
+            // keep hold of the permit, the batch isn't finished until the retry is.
+            scheduler().schedule(() -> retry(pending, retry, handler, attempt + 1), retry.delayMs(), TimeUnit.MILLISECONDS);
+            return;
+          }
+          completed(pending);
+        }
+        catch (Exception e) {
+          onFailure(e);
+        }
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        if (pending.isFinished()) {
+          return;
+        }
+        failures.add(e);
+        completed(pending);
+      }
+    });
+  }
+
+  private void retry(Pending pending, Retry retry, ResponseHandler handler, int attempt) {
+    if (pending.isFinished()) {
+      return;
+    }
+    try {
+      retry.request().setTimeout(deadline.requestTimeout());
+      execute(pending, retry.request(), handler, attempt);
+    }
+    catch (ProduceException | RuntimeException e) {
+      failures.add(e);
+      completed(pending);
+    }
+  }
+
+  // Only ever does anything once for each request.
+  private void completed(Pending pending) {
+    if (pending.finished.compareAndSet(false, true)) {
+      outstanding.remove(pending);
+      try {
+        onComplete.accept(pending.original);
+      }
+      finally {
+        permits.release();
+      }
+    }
+  }
+
+  private void cancelAll() {
+    for (Pending pending : outstanding) {
+      ActionFuture<BulkResponse> current = pending.current;
+      if (current != null) {
+        current.cancel(true);
+      }
+      if (!pending.isFinished()) {
+        failures.add(deadline.timedOut());
+      }
+      completed(pending);
+    }
+  }
+
+  private synchronized ScheduledExecutorService scheduler() {
+    if (retryScheduler == null) {
+      retryScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+    return retryScheduler;
+  }
+
+  Deadline deadline() {
+    return deadline;
+  }
+
+  boolean hasFailures() {
+    return !failures.isEmpty();
+  }
+
+  /**
+   * Wait for all outstanding requests to complete, cancelling them if they don't complete before the deadline.
+   *
+   * @throws ProduceException if any of the requests failed, the first failure is the cause, any subsequent failures are
+   *           suppressed.
+   */
+  void await() throws InterruptedException, ProduceException {
+    waitForOutstanding();
+    if (hasFailures()) {
+      List<Exception> all = new ArrayList<>(failures);
+      ProduceException e = new ProduceException(all.get(0).getMessage(), all.get(0));
+      all.stream().skip(1).forEach(f -> e.addSuppressed(f));
+      throw e;
+    }
+  }
+
+  private void waitForOutstanding() throws InterruptedException {
+    if (!permits.tryAcquire(maxInFlight, Math.max(0, deadline.remainingMs()), TimeUnit.MILLISECONDS)) {
+      cancelAll();
+      permits.acquire(maxInFlight);
+    }
+    permits.release(maxInFlight);
+  }
+
+  /**
+   * Wait for any outstanding requests (up to the deadline), discarding any failures.
+   *
+   */
+  @Override
+  public void close() {
+    try {
+      waitForOutstanding();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      cancelAll();
+    }
+    finally {
+      synchronized (this) {
+        if (retryScheduler != null) {
+          retryScheduler.shutdownNow();
+        }
+      }
+    }
+  }
+
+  private static class Pending {
+    private final BulkRequestBuilder original;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private volatile ActionFuture<BulkResponse> current;
+
+    Pending(BulkRequestBuilder original) {
+      this.original = original;
+    }
+
+    boolean isFinished() {
+      return finished.get();
+    }
+  }
+
+  @FunctionalInterface
+  interface ResponseHandler {
+    /**
+     * Handle the response.
+     *
+     * @param request the request that was sent.
+     * @param response the response.
+     * @param attempt the attempt number, 0 for the initial request.
+     * @param roundTripMs the time between sending the request and receiving the response.
+     * @return a request that should be retried, or null if the batch is complete.
+     */
+    Retry handle(BulkRequestBuilder request, BulkResponse response, int attempt, long roundTripMs) throws Exception;
+  }
+
+  /**
+   * A subset of a bulk request that should be retried after a delay.
+   *
+   */
+  static final class Retry {
+    private final BulkRequestBuilder request;
+    private final long delayMs;
+
+    Retry(BulkRequestBuilder request, long delayMs) {
+      this.request = request;
+      this.delayMs = delayMs;
+    }
+
+    BulkRequestBuilder request() {
+      return request;
+    }
+
+    long delayMs() {
+      return delayMs;
+    }
+  }
+}
@@ -20,19 +20,36 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.BooleanUtils;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.adaptris.annotation.AdvancedConfig;
 import com.adaptris.annotation.InputFieldDefault;
 import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.ComponentLifecycleExtension;
+import com.adaptris.core.CoreException;
 import com.adaptris.core.ProduceException;
 import com.adaptris.core.es5.types.TypeBuilder;
 import com.adaptris.core.util.CloseableIterable;
@@ -40,7 +57,7 @@ import com.adaptris.core.util.ExceptionHelper;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonParser.Feature;
 import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.jayway.jsonpath.Configuration;
 import com.jayway.jsonpath.JsonPath;
@@ -58,15 +75,35 @@ import com.thoughtworks.xstream.annotations.XStreamAlias;
  * The unique-id for each document created is derived from the {@link JsonArrayDocumentBuilder#getUniqueIdJsonPath()} which defaults
  * to {@code $.uniqueid}
  * </p>
+ * <p>
+ * Each object in the array is copied directly from the parser into the document in a single pass; simple paths such as
+ * {@code $.uniqueid} or {@code $.a.b} for the unique-id, routing and parent are extracted as the object is copied. Any other path
+ * (e.g. one that uses array indexes or filters) means that the document is parsed again so that the path can be evaluated. When
+ * used with {@link ParallelDocumentBuilder} only the evaluation of those other paths happens in parallel.
+ * </p>
+ * <p>
+ * If {@link #setAddTimestampField(String)} is specified, then the timestamp is added as the last field of each document, replacing
+ * any existing field of the same name.
+ * </p>
+ * <p>
+ * If {@link #setRawSource(Boolean)} is true, then the bytes of each object are used as the document without being copied into a
+ * new document at all; only the unique-id, routing and parent are extracted.
+ * </p>
  * 
  * @config es5-json-array-document-builder
  *
  */
 @XStreamAlias("es5-json-array-document-builder")
-public class JsonArrayDocumentBuilder extends JsonDocumentBuilderImpl {
+public class JsonArrayDocumentBuilder extends JsonDocumentBuilderImpl
+    implements StagedDocumentBuilder, ComponentLifecycleExtension {
 
   private static final int DEFAULT_BUFFER_SIZE = 8192;
   private static final String UID_PATH = "$.uniqueid";
+  // Immutable, so shared by everything.
+  private static final Configuration JSON_CONFIG = new Configuration.ConfigurationBuilder()
+      .jsonProvider(new JsonSmartJsonProvider()).mappingProvider(new JacksonMappingProvider())
+      .options(EnumSet.noneOf(Option.class)).build();
+  private static final Pattern SIMPLE_PATH = Pattern.compile("^\\$(\\.[A-Za-z0-9_\\-]+)+$");
 
   private transient Logger log = LoggerFactory.getLogger(this.getClass());
 
@@ -82,6 +119,12 @@ public class JsonArrayDocumentBuilder extends JsonDocumentBuilderImpl {
   private String routingJsonPath;
   @AdvancedConfig
   private String parentJsonPath;
+  @AdvancedConfig
+  @InputFieldDefault(value = "false")
+  private Boolean rawSource;
+
+  // uid, routing, parent; compiled once.
+  private transient volatile JsonPath[] compiledPaths;
 
   public JsonArrayDocumentBuilder() {
 
@@ -92,24 +135,105 @@ public class JsonArrayDocumentBuilder extends JsonDocumentBuilderImpl {
     setTypeBuilder(b);
   }
 
+  /**
+   * Compile the configured json paths, so that an invalid path fails early.
+   *
+   */
+  @Override
+  public void prepare() throws CoreException {
+    try {
+      compiledPaths = compilePaths();
+    }
+    catch (RuntimeException e) {
+      throw ExceptionHelper.wrapCoreException(e);
+    }
+  }
+
+  private JsonPath[] compiledPaths() {
+    JsonPath[] result = compiledPaths;
+    if (result == null) {
+      // Not prepared, compile it on first use instead.
+      result = compiledPaths = compilePaths();
+    }
+    return result;
+  }
+
+  private JsonPath[] compilePaths() {
+    return new JsonPath[] { compile(uidPath()), compile(getRoutingJsonPath()), compile(getParentJsonPath()) };
+  }
+
+  private static JsonPath compile(String path) {
+    return isBlank(path) ? null : JsonPath.compile(path);
+  }
+
   @Override
   public Iterable<DocumentWrapper> build(AdaptrisMessage msg) throws ProduceException {
+    return documents(readObjects(msg));
+  }
+
+  private MappedIterable<ParsedObject, DocumentWrapper> documents(JsonObjects objects) {
+    return new MappedIterable<>(objects, objects, (node) -> {
+      try {
+        return objects.toDocument(node);
+      }
+      catch (IOException e) {
+        log.warn("Could not construct next DocumentWrapper; badly formed JSON?", e);
+        throw new RuntimeException("Could not construct next DocumentWrapper", e);
+      }
+    });
+  }
+
+  @Override
+  public CloseableIterable<Callable<DocumentWrapper>> buildTasks(AdaptrisMessage msg) throws ProduceException {
+    JsonObjects objects = readObjects(msg);
+    if (!objects.needsJsonPath()) {
+      // Everything has already been done while reading the object.
+      MappedIterable<ParsedObject, DocumentWrapper> docs = documents(objects);
+      return new MappedIterable<>(docs, docs, (doc) -> new BuiltDocument(doc));
+    }
+    return new MappedIterable<>(objects, objects, (node) -> () -> objects.toDocument(node));
+  }
+
+  /**
+   * Read the top level objects from UTF-8 encoded JSON.
+   *
+   */
+  JsonObjects readObjects(InputStream in, String type) throws IOException {
+    RecordingInputStream recording = rawSource() ? new RecordingInputStream(in, bufferSize()) : null;
+    JsonParser parser = mapper().getFactory().createParser(recording != null ? recording : in)
+        .configure(Feature.AUTO_CLOSE_SOURCE, true);
+    return new JsonObjects(parser, type, recording);
+  }
+
+  private JsonObjects readObjects(AdaptrisMessage msg) throws ProduceException {
     try {
       String type = getTypeBuilder().getType(msg);
-      ObjectMapper mapper = new ObjectMapper();
-      // The buffered read will be closed during the iterator close.
-      BufferedReader buf = new BufferedReader(msg.getReader(), bufferSize()); // lgtm
-      JsonParser parser = mapper.getFactory().createParser(buf).configure(Feature.AUTO_CLOSE_SOURCE, true);
+      RecordingInputStream recording = null;
+      JsonParser parser = null;
+      if (rawSource() && isUtf8(msg)) {
+        // Will be closed during the iterator close.
+        recording = new RecordingInputStream(msg.getInputStream(), bufferSize()); // lgtm
+        parser = mapper().getFactory().createParser(recording).configure(Feature.AUTO_CLOSE_SOURCE, true);
+      }
+      else {
+        // The buffered read will be closed during the iterator close.
+        BufferedReader buf = new BufferedReader(msg.getReader(), bufferSize()); // lgtm
+        parser = mapper().getFactory().createParser(buf).configure(Feature.AUTO_CLOSE_SOURCE, true);
+      }
       if (parser.nextToken() != JsonToken.START_ARRAY) {
         throw new ProduceException("Expected an array");
       }
-      return new JsonDocumentWrapper(mapper, parser, type);
+      return new JsonObjects(parser, type, recording);
     }
     catch (Exception e) {
       throw ExceptionHelper.wrapProduceException(e);
     }
   }
 
+  private static boolean isUtf8(AdaptrisMessage msg) {
+    return isBlank(msg.getContentEncoding()) || Charset.forName(msg.getContentEncoding()).equals(StandardCharsets.UTF_8);
+  }
+
   public String getAddTimestampField() {
     return addTimestampField;
   }
@@ -162,6 +286,7 @@ public class JsonArrayDocumentBuilder extends JsonDocumentBuilderImpl {
    */
   public void setUniqueIdJsonPath(String s) {
     this.uniqueIdJsonPath = s;
+    compiledPaths = null;
   }
 
   public String getRoutingJsonPath() {
@@ -175,6 +300,7 @@ public class JsonArrayDocumentBuilder extends JsonDocumentBuilderImpl {
    */
   public void setRoutingJsonPath(String path) {
     this.routingJsonPath = path;
+    compiledPaths = null;
   }
 
   public String getParentJsonPath() {
@@ -188,6 +314,29 @@ public class JsonArrayDocumentBuilder extends JsonDocumentBuilderImpl {
    */
   public void setParentJsonPath(String path) {
     this.parentJsonPath = path;
+    compiledPaths = null;
+  }
+
+  public Boolean getRawSource() {
+    return rawSource;
+  }
+
+  /**
+   * Use the bytes of each object in the payload as the document.
+   * <p>
+   * If true, then each object is sliced out of the payload as UTF-8 bytes and sent to ElasticSearch as-is, rather than being
+   * copied into a new document. The timestamp (if configured) is spliced into the end of each object. This only applies if the
+   * message has no content encoding, or it is UTF-8.
+   * </p>
+   * 
+   * @param b true to use the raw bytes; default is false if not specified.
+   */
+  public void setRawSource(Boolean b) {
+    this.rawSource = b;
+  }
+
+  boolean rawSource() {
+    return BooleanUtils.toBooleanDefaultIfNull(getRawSource(), false);
   }
 
   String uidPath() {
@@ -195,53 +344,316 @@ public class JsonArrayDocumentBuilder extends JsonDocumentBuilderImpl {
   }
 
 
-  private class JsonDocumentWrapper implements CloseableIterable<DocumentWrapper>, Iterator<DocumentWrapper> {
-    private String type;
-    private final JsonParser parser;
-    private final ObjectMapper mapper;
+  // Each object in the array, copied straight from the parser into its content with simple paths extracted on the way.
+  static class ParsedObject {
+    private final XContentBuilder content;
+    // If raw, the bytes from the message instead of the content.
+    private BytesReference source;
+    private boolean hasTimestamp;
+    private final String[] values = new String[3];
+    private final boolean[] found = new boolean[3];
 
-    private DocumentWrapper nextMessage;
-    private transient Configuration jsonConfig = new Configuration.ConfigurationBuilder().jsonProvider(new JsonSmartJsonProvider())
-        .mappingProvider(new JacksonMappingProvider()).options(EnumSet.noneOf(Option.class)).build();
-    private boolean iteratorInvoked = false;
+    ParsedObject(XContentBuilder content) {
+      this.content = content;
+    }
+
+    String json() throws IOException {
+      return source != null ? source.utf8ToString() : content.string();
+    }
+  }
+
+  // Keeps the bytes that have been read by the parser, so that each object can be sliced out of the payload.
+  private static class RecordingInputStream extends FilterInputStream {
+    private byte[] buf;
+    private int count = 0;
+    // The offset in the payload of buf[0].
+    private long base = 0;
+
+    RecordingInputStream(InputStream in, int size) {
+      super(in);
+      buf = new byte[Math.max(size, 1024)];
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        record(new byte[] { (byte) b }, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        record(b, off, n);
+      }
+      return n;
+    }
 
-    public JsonDocumentWrapper(ObjectMapper mapper, JsonParser parser, String type) {
-      this.mapper = mapper;
+    @Override
+    public long skip(long n) throws IOException {
+      throw new IOException("skip not supported");
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void record(byte[] b, int off, int len) {
+      if (count + len > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + len));
+      }
+      System.arraycopy(b, off, buf, count, len);
+      count += len;
+    }
+
+    // Forget everything before the offset.
+    void discard(long offset) {
+      int n = (int) (offset - base);
+      System.arraycopy(buf, n, buf, 0, count - n);
+      count -= n;
+      base = offset;
+    }
+
+    // Copy [start, end) with spare bytes at the end.
+    byte[] copy(long start, long end, int spare) {
+      int len = (int) (end - start);
+      byte[] result = new byte[len + spare];
+      System.arraycopy(buf, (int) (start - base), result, 0, len);
+      return result;
+    }
+  }
+
+  // Reads each object in the array; anything that needs a full JsonPath evaluation is done separately.
+  class JsonObjects implements Closeable, Iterator<ParsedObject> {
+    private static final int UID = 0;
+    private static final int ROUTING = 1;
+    private static final int PARENT = 2;
+
+    private String type;
+    private final JsonParser parser;
+    // Only if the documents are raw.
+    private final RecordingInputStream recording;
+    private final String timestampField;
+    // The dotted form of each path if it's simple (e.g. $.a.b), null if it needs JsonPath.
+    private final String[] paths;
+    private final JsonPath[] compiled;
+    private final String[] simplePaths = new String[3];
+    private final int maxDepth;
+
+    private ParsedObject nextObject;
+
+    public JsonObjects(JsonParser parser, String type, RecordingInputStream recording) {
       this.parser = parser;
+      this.recording = recording;
       this.type = type;
+      this.timestampField = isBlank(getAddTimestampField()) ? null : getAddTimestampField();
+      paths = new String[] { uidPath(), getRoutingJsonPath(), getParentJsonPath() };
+      compiled = compiledPaths();
+      int depth = 0;
+      for (int i = 0; i < paths.length; i++) {
+        if (!isBlank(paths[i]) && SIMPLE_PATH.matcher(paths[i]).matches()) {
+          simplePaths[i] = paths[i].substring(2);
+          depth = Math.max(depth, simplePaths[i].split("\\.").length);
+        }
+      }
+      maxDepth = depth;
     }
 
     @Override
-    public DocumentWrapper next() {
-      DocumentWrapper result = nextMessage;
-      nextMessage = null;
+    public ParsedObject next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      ParsedObject result = nextObject;
+      nextObject = null;
       return result;
     }
 
-    private DocumentWrapper buildNext() throws IOException {
-      DocumentWrapper result = null;
+    private ParsedObject readNext() throws IOException {
+      if (recording != null) {
+        return readRaw();
+      }
+      ParsedObject result = null;
       if (parser.nextToken() == JsonToken.START_OBJECT) {
-        ObjectNode node = addTimestamp(mapper.readTree(parser));
-        // Add the timestamp before we start futzing with jsonBuilder...
-        addTimestamp(node);
-        String jsonString = node.toString();
-        XContentBuilder jsonContent = jsonBuilder(jsonString);
-        ReadContext ctx = JsonPath.parse(jsonString, jsonConfig);
-        result = new DocumentWrapper(get(ctx, uidPath()), jsonContent, type).withParent(getQuietly(ctx, getParentJsonPath()))
-            .withRouting(getQuietly(ctx, getRoutingJsonPath()));
+        result = new ParsedObject(XContentFactory.jsonBuilder());
+        result.content.startObject();
+        copyFields(result, "", 1);
+        if (timestampField != null) {
+          result.content.field(timestampField, new Date().getTime());
+        }
+        result.content.endObject();
       }
       return result;
     }
 
-    private String get(ReadContext ctx, String path) {
+    private ParsedObject readRaw() throws IOException {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return null;
+      }
+      long start = parser.getTokenLocation().getByteOffset();
+      recording.discard(start);
+      ParsedObject result = new ParsedObject(null);
+      int fields = scanFields(result, "", 1);
+      // The closing brace.
+      long end = parser.getTokenLocation().getByteOffset() + 1;
+      if (timestampField == null) {
+        result.source = new BytesArray(recording.copy(start, end, 0));
+      }
+      else if (result.hasTimestamp) {
+        // Rare enough that it's not worth trying to splice it in place.
+        Map<String, Object> source = XContentHelper.convertToMap(new BytesArray(recording.copy(start, end, 0)), true).v2();
+        source.put(timestampField, new Date().getTime());
+        result.source = XContentFactory.jsonBuilder().map(source).bytes();
+      }
+      else {
+        byte[] suffix = ((fields > 0 ? "," : "") + "\"" + new String(JsonStringEncoder.getInstance().quoteAsString(timestampField))
+            + "\":" + new Date().getTime() + "}").getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = recording.copy(start, end - 1, suffix.length);
+        System.arraycopy(suffix, 0, bytes, bytes.length - suffix.length, suffix.length);
+        result.source = new BytesArray(bytes);
+      }
+      return result;
+    }
+
+    // Only capture the paths from the current object up to and including its END_OBJECT, returning the number of fields.
+    private int scanFields(ParsedObject obj, String path, int depth) throws IOException {
+      int fields = 0;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        fields++;
+        String name = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (depth == 1 && name.equals(timestampField)) {
+          obj.hasTimestamp = true;
+        }
+        String fieldPath = path != null && depth <= maxDepth ? (depth == 1 ? name : path + "." + name) : null;
+        if (fieldPath != null && token.isScalarValue()) {
+          capture(obj, fieldPath, token);
+        }
+        else if (fieldPath != null && token == JsonToken.START_OBJECT) {
+          scanFields(obj, fieldPath, depth + 1);
+        }
+        else {
+          parser.skipChildren();
+        }
+      }
+      return fields;
+    }
+
+    // Copy the fields of the current object up to and including its END_OBJECT, path is null if not reachable by a simple path.
+    private void copyFields(ParsedObject obj, String path, int depth) throws IOException {
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (depth == 1 && name.equals(timestampField)) {
+          // Replaced by the timestamp at the end.
+          parser.skipChildren();
+          continue;
+        }
+        String fieldPath = path != null && depth <= maxDepth ? (depth == 1 ? name : path + "." + name) : null;
+        if (fieldPath != null && token.isScalarValue()) {
+          capture(obj, fieldPath, token);
+        }
+        obj.content.field(name);
+        copyValue(obj, token, fieldPath, depth);
+      }
+    }
+
+    private void copyValue(ParsedObject obj, JsonToken token, String path, int depth) throws IOException {
+      XContentBuilder b = obj.content;
+      switch (token) {
+      case START_OBJECT:
+        b.startObject();
+        copyFields(obj, path, depth + 1);
+        b.endObject();
+        break;
+      case START_ARRAY:
+        b.startArray();
+        for (JsonToken t = parser.nextToken(); t != JsonToken.END_ARRAY; t = parser.nextToken()) {
+          copyValue(obj, t, null, depth + 1);
+        }
+        b.endArray();
+        break;
+      case VALUE_STRING:
+        b.value(parser.getText());
+        break;
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        switch (parser.getNumberType()) {
+        case INT:
+          b.value(parser.getIntValue());
+          break;
+        case LONG:
+          b.value(parser.getLongValue());
+          break;
+        case FLOAT:
+        case DOUBLE:
+          b.value(parser.getDoubleValue());
+          break;
+        default:
+          b.value((Object) parser.getNumberValue());
+        }
+        break;
+      case VALUE_TRUE:
+      case VALUE_FALSE:
+        b.value(parser.getBooleanValue());
+        break;
+      case VALUE_NULL:
+        b.nullValue();
+        break;
+      default:
+        throw new IOException("Unexpected token " + token);
+      }
+    }
+
+    private void capture(ParsedObject obj, String fieldPath, JsonToken token) throws IOException {
+      for (int i = 0; i < simplePaths.length; i++) {
+        if (fieldPath.equals(simplePaths[i])) {
+          obj.values[i] = token == JsonToken.VALUE_NULL ? null : parser.getText();
+          obj.found[i] = true;
+        }
+      }
+    }
+
+    /**
+     * Whether any of the paths need a full JsonPath evaluation in {@link #toDocument(ParsedObject)}.
+     *
+     */
+    boolean needsJsonPath() {
+      for (int i = 0; i < paths.length; i++) {
+        if (compiled[i] != null && simplePaths[i] == null) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    DocumentWrapper toDocument(ParsedObject obj) throws IOException {
+      ReadContext ctx = null;
+      for (int i = 0; i < paths.length; i++) {
+        if (compiled[i] != null && simplePaths[i] == null) {
+          // Only parse again if we really have to.
+          ctx = ctx != null ? ctx : JsonPath.parse(obj.json(), JSON_CONFIG);
+          obj.values[i] = i == UID ? get(ctx, compiled[i]) : getQuietly(ctx, compiled[i]);
+        }
+      }
+      if (simplePaths[UID] != null && !obj.found[UID]) {
+        throw new PathNotFoundException("No results for path: " + paths[UID]);
+      }
+      DocumentWrapper doc = obj.source != null ? new DocumentWrapper(obj.values[UID], obj.source, type)
+          : new DocumentWrapper(obj.values[UID], obj.content, type);
+      return doc.withParent(obj.values[PARENT]).withRouting(obj.values[ROUTING]);
+    }
+
+    private String get(ReadContext ctx, JsonPath path) {
       return ctx.read(path);
     }
 
-    private String getQuietly(ReadContext ctx, String path) {
+    private String getQuietly(ReadContext ctx, JsonPath path) {
       String result = null;
-      if (isBlank(path)) {
-        return null;
-      }
       try {
         result = get(ctx, path);
       } catch (PathNotFoundException e) {
@@ -250,27 +662,26 @@ public class JsonArrayDocumentBuilder extends JsonDocumentBuilderImpl {
       return result;
     }
 
-    @Override
-    public Iterator<DocumentWrapper> iterator() {
-      if (iteratorInvoked) {
-        throw new IllegalStateException("iterator already invoked");
-      }
-      iteratorInvoked = true;
-      return this;
-    }
-
     @Override
     public boolean hasNext() {
-      if (nextMessage == null) {
+      if (nextObject == null) {
         try {
-          nextMessage = buildNext();
+          nextObject = readNext();
         }
         catch (IOException e) {
-          log.warn("Could not construct next DocumentWrapper; badly formed JSON?", e);
+          log.warn("Could not read next object; badly formed JSON?", e);
           throw new RuntimeException("Could not construct next DocumentWrapper", e);
         }
       }
-      return nextMessage != null;
+      return nextObject != null;
+    }
+
+    /**
+     * Whether everything has been read, as opposed to stopping because the next value wasn't an object.
+     *
+     */
+    boolean atEnd() {
+      return !hasNext() && parser.getCurrentToken() == null;
     }
 
     @Override
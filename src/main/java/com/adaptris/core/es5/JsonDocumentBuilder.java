@@ -74,7 +74,7 @@ public class JsonDocumentBuilder extends JsonDocumentBuilderImpl {
   public Iterable<DocumentWrapper> build(AdaptrisMessage msg) throws ProduceException {
     List<DocumentWrapper> result = new ArrayList<>();
     try (Reader buf = msg.getReader()) {
-      ObjectMapper mapper = new ObjectMapper();
+      ObjectMapper mapper = mapper();
       JsonParser parser = mapper.getFactory().createParser(buf);
       if (parser.nextToken() != JsonToken.START_OBJECT) {
         throw new ProduceException("Expected the start of a JSON object");
@@ -37,6 +37,7 @@ import com.adaptris.annotation.AutoPopulated;
 import com.adaptris.core.es5.types.ConfiguredTypeBuilder;
 import com.adaptris.core.es5.types.TypeBuilder;
 import com.adaptris.core.util.Args;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 
@@ -50,6 +51,9 @@ public abstract class JsonDocumentBuilderImpl implements ElasticDocumentBuilder
   @AdvancedConfig
   private String addTimestampField;
 
+  // Shared across messages so that Jackson's field name canonicalisation and buffer recycling are effective.
+  private transient volatile ObjectMapper mapper;
+
   public JsonDocumentBuilderImpl() {
     setTypeBuilder(new ConfiguredTypeBuilder());
   }
@@ -88,6 +92,18 @@ public abstract class JsonDocumentBuilderImpl implements ElasticDocumentBuilder
     return b;
   }
 
+  /**
+   * The {@link ObjectMapper} used for every message; it is thread-safe and should not be reconfigured.
+   * 
+   */
+  protected ObjectMapper mapper() {
+    ObjectMapper result = mapper;
+    if (result == null) {
+      result = mapper = new ObjectMapper();
+    }
+    return result;
+  }
+
   protected XContentBuilder jsonBuilder(ObjectNode node) throws IOException {
     // Add the TS first.
     ObjectNode withTs = addTimestamp(node);
@@ -0,0 +1,68 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.function.Function;
+
+import org.apache.commons.io.IOUtils;
+
+import com.adaptris.core.util.CloseableIterable;
+
+/**
+ * Single use {@link CloseableIterable} that applies a function to each element from an underlying iterator.
+ *
+ */
+final class MappedIterable<S, T> implements CloseableIterable<T>, Iterator<T> {
+
+  private final Iterator<S> source;
+  private final Closeable resource;
+  private final Function<S, T> mapper;
+  private boolean iteratorInvoked = false;
+
+  MappedIterable(Iterator<S> source, Closeable resource, Function<S, T> mapper) {
+    this.source = source;
+    this.resource = resource;
+    this.mapper = mapper;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    if (iteratorInvoked) {
+      throw new IllegalStateException("iterator already invoked");
+    }
+    iteratorInvoked = true;
+    return this;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return source.hasNext();
+  }
+
+  @Override
+  public T next() {
+    return mapper.apply(source.next());
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOUtils.closeQuietly(resource);
+  }
+}
@@ -0,0 +1,305 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.validation.constraints.Min;
+
+import org.apache.commons.lang3.BooleanUtils;
+
+import com.adaptris.annotation.AdvancedConfig;
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.ProduceException;
+import com.adaptris.core.es5.types.TypeBuilder;
+import com.adaptris.core.lms.FileBackedMessage;
+import com.adaptris.core.util.CloseableIterable;
+import com.adaptris.core.util.ExceptionHelper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Parse newline delimited JSON (one JSON object per line) and create documents from it for elasticsearch.
+ *
+ * <p>
+ * The payload is split into chunks of roughly {@link #getChunkSizeBytes()} on line boundaries, and the chunks are parsed on a
+ * fork-join pool. If the message is a {@link FileBackedMessage} then the chunks are memory-mapped directly from the file, otherwise
+ * they are read from the message's input stream. The payload must be UTF-8 encoded.
+ * </p>
+ * <p>
+ * Each line is handled exactly as an element of the array in {@link JsonArrayDocumentBuilder}, so the unique-id, routing, parent,
+ * timestamp and raw source settings all behave in the same way. By default documents are returned in the order they appear in
+ * the payload; if {@link #setOrdered(Boolean)} is false then each chunk's documents are returned as soon as the chunk has been
+ * parsed. Blank lines are ignored; a line that is not a JSON object fails the message.
+ * </p>
+ *
+ * @config es5-ndjson-document-builder
+ */
+@XStreamAlias("es5-ndjson-document-builder")
+public class NdjsonDocumentBuilder extends JsonArrayDocumentBuilder {
+
+  private static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+  @AdvancedConfig
+  @Min(1)
+  @InputFieldDefault(value = "4194304")
+  private Integer chunkSizeBytes;
+  @AdvancedConfig
+  @Min(1)
+  private Integer threads;
+  @AdvancedConfig
+  @InputFieldDefault(value = "true")
+  private Boolean ordered;
+
+  private transient ForkJoinPool pool;
+
+  public NdjsonDocumentBuilder() {
+    super();
+  }
+
+  public NdjsonDocumentBuilder(TypeBuilder b) {
+    this();
+    setTypeBuilder(b);
+  }
+
+  @Override
+  public Iterable<DocumentWrapper> build(AdaptrisMessage msg) throws ProduceException {
+    try {
+      String type = getTypeBuilder().getType(msg);
+      Chunks chunks = chunks(msg);
+      return new ChunkedDocuments(() -> {
+        ByteBuffer chunk = chunks.next();
+        return chunk != null ? () -> parse(chunk, type) : null;
+      }, chunks, pool(), threads() * 2, ordered());
+    }
+    catch (Exception e) {
+      throw ExceptionHelper.wrapProduceException(e);
+    }
+  }
+
+  // Parsing is already parallel, so there's nothing for ParallelDocumentBuilder to do.
+  @Override
+  public CloseableIterable<Callable<DocumentWrapper>> buildTasks(AdaptrisMessage msg) throws ProduceException {
+    ChunkedDocuments docs = (ChunkedDocuments) build(msg);
+    return new MappedIterable<>(docs, docs, (doc) -> new BuiltDocument(doc));
+  }
+
+  private Chunks chunks(AdaptrisMessage msg) throws IOException {
+    if (msg instanceof FileBackedMessage) {
+      File file = ((FileBackedMessage) msg).currentSource();
+      if (file != null && file.isFile()) {
+        return new MappedChunks(file, chunkSize());
+      }
+    }
+    return new StreamChunks(msg.getInputStream(), chunkSize());
+  }
+
+  private synchronized ForkJoinPool pool() {
+    if (pool == null) {
+      pool = new ForkJoinPool(threads());
+    }
+    return pool;
+  }
+
+  private List<DocumentWrapper> parse(ByteBuffer chunk, String type) throws IOException {
+    List<DocumentWrapper> result = new ArrayList<>();
+    try (JsonObjects objects = readObjects(new ByteBufferBackedInputStream(chunk), type)) {
+      while (objects.hasNext()) {
+        result.add(objects.toDocument(objects.next()));
+      }
+      if (!objects.atEnd()) {
+        throw new IOException("Expected a JSON object on each line");
+      }
+    }
+    return result;
+  }
+
+  public Integer getChunkSizeBytes() {
+    return chunkSizeBytes;
+  }
+
+  /**
+   * Set the size of each chunk that is parsed.
+   *
+   * @param i the size in bytes; default is 4Mb if not specified. Chunks are extended to the end of the line, so a chunk may be
+   *          larger.
+   */
+  public void setChunkSizeBytes(Integer i) {
+    this.chunkSizeBytes = i;
+  }
+
+  int chunkSize() {
+    return getChunkSizeBytes() != null ? getChunkSizeBytes().intValue() : DEFAULT_CHUNK_SIZE;
+  }
+
+  public Integer getThreads() {
+    return threads;
+  }
+
+  /**
+   * Set the number of threads used to parse chunks.
+   * <p>
+   * Twice this many chunks are read ahead of the producer.
+   * </p>
+   *
+   * @param i the number of threads, defaults to the number of available processors.
+   */
+  public void setThreads(Integer i) {
+    this.threads = i;
+  }
+
+  int threads() {
+    return getThreads() != null ? getThreads().intValue() : Runtime.getRuntime().availableProcessors();
+  }
+
+  public Boolean getOrdered() {
+    return ordered;
+  }
+
+  /**
+   * Whether documents are returned in the order they appear in the payload.
+   *
+   * @param b true to preserve order; default is true if not specified.
+   */
+  public void setOrdered(Boolean b) {
+    this.ordered = b;
+  }
+
+  boolean ordered() {
+    return BooleanUtils.toBooleanDefaultIfNull(getOrdered(), true);
+  }
+
+  // Supplies each chunk of complete lines, null when there are no more.
+  private interface Chunks extends Closeable {
+    ByteBuffer next() throws IOException;
+  }
+
+  private static class MappedChunks implements Chunks {
+    private final FileChannel channel;
+    private final long size;
+    private final int chunkSize;
+    private long position = 0;
+
+    MappedChunks(File file, int chunkSize) throws IOException {
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      size = channel.size();
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+      if (position >= size) {
+        return null;
+      }
+      long end = lineEnd(Math.min(size, position + chunkSize));
+      if (end - position > Integer.MAX_VALUE) {
+        throw new IOException("Line at " + position + " is too long");
+      }
+      ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, end - position);
+      position = end;
+      return chunk;
+    }
+
+    // The position after the next newline at or after the offset.
+    private long lineEnd(long offset) throws IOException {
+      ByteBuffer buf = ByteBuffer.allocate(8192);
+      long pos = offset;
+      while (pos < size) {
+        buf.clear();
+        int n = channel.read(buf, pos);
+        for (int i = 0; i < n; i++) {
+          if (buf.get(i) == '\n') {
+            return pos + i + 1;
+          }
+        }
+        pos += Math.max(n, 0);
+      }
+      return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  private static class StreamChunks implements Chunks {
+    private final InputStream in;
+    private final int chunkSize;
+    // The partial line at the end of the last chunk.
+    private byte[] carry = new byte[0];
+    private boolean eof = false;
+
+    StreamChunks(InputStream in, int chunkSize) {
+      this.in = in;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+      byte[] buf = Arrays.copyOf(carry, Math.max(chunkSize, carry.length * 2));
+      int len = carry.length;
+      while (true) {
+        while (!eof && len < buf.length) {
+          int n = in.read(buf, len, buf.length - len);
+          if (n < 0) {
+            eof = true;
+          }
+          else {
+            len += n;
+          }
+        }
+        if (eof && len == 0) {
+          return null;
+        }
+        int cut = eof ? len : lastNewline(buf, len) + 1;
+        if (cut > 0) {
+          carry = Arrays.copyOfRange(buf, cut, len);
+          return ByteBuffer.wrap(buf, 0, cut);
+        }
+        // A single line that's bigger than the buffer.
+        buf = Arrays.copyOf(buf, buf.length * 2);
+      }
+    }
+
+    private static int lastNewline(byte[] buf, int len) {
+      for (int i = len - 1; i >= 0; i--) {
+        if (buf[i] == '\n') {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
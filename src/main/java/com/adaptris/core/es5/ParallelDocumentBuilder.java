@@ -0,0 +1,238 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import com.adaptris.annotation.AdvancedConfig;
+import com.adaptris.annotation.AutoPopulated;
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.ComponentLifecycleExtension;
+import com.adaptris.core.CoreException;
+import com.adaptris.core.ProduceException;
+import com.adaptris.core.util.Args;
+import com.adaptris.core.util.CloseableIterable;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Wraps another {@link ElasticDocumentBuilder} so that documents are built on a pool of worker threads.
+ *
+ * <p>
+ * If the wrapped builder is a {@link StagedDocumentBuilder} (e.g. {@link CSVDocumentBuilder} or {@link CSVWithGeoPointBuilder})
+ * then raw records are read from the message on the producer thread, and the work of turning each record into a document is
+ * handed to a pool of worker threads. At most {@link #getQueueSize()} documents are built ahead of the producer, and documents
+ * are always returned in the order they appear in the message. If the wrapped builder is not a {@link StagedDocumentBuilder} then
+ * this simply delegates to it.
+ * </p>
+ * <p>
+ * Some builders already do most of the work while reading. {@link JsonArrayDocumentBuilder} copies each object into its document
+ * as it reads it, so only the evaluation of unique-id, routing or parent paths that aren't simple (e.g. {@code $.a.b}) is handed
+ * to the worker threads. If there are none, then, like {@link NdjsonDocumentBuilder} or a CSV builder with
+ * {@link CSVDocumentBuilderImpl#setParallelChunkSize(Integer)}, the documents are returned directly and wrapping the builder
+ * gains nothing.
+ * </p>
+ *
+ * @config es5-parallel-document-builder
+ */
+@XStreamAlias("es5-parallel-document-builder")
+public class ParallelDocumentBuilder implements ElasticDocumentBuilder, ComponentLifecycleExtension {
+
+  private static final int DEFAULT_QUEUE_SIZE = 1024;
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+  @NotNull
+  @AutoPopulated
+  @Valid
+  private ElasticDocumentBuilder documentBuilder;
+  @AdvancedConfig
+  @Min(1)
+  private Integer threads;
+  @AdvancedConfig
+  @Min(1)
+  @InputFieldDefault(value = "1024")
+  private Integer queueSize;
+
+  private transient ExecutorService executor;
+
+  public ParallelDocumentBuilder() {
+    setDocumentBuilder(new JsonArrayDocumentBuilder());
+  }
+
+  public ParallelDocumentBuilder(ElasticDocumentBuilder b) {
+    this();
+    setDocumentBuilder(b);
+  }
+
+  @Override
+  public void prepare() throws CoreException {
+    SingleOperation.prepareComponent(getDocumentBuilder());
+  }
+
+  @Override
+  public Iterable<DocumentWrapper> build(AdaptrisMessage msg) throws ProduceException {
+    if (!(getDocumentBuilder() instanceof StagedDocumentBuilder)) {
+      return getDocumentBuilder().build(msg);
+    }
+    return new ParallelDocuments(((StagedDocumentBuilder) getDocumentBuilder()).buildTasks(msg), executor());
+  }
+
+  private synchronized ExecutorService executor() {
+    if (executor == null) {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(threads(), threads(), 60L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), (r) -> {
+            Thread t = new Thread(r, getClass().getSimpleName() + "-" + THREAD_COUNT.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          });
+      // There's no lifecycle for a document builder, so let the threads die when idle.
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+    }
+    return executor;
+  }
+
+  public ElasticDocumentBuilder getDocumentBuilder() {
+    return documentBuilder;
+  }
+
+  /**
+   * Set the builder that will actually build the documents.
+   *
+   * @param b the builder
+   */
+  public void setDocumentBuilder(ElasticDocumentBuilder b) {
+    this.documentBuilder = Args.notNull(b, "documentBuilder");
+  }
+
+  public Integer getThreads() {
+    return threads;
+  }
+
+  /**
+   * Set the number of threads used to build documents.
+   *
+   * @param i the number of threads, defaults to the number of available processors.
+   */
+  public void setThreads(Integer i) {
+    this.threads = i;
+  }
+
+  int threads() {
+    return getThreads() != null ? getThreads().intValue() : Runtime.getRuntime().availableProcessors();
+  }
+
+  public Integer getQueueSize() {
+    return queueSize;
+  }
+
+  /**
+   * Set the maximum number of documents that can be built ahead of the producer.
+   *
+   * @param i the queue size, default is 1024 if not specified.
+   */
+  public void setQueueSize(Integer i) {
+    this.queueSize = i;
+  }
+
+  int queueSize() {
+    return getQueueSize() != null ? getQueueSize().intValue() : DEFAULT_QUEUE_SIZE;
+  }
+
+  private class ParallelDocuments implements CloseableIterable<DocumentWrapper>, Iterator<DocumentWrapper> {
+    private final CloseableIterable<Callable<DocumentWrapper>> tasks;
+    private final Iterator<Callable<DocumentWrapper>> source;
+    private final ExecutorService workers;
+    private final Deque<Future<DocumentWrapper>> pending = new ArrayDeque<>();
+    private boolean iteratorInvoked = false;
+
+    ParallelDocuments(CloseableIterable<Callable<DocumentWrapper>> tasks, ExecutorService workers) {
+      this.tasks = tasks;
+      this.source = tasks.iterator();
+      this.workers = workers;
+    }
+
+    @Override
+    public Iterator<DocumentWrapper> iterator() {
+      if (iteratorInvoked) {
+        throw new IllegalStateException("iterator already invoked");
+      }
+      iteratorInvoked = true;
+      return this;
+    }
+
+    private void fill() {
+      while (pending.size() < queueSize() && source.hasNext()) {
+        Callable<DocumentWrapper> task = source.next();
+        pending.add(task instanceof BuiltDocument ? CompletableFuture.completedFuture(((BuiltDocument) task).call())
+            : workers.submit(task));
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      fill();
+      return !pending.isEmpty();
+    }
+
+    @Override
+    public DocumentWrapper next() {
+      fill();
+      Future<DocumentWrapper> f = pending.poll();
+      if (f == null) {
+        throw new NoSuchElementException();
+      }
+      try {
+        return f.get();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+      catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new RuntimeException("Could not construct next DocumentWrapper", e.getCause());
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      pending.forEach(f -> f.cancel(true));
+      pending.clear();
+      tasks.close();
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.Murmur3HashFunction;
+import org.elasticsearch.cluster.routing.ShardRouting;
+
+/**
+ * Works out which node holds the primary shard for a document, using the same routing calculation as ElasticSearch.
+ *
+ */
+class ShardLocator {
+
+  private static final String UNKNOWN = "";
+
+  private final int routingNumShards;
+  private final int routingFactor;
+  private final String[] primaryNodes;
+
+  private ShardLocator(IndexMetaData meta, IndexRoutingTable routing) {
+    this(meta, primaryNodes(meta, routing));
+  }
+
+  /**
+   *
+   * @param meta the index metadata.
+   * @param primaryNodes the node holding the primary for each shard, in shard order.
+   */
+  ShardLocator(IndexMetaData meta, String... primaryNodes) {
+    routingNumShards = meta.getRoutingNumShards();
+    routingFactor = meta.getRoutingFactor();
+    this.primaryNodes = primaryNodes;
+  }
+
+  private static String[] primaryNodes(IndexMetaData meta, IndexRoutingTable routing) {
+    String[] result = new String[meta.getNumberOfShards()];
+    for (int i = 0; i < result.length; i++) {
+      ShardRouting primary = routing.shard(i).primaryShard();
+      result[i] = primary != null && primary.currentNodeId() != null ? primary.currentNodeId() : UNKNOWN;
+    }
+    return result;
+  }
+
+  /**
+   * Create a locator from the current cluster state.
+   *
+   * @return a locator, or null if the index does not exist (e.g. it's an alias, or it will be auto-created).
+   */
+  static ShardLocator create(Client client, String index) {
+    ClusterState state = client.admin().cluster().prepareState().setIndices(index).get().getState();
+    IndexMetaData meta = state.getMetaData().index(index);
+    IndexRoutingTable routing = state.getRoutingTable().index(index);
+    if (meta == null || routing == null) {
+      return null;
+    }
+    return new ShardLocator(meta, routing);
+  }
+
+  /**
+   * Return the shard that the document will be routed to.
+   *
+   * @return the shard, or -1 if it cannot be determined (e.g. the id will be auto-generated)
+   */
+  int shard(DocumentWrapper doc) {
+    // As per ElasticSearch; an explicit routing wins, otherwise parent, otherwise the id.
+    String routing = doc.routing() != null ? doc.routing() : doc.parent();
+    String key = routing != null ? routing : doc.uniqueId();
+    if (key == null) {
+      return -1;
+    }
+    return Math.floorMod(Murmur3HashFunction.hash(key), routingNumShards) / routingFactor;
+  }
+
+  /**
+   * Return the node holding the primary shard for the document.
+   *
+   * @return the node id, or the empty string if not known.
+   */
+  String primaryNode(DocumentWrapper doc) {
+    int shard = shard(doc);
+    return shard >= 0 ? primaryNodes[shard] : UNKNOWN;
+  }
+}
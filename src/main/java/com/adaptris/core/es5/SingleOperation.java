@@ -16,12 +16,27 @@
 
 package com.adaptris.core.es5;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
-import org.elasticsearch.action.delete.DeleteResponse;
-import org.elasticsearch.action.index.IndexResponse;
-import org.elasticsearch.action.update.UpdateResponse;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.update.UpdateRequestBuilder;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 
@@ -29,14 +44,18 @@ import com.adaptris.annotation.AdvancedConfig;
 import com.adaptris.annotation.AutoPopulated;
 import com.adaptris.annotation.ComponentProfile;
 import com.adaptris.annotation.DisplayOrder;
+import com.adaptris.annotation.InputFieldDefault;
 import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.ComponentLifecycleExtension;
 import com.adaptris.core.CoreException;
 import com.adaptris.core.ProduceDestination;
 import com.adaptris.core.ProduceException;
+import com.adaptris.core.ServiceException;
 import com.adaptris.core.es5.actions.ActionExtractor;
 import com.adaptris.core.es5.actions.ConfiguredAction;
 import com.adaptris.core.util.CloseableIterable;
 import com.adaptris.core.util.ExceptionHelper;
+import com.adaptris.util.TimeInterval;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
 /**
@@ -58,6 +77,22 @@ import com.thoughtworks.xstream.annotations.XStreamAlias;
  * that the document generated contains all the data required, not just a subset. If in doubt; stick to a normal
  * {@link DocumentAction#UPDATE} which will correctly throw a {@code DocumentMissingException}.
  * </p>
+ * <p>
+ * The timeout passed to {@link #request(AdaptrisMessage, ProduceDestination, long)} is the deadline for producing all the
+ * documents in the message; each request waits for at most the time remaining. When the message is produced without an explicit
+ * timeout, then {@link #setTimeout(TimeInterval)} is used; if that isn't configured there is no deadline.
+ * </p>
+ * <p>
+ * If {@link #setConcurrentRequests(Integer)} is greater than 0, then the request for each document is sent asynchronously, with up
+ * to the specified number outstanding at any one time; the message is considered produced once every request has completed, and
+ * fails if any of them failed.
+ * </p>
+ * <p>
+ * If {@link #setBulkThreshold(Integer)} is greater than 0, and a message contains more documents than the threshold, then all
+ * the documents in that message are sent using the BULK API instead, using the same action and refresh policy; any document that
+ * fails will cause the message to fail. Messages with fewer documents are unaffected. {@link BulkOperation} always uses the BULK
+ * API, so ignores this setting.
+ * </p>
  * 
  * 
  * @author lchan
@@ -68,10 +103,12 @@ import com.thoughtworks.xstream.annotations.XStreamAlias;
 @ComponentProfile(summary = "Use the standard API to interact with an ElasticSearch 5.x instance", tag = "producer,elastic")
 @DisplayOrder(order =
 {
-    "action", "documentBuilder", "refreshPolicy"
+    "action", "documentBuilder", "refreshPolicy", "concurrentRequests", "bulkThreshold", "timeout"
 })
 public class SingleOperation extends ElasticSearchProducer {
   private static final ActionExtractor DEFAULT_ACTION = new ConfiguredAction(DocumentAction.INDEX);
+  // How many documents go into each bulk request once a message has been escalated to the BULK API.
+  private static final int ESCALATED_BATCH_SIZE = 10000;
 
   protected transient TransportClient transportClient = null;
 
@@ -87,6 +124,20 @@ public class SingleOperation extends ElasticSearchProducer {
   @AdvancedConfig
   private String refreshPolicy;
 
+  @AdvancedConfig
+  @Min(0)
+  @InputFieldDefault(value = "0")
+  private Integer concurrentRequests;
+
+  @AdvancedConfig
+  @Min(0)
+  @InputFieldDefault(value = "0")
+  private Integer bulkThreshold;
+
+  @AdvancedConfig
+  @Valid
+  private TimeInterval timeout;
+
   public SingleOperation() {
     setDocumentBuilder(new SimpleDocumentBuilder());
   }
@@ -101,41 +152,35 @@ public class SingleOperation extends ElasticSearchProducer {
     request(msg, destination, defaultTimeout());
   }
 
+  @Override
+  protected long defaultTimeout() {
+    return getTimeout() != null ? getTimeout().toMilliseconds() : Deadline.NONE;
+  }
+
   @Override
   protected AdaptrisMessage doRequest(AdaptrisMessage msg, ProduceDestination destination, long timeout) throws ProduceException {
     try {
+      final Deadline deadline = Deadline.after(timeout);
       final String index = destination.getDestination(msg);
-      try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
-        for (DocumentWrapper doc : docs) {
-          DocumentAction action = doc.action() != null ? doc.action() : DocumentAction.valueOf(actionExtractor().extract(msg, doc));
-          switch (action) {
-          case INDEX: {
-            IndexResponse response = transportClient.prepareIndex(index, doc.type(), doc.uniqueId()).setRouting(doc.routing())
-                .setParent(doc.parent()).setSource(doc.content()).setRefreshPolicy(getRefreshPolicy()).get();
-            log.trace("INDEX:: document {} version {} in {}", response.getId(), response.getVersion(), index);
-            break;
-          }
-          case UPDATE: {
-            UpdateResponse response = transportClient.prepareUpdate(index, doc.type(), doc.uniqueId()).setRouting(doc.routing())
-                .setParent(doc.parent()).setDoc(doc.content()).setRefreshPolicy(getRefreshPolicy()).get();
-            log.trace("UPDATE:: document {} version {} in {}", response.getId(), response.getVersion(), index);
-            break;
-          }
-          case DELETE: {
-            DeleteResponse response = transportClient.prepareDelete(index, doc.type(), doc.uniqueId()).setRouting(doc.routing())
-                .setParent(doc.parent()).setRefreshPolicy(getRefreshPolicy()).get();
-            log.trace("DELETE:: document {} version {} in {}", response.getId(), response.getVersion(), index);
-            break;
-          }
-          case UPSERT: {
-            UpdateResponse response = transportClient.prepareUpdate(index, doc.type(), doc.uniqueId()).setRouting(doc.routing())
-                .setParent(doc.parent()).setDoc(doc.content()).setUpsert(doc.content()).get();
-            log.trace("UPSERT:: document {} version {} in {}", response.getId(), response.getVersion(), index);
-          }
-          default:
-            throw new ProduceException("Unrecognized action: " + action);
-          }
+      // Anything still outstanding when we leave is cancelled.
+      try (Outstanding outstanding = new Outstanding(concurrentRequests(), deadline);
+          CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
+        Iterator<DocumentWrapper> documents = docs.iterator();
+        List<DocumentWrapper> peeked = new ArrayList<>();
+        while (bulkThreshold() > 0 && peeked.size() <= bulkThreshold() && documents.hasNext()) {
+          peeked.add(documents.next());
+        }
+        if (bulkThreshold() > 0 && peeked.size() > bulkThreshold()) {
+          produceBulk(msg, index, peeked, documents, deadline);
+          return msg;
+        }
+        for (DocumentWrapper doc : peeked) {
+          produce(msg, index, doc, outstanding, deadline);
         }
+        while (documents.hasNext()) {
+          produce(msg, index, documents.next(), outstanding, deadline);
+        }
+        outstanding.await();
       }
     }
     catch (Exception e) {
@@ -144,6 +189,110 @@ public class SingleOperation extends ElasticSearchProducer {
     return msg;
   }
 
+  private void produce(AdaptrisMessage msg, String index, DocumentWrapper doc, Outstanding outstanding, Deadline deadline)
+      throws Exception {
+    DocumentAction action = actionFor(msg, doc);
+    if (concurrentRequests() > 0) {
+      outstanding.execute(action, index, prepare(index, action, doc, deadline));
+    }
+    else {
+      DocWriteResponse response = prepare(index, action, doc, deadline).get(deadline.remaining());
+      log.trace("{}:: document {} version {} in {}", action, response.getId(), response.getVersion(), index);
+    }
+  }
+
+  private void produceBulk(AdaptrisMessage msg, String index, List<DocumentWrapper> peeked, Iterator<DocumentWrapper> remaining,
+      Deadline deadline) throws Exception {
+    log.trace("More than {} documents, switching to BULK API", bulkThreshold());
+    BulkRequestBuilder bulkRequest = transportClient.prepareBulk();
+    for (DocumentWrapper doc : peeked) {
+      addDocument(bulkRequest, index, actionFor(msg, doc), doc);
+    }
+    peeked.clear();
+    while (remaining.hasNext()) {
+      DocumentWrapper doc = remaining.next();
+      addDocument(bulkRequest, index, actionFor(msg, doc), doc);
+      if (bulkRequest.numberOfActions() >= ESCALATED_BATCH_SIZE) {
+        sendBulk(bulkRequest, deadline);
+        bulkRequest = transportClient.prepareBulk();
+      }
+    }
+    if (bulkRequest.numberOfActions() > 0) {
+      sendBulk(bulkRequest, deadline);
+    }
+  }
+
+  private void sendBulk(BulkRequestBuilder bulkRequest, Deadline deadline) throws ProduceException {
+    int count = bulkRequest.numberOfActions();
+    BulkResponse response = bulkRequest.setRefreshPolicy(getRefreshPolicy()).setTimeout(deadline.requestTimeout())
+        .get(deadline.remaining());
+    if (response.hasFailures()) {
+      throw new ProduceException(response.buildFailureMessage());
+    }
+    log.trace("BULK:: {} documents took {}", count, response.getTook());
+  }
+
+  protected void addDocument(BulkRequestBuilder bulkRequest, String index, DocumentAction action, DocumentWrapper doc)
+      throws ProduceException {
+    switch (action) {
+    case INDEX:
+      bulkRequest.add(transportClient.prepareIndex(index, doc.type(), doc.uniqueId()).setRouting(doc.routing())
+          .setParent(doc.parent()).setSource(doc.source()));
+      break;
+    case UPDATE:
+      bulkRequest.add(prepareUpdate(index, doc, false));
+      break;
+    case DELETE:
+      bulkRequest.add(
+          transportClient.prepareDelete(index, doc.type(), doc.uniqueId()).setRouting(doc.routing()).setParent(doc.parent()));
+      break;
+    case UPSERT:
+      bulkRequest.add(prepareUpdate(index, doc, true));
+      break;
+    default:
+      throw new ProduceException("Unrecognized action: " + action);
+    }
+  }
+
+  private ActionRequestBuilder<?, ? extends DocWriteResponse, ?> prepare(String index, DocumentAction action,
+      DocumentWrapper doc, Deadline deadline) throws ProduceException {
+    switch (action) {
+    case INDEX:
+      return transportClient.prepareIndex(index, doc.type(), doc.uniqueId()).setRouting(doc.routing())
+          .setParent(doc.parent()).setSource(doc.source()).setRefreshPolicy(getRefreshPolicy())
+          .setTimeout(deadline.requestTimeout());
+    case UPDATE:
+      return prepareUpdate(index, doc, false).setRefreshPolicy(getRefreshPolicy()).setTimeout(deadline.requestTimeout());
+    case DELETE:
+      return transportClient.prepareDelete(index, doc.type(), doc.uniqueId()).setRouting(doc.routing())
+          .setParent(doc.parent()).setRefreshPolicy(getRefreshPolicy()).setTimeout(deadline.requestTimeout());
+    case UPSERT:
+      return prepareUpdate(index, doc, true).setTimeout(deadline.requestTimeout());
+    default:
+      throw new ProduceException("Unrecognized action: " + action);
+    }
+  }
+
+  private UpdateRequestBuilder prepareUpdate(String index, DocumentWrapper doc, boolean upsert) {
+    UpdateRequestBuilder request = transportClient.prepareUpdate(index, doc.type(), doc.uniqueId()).setRouting(doc.routing())
+        .setParent(doc.parent());
+    if (doc.isRaw()) {
+      // Use the bytes as they are.
+      BytesRef bytes = doc.source().toBytesRef();
+      request.setDoc(bytes.bytes, bytes.offset, bytes.length);
+      if (upsert) {
+        request.setUpsert(bytes.bytes, bytes.offset, bytes.length);
+      }
+    }
+    else {
+      request.setDoc(doc.content());
+      if (upsert) {
+        request.setUpsert(doc.content());
+      }
+    }
+    return request;
+  }
+
   @Override
   public void close() {
     super.close();
@@ -153,9 +302,18 @@ public class SingleOperation extends ElasticSearchProducer {
   @Override
   public void init() throws CoreException {
     super.init();
+    prepareComponent(getDocumentBuilder());
+    prepareComponent(getAction());
     transportClient = retrieveConnection(ElasticSearchConnection.class).createClient();
   }
 
+  // Document builders and action extractors have no lifecycle, but may need to validate their configuration.
+  static void prepareComponent(Object o) throws CoreException {
+    if (o instanceof ComponentLifecycleExtension) {
+      ((ComponentLifecycleExtension) o).prepare();
+    }
+  }
+
   /**
    * @return the documentBuilder
    */
@@ -187,6 +345,10 @@ public class SingleOperation extends ElasticSearchProducer {
     return getAction() != null ? getAction() : DEFAULT_ACTION;
   }
 
+  protected DocumentAction actionFor(AdaptrisMessage msg, DocumentWrapper doc) throws ServiceException {
+    return doc.action() != null ? doc.action() : DocumentAction.valueOf(actionExtractor().extract(msg, doc));
+  }
+
   /**
    * @return the refreshPolicy
    */
@@ -202,4 +364,151 @@ public class SingleOperation extends ElasticSearchProducer {
   public void setRefreshPolicy(String s) {
     this.refreshPolicy = s;
   }
+
+  public Integer getConcurrentRequests() {
+    return concurrentRequests;
+  }
+
+  /**
+   * Set the number of requests that may be outstanding at any one time.
+   * <p>
+   * For {@link BulkOperation} this is the number of batches that may be outstanding while the next batch is being built.
+   * </p>
+   * 
+   * @param i the number of concurrent requests; default is 0 if not specified, which means that each request is sent
+   *          synchronously.
+   */
+  public void setConcurrentRequests(Integer i) {
+    this.concurrentRequests = i;
+  }
+
+  int concurrentRequests() {
+    return getConcurrentRequests() != null ? getConcurrentRequests().intValue() : 0;
+  }
+
+  public Integer getBulkThreshold() {
+    return bulkThreshold;
+  }
+
+  /**
+   * Set the number of documents in a message above which the BULK API is used instead.
+   * 
+   * @param i the threshold; default is 0 if not specified, which means that the BULK API is never used.
+   */
+  public void setBulkThreshold(Integer i) {
+    this.bulkThreshold = i;
+  }
+
+  int bulkThreshold() {
+    return getBulkThreshold() != null ? getBulkThreshold().intValue() : 0;
+  }
+
+  public TimeInterval getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * Set the deadline for producing all the documents in a message, where no timeout is given explicitly.
+   * <p>
+   * Any requests still outstanding when the deadline passes are abandoned and the message fails.
+   * </p>
+   *
+   * @param t the timeout; default is null, which means that there is no deadline.
+   */
+  public void setTimeout(TimeInterval t) {
+    this.timeout = t;
+  }
+
+  // Requests executed asynchronously, bounded by the number of concurrent requests.
+  private class Outstanding implements AutoCloseable {
+    private final int max;
+    private final Semaphore permits;
+    private final Deadline deadline;
+    private final List<Exception> failures = new CopyOnWriteArrayList<>();
+    private final Set<ListenableActionFuture<?>> requests = ConcurrentHashMap.newKeySet();
+
+    Outstanding(int max, Deadline deadline) {
+      this.max = Math.max(1, max);
+      this.permits = new Semaphore(this.max);
+      this.deadline = deadline;
+    }
+
+    <R extends DocWriteResponse> void execute(DocumentAction action, String index, ActionRequestBuilder<?, R, ?> request)
+        throws InterruptedException, ProduceException {
+      if (!failures.isEmpty()) {
+        // No point sending any more.
+        await();
+      }
+      if (!permits.tryAcquire(Math.max(0, deadline.remainingMs()), TimeUnit.MILLISECONDS)) {
+        cancelAll();
+        throw deadline.timedOut();
+      }
+      final ListenableActionFuture<R> future;
+      try {
+        future = request.execute();
+      }
+      catch (RuntimeException e) {
+        // Treated the same as if it had failed asynchronously.
+        failures.add(e);
+        permits.release();
+        return;
+      }
+      requests.add(future);
+      future.addListener(new ActionListener<R>() {
+        @Override
+        public void onResponse(R response) {
+          if (completed(future)) {
+            log.trace("{}:: document {} version {} in {}", action, response.getId(), response.getVersion(), index);
+          }
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+          if (completed(future)) {
+            failures.add(e);
+          }
+        }
+      });
+    }
+
+    // Only true the first time, so that a cancelled request doesn't release its permit twice.
+    private boolean completed(ListenableActionFuture<?> future) {
+      if (requests.remove(future)) {
+        permits.release();
+        return true;
+      }
+      return false;
+    }
+
+    private void cancelAll() {
+      for (ListenableActionFuture<?> future : requests) {
+        if (completed(future)) {
+          future.cancel(true);
+        }
+      }
+    }
+
+    void await() throws InterruptedException, ProduceException {
+      if (!permits.tryAcquire(max, Math.max(0, deadline.remainingMs()), TimeUnit.MILLISECONDS)) {
+        cancelAll();
+        throw deadline.timedOut();
+      }
+      permits.release(max);
+      if (!failures.isEmpty()) {
+        ProduceException e = new ProduceException(failures.size() + " documents failed : " + failures.get(0).getMessage(),
+            failures.get(0));
+        failures.stream().skip(1).forEach(f -> e.addSuppressed(f));
+        throw e;
+      }
+    }
+
+    /**
+     * Stop waiting for any requests that are still outstanding; ElasticSearch has no way of cancelling a request that has been
+     * sent, so the responses are just ignored.
+     */
+    @Override
+    public void close() {
+      cancelAll();
+    }
+  }
 }
@@ -0,0 +1,288 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.hibernate.validator.constraints.NotBlank;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adaptris.annotation.InputFieldDefault;
+import com.adaptris.core.CoreException;
+import com.adaptris.core.util.ExceptionHelper;
+import com.adaptris.util.TimeInterval;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * A local write-ahead log for bulk requests, so that messages are not held up when the cluster is slow.
+ *
+ * <p>
+ * When configured, each bulk request is serialized and appended to a memory mapped segment file in {@link #getDirectory()}; the
+ * message is considered produced as soon as the request has been forced to disk. A background thread then replays the requests
+ * from the log against the cluster in the order they were written, at whatever rate the cluster will accept them. Rejected
+ * documents are retried until they are accepted; if the cluster is unavailable, or doesn't respond within
+ * {@link #getReplayTimeout()}, then the same request is retried after {@link #getRetryInterval()}. Documents that fail for any
+ * other reason (e.g. mapping errors) can't fail the message (it has already been produced), so they are logged.
+ * </p>
+ * <p>
+ * A request that can't be read back from the log is logged, copied to a {@code corrupt-*} file in the same directory, and
+ * skipped.
+ * </p>
+ * <p>
+ * The position of the last request that was successfully replayed is recorded; if the adapter is restarted then replaying resumes
+ * from that point. This means that delivery to ElasticSearch is at-least-once; a request that was in progress when the adapter
+ * stopped will be sent again, which may cause duplicates if document ids are generated by ElasticSearch.
+ * </p>
+ * <p>
+ * Each producer must have its own directory.
+ * </p>
+ *
+ * @config es5-bulk-spill-buffer
+ */
+@XStreamAlias("es5-bulk-spill-buffer")
+public class SpillBuffer {
+
+  private static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+  private static final TimeInterval DEFAULT_RETRY_INTERVAL = new TimeInterval(10L, TimeUnit.SECONDS);
+  private static final TimeInterval DEFAULT_REPLAY_TIMEOUT = new TimeInterval(2L, TimeUnit.MINUTES);
+  private static final long IDLE_WAIT_MS = 1000L;
+
+  @NotBlank
+  private String directory;
+  @Min(1024)
+  @InputFieldDefault(value = "67108864")
+  private Long segmentSizeBytes;
+  @Valid
+  private TimeInterval retryInterval;
+  @Valid
+  private TimeInterval replayTimeout;
+
+  private transient Logger log = LoggerFactory.getLogger(this.getClass());
+  private transient SpillLog spillLog;
+  private transient Thread drainer;
+  private transient volatile boolean draining = false;
+
+  public SpillBuffer() {
+
+  }
+
+  public SpillBuffer(String dir) {
+    this();
+    setDirectory(dir);
+  }
+
+  /**
+   * Open the log, recovering anything that was not replayed before the last shutdown.
+   *
+   */
+  public void init() throws CoreException {
+    if (StringUtils.isBlank(getDirectory())) {
+      throw new CoreException("No directory configured for the spill buffer");
+    }
+    try {
+      spillLog = SpillLog.open(Paths.get(getDirectory()), segmentSizeBytes());
+    }
+    catch (Exception e) {
+      throw ExceptionHelper.wrapCoreException(e);
+    }
+  }
+
+  /**
+   * Start replaying requests from the log.
+   *
+   */
+  public synchronized void start(Replayer replayer) {
+    draining = true;
+    drainer = new Thread(() -> drain(replayer), getClass().getSimpleName() + "@" + getDirectory());
+    drainer.start();
+  }
+
+  /**
+   * Stop replaying requests; anything not yet replayed will be replayed when next started.
+   *
+   */
+  public synchronized void stop() {
+    draining = false;
+    if (drainer != null) {
+      drainer.interrupt();
+      try {
+        drainer.join(retryIntervalMs());
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      drainer = null;
+    }
+  }
+
+  public void close() {
+    if (spillLog != null) {
+      spillLog.close();
+      spillLog = null;
+    }
+  }
+
+  /**
+   * Append the request to the log.
+   *
+   */
+  public void append(BulkRequest request) throws IOException {
+    try (BytesStreamOutput out = new BytesStreamOutput()) {
+      request.writeTo(out);
+      spillLog.append(BytesReference.toBytes(out.bytes()));
+    }
+  }
+
+  private void drain(Replayer replayer) {
+    while (draining) {
+      try {
+        byte[] data = spillLog.next(IDLE_WAIT_MS);
+        if (data == null) {
+          continue;
+        }
+        BulkRequest request = read(data);
+        if (request == null) {
+          spillLog.quarantine();
+          continue;
+        }
+        int failed = replayer.replay(request);
+        if (failed > 0) {
+          log.warn("{} of {} spilled documents failed permanently", failed, request.numberOfActions());
+        }
+        spillLog.ack();
+      }
+      catch (InterruptedException e) {
+        break;
+      }
+      catch (Exception e) {
+        if (!draining) {
+          break;
+        }
+        log.warn("Failed to replay spilled bulk request, retrying in {}ms", retryIntervalMs(), e);
+        try {
+          Thread.sleep(retryIntervalMs());
+        }
+        catch (InterruptedException e1) {
+          break;
+        }
+      }
+    }
+  }
+
+  private BulkRequest read(byte[] data) {
+    try {
+      BulkRequest request = new BulkRequest();
+      request.readFrom(StreamInput.wrap(data));
+      return request;
+    }
+    catch (IOException | RuntimeException e) {
+      // It'll never be any different, so retrying is pointless.
+      log.error("Failed to read spilled bulk request, skipping it", e);
+    }
+    return null;
+  }
+
+  public String getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Set the directory that will hold the log.
+   *
+   * @param s the directory, which will be created if it doesn't exist.
+   */
+  public void setDirectory(String s) {
+    this.directory = s;
+  }
+
+  public Long getSegmentSizeBytes() {
+    return segmentSizeBytes;
+  }
+
+  /**
+   * Set the size of each segment file.
+   *
+   * @param l the size of each segment, default is 64Mb if not specified.
+   */
+  public void setSegmentSizeBytes(Long l) {
+    this.segmentSizeBytes = l;
+  }
+
+  int segmentSizeBytes() {
+    long size = getSegmentSizeBytes() != null ? getSegmentSizeBytes().longValue() : DEFAULT_SEGMENT_SIZE;
+    return (int) Math.min(Integer.MAX_VALUE, size);
+  }
+
+  public TimeInterval getRetryInterval() {
+    return retryInterval;
+  }
+
+  /**
+   * Set how long to wait before replaying a request again if the cluster was unavailable.
+   *
+   * @param t the interval, default is 10 seconds if not specified.
+   */
+  public void setRetryInterval(TimeInterval t) {
+    this.retryInterval = t;
+  }
+
+  long retryIntervalMs() {
+    return getRetryInterval() != null ? getRetryInterval().toMilliseconds() : DEFAULT_RETRY_INTERVAL.toMilliseconds();
+  }
+
+  public TimeInterval getReplayTimeout() {
+    return replayTimeout;
+  }
+
+  /**
+   * Set how long to wait for the cluster to respond to each replayed request.
+   *
+   * @param t the timeout, default is 2 minutes if not specified.
+   */
+  public void setReplayTimeout(TimeInterval t) {
+    this.replayTimeout = t;
+  }
+
+  long replayTimeoutMs() {
+    return getReplayTimeout() != null ? getReplayTimeout().toMilliseconds() : DEFAULT_REPLAY_TIMEOUT.toMilliseconds();
+  }
+
+  /**
+   * Sends a request that has been read from the log.
+   *
+   */
+  @FunctionalInterface
+  public interface Replayer {
+    /**
+     * Send the request, returning once every document has either been accepted or has failed permanently.
+     *
+     * @return the number of documents that failed permanently.
+     */
+    int replay(BulkRequest request) throws Exception;
+  }
+}
@@ -0,0 +1,407 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A write-ahead log made up of a sequence of memory mapped segment files.
+ *
+ * <p>
+ * Each record is written as {@code [length][crc32][bytes]}; a length of 0 marks the end of the segment (the file is zero filled
+ * when it is created). The position of the last record that was acknowledged by the reader is stored in a separate checkpoint
+ * file, so that reading resumes from that point when the log is re-opened. Segments are unmapped and deleted once they have been
+ * completely read.
+ * </p>
+ * <p>
+ * A record that can't be read (e.g. its checksum doesn't match) is copied to a {@code corrupt-*} file in the same directory and
+ * skipped; if its length can't be trusted, then the rest of the segment is skipped.
+ * </p>
+ */
+class SpillLog implements Closeable {
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".wal";
+  private static final String CHECKPOINT = "checkpoint";
+  private static final String QUARANTINE_PREFIX = "corrupt-";
+  private static final int HEADER = 8;
+
+  private transient Logger log = LoggerFactory.getLogger(this.getClass());
+  private final Path directory;
+  private final int segmentSize;
+
+  private Segment writer;
+  private Segment reader;
+  private int readPosition;
+  // The position after the record returned by next(), committed by ack().
+  private int pendingPosition = -1;
+  private boolean closed = false;
+
+  private SpillLog(Path directory, int segmentSize) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Open the log, recovering any existing segments.
+   *
+   */
+  static SpillLog open(Path directory, int segmentSize) throws IOException {
+    Files.createDirectories(directory);
+    SpillLog spill = new SpillLog(directory, segmentSize);
+    spill.recover();
+    return spill;
+  }
+
+  private void recover() throws IOException {
+    TreeMap<Long, Path> segments = new TreeMap<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path p : files) {
+        String name = p.getFileName().toString();
+        segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), p);
+      }
+    }
+    long readSeq = segments.isEmpty() ? 0 : segments.firstKey();
+    int readPos = 0;
+    Path checkpoint = directory.resolve(CHECKPOINT);
+    if (Files.exists(checkpoint)) {
+      ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+      readSeq = buf.getLong();
+      readPos = buf.getInt();
+    }
+    // Anything before the checkpoint has already been acknowledged.
+    for (Long seq : segments.headMap(readSeq).keySet()) {
+      delete(segments.remove(seq));
+    }
+    if (segments.isEmpty()) {
+      writer = Segment.map(segmentPath(readSeq), readSeq, segmentSize);
+      reader = writer;
+      readPosition = 0;
+      checkpoint(readSeq, 0);
+      return;
+    }
+    writer = Segment.map(segments.lastEntry().getValue(), segments.lastKey(), segmentSize);
+    writer.position = writer.scanEnd();
+    writer.clearFrom(writer.position);
+    reader = segments.firstKey() == writer.seq ? writer : Segment.map(segments.firstEntry().getValue(), segments.firstKey(), 0);
+    readPosition = reader.seq == readSeq ? readPos : 0;
+    log.debug("Recovered spill log in [{}]; reading from segment {} at {}, writing to segment {} at {}", directory, reader.seq,
+        readPosition, writer.seq, writer.position);
+  }
+
+  /**
+   * Append a record, returning once it has been forced to disk.
+   *
+   */
+  synchronized void append(byte[] data) throws IOException {
+    ensureOpen();
+    if (writer.remaining() < HEADER + data.length) {
+      long seq = writer.seq + 1;
+      Segment full = writer;
+      full.force();
+      // Make sure that a single record always fits.
+      writer = Segment.map(segmentPath(seq), seq, Math.max(segmentSize, HEADER + data.length + 4));
+      if (full != reader) {
+        // The reader will map it again when it gets there.
+        full.unmap();
+      }
+    }
+    writer.write(data);
+    writer.force();
+    notifyAll();
+  }
+
+  /**
+   * Return the next record without acknowledging it, waiting for up to the specified time for one to be available.
+   *
+   * @return the record, or null if there was nothing available; calling next() again before {@link #ack()} returns the same
+   *         record.
+   */
+  synchronized byte[] next(long timeoutMs) throws IOException, InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (!closed) {
+      if (readPosition < reader.limit()) {
+        int length = reader.buffer.getInt(readPosition);
+        if (length < 0) {
+          skipCorrupt(length, "negative length");
+          continue;
+        }
+        if (length > 0) {
+          try {
+            byte[] data = reader.read(readPosition, length);
+            pendingPosition = readPosition + HEADER + length;
+            return data;
+          }
+          catch (IOException e) {
+            skipCorrupt(length, e.getMessage());
+            continue;
+          }
+        }
+      }
+      if (reader != writer) {
+        // Everything in this segment has been read.
+        Segment finished = reader;
+        long seq = finished.seq + 1;
+        reader = seq == writer.seq ? writer : Segment.map(segmentPath(seq), seq, 0);
+        readPosition = 0;
+        checkpoint(reader.seq, 0);
+        finished.unmap();
+        delete(finished.path);
+        continue;
+      }
+      long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0) {
+        break;
+      }
+      wait(wait);
+    }
+    return null;
+  }
+
+  /**
+   * Acknowledge the record returned by the last call to {@link #next(long)}.
+   *
+   */
+  synchronized void ack() throws IOException {
+    if (pendingPosition < 0) {
+      return;
+    }
+    readPosition = pendingPosition;
+    pendingPosition = -1;
+    checkpoint(reader.seq, readPosition);
+  }
+
+  /**
+   * Copy the record returned by the last call to {@link #next(long)} aside, and acknowledge it.
+   * <p>
+   * For records that were read successfully, but couldn't be used.
+   * </p>
+   */
+  synchronized void quarantine() throws IOException {
+    ensureOpen();
+    if (pendingPosition < 0) {
+      return;
+    }
+    Path p = quarantine(readPosition + HEADER, pendingPosition);
+    log.error("Quarantined record at {} in segment {} to [{}]", readPosition, reader.seq, p);
+    ack();
+  }
+
+  // Skip just the record if its length is believable, otherwise everything after it in the segment.
+  private void skipCorrupt(int length, String reason) throws IOException {
+    long end = (long) readPosition + HEADER + length;
+    int written = reader == writer ? writer.position : reader.buffer.capacity();
+    int skipTo = length > 0 && end <= written ? (int) end : Math.max(written, readPosition + HEADER);
+    Path p = quarantine(readPosition, Math.min(skipTo, reader.buffer.capacity()));
+    log.error("Skipped corrupt record at {} in segment {} ({}); {} bytes copied to [{}]", readPosition, reader.seq, reason,
+        skipTo - readPosition, p);
+    readPosition = skipTo;
+    pendingPosition = -1;
+    checkpoint(reader.seq, readPosition);
+  }
+
+  private Path quarantine(int from, int to) throws IOException {
+    byte[] data = new byte[Math.max(0, to - from)];
+    ByteBuffer b = reader.buffer.duplicate();
+    b.position(from);
+    b.get(data);
+    Path p = directory.resolve(String.format("%s%020d-%010d.bin", QUARANTINE_PREFIX, reader.seq, readPosition));
+    Files.write(p, data);
+    return p;
+  }
+
+  private void checkpoint(long seq, int position) throws IOException {
+    Path tmp = directory.resolve(CHECKPOINT + ".tmp");
+    ByteBuffer buf = ByteBuffer.allocate(12).putLong(seq).putInt(position);
+    buf.flip();
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.write(buf);
+      channel.force(true);
+    }
+    Files.move(tmp, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Spill log [" + directory + "] is closed");
+    }
+  }
+
+  private Path segmentPath(long seq) {
+    return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+  }
+
+  private void delete(Path p) {
+    try {
+      Files.deleteIfExists(p);
+    }
+    catch (IOException e) {
+      log.warn("Failed to delete [{}]", p, e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (writer != null) {
+      writer.force();
+      writer.unmap();
+    }
+    if (reader != null && reader != writer) {
+      reader.unmap();
+    }
+    notifyAll();
+  }
+
+  private static class Segment {
+    private final Path path;
+    private final long seq;
+    private final MappedByteBuffer buffer;
+    private int position = 0;
+
+    private Segment(Path path, long seq, MappedByteBuffer buffer) {
+      this.path = path;
+      this.seq = seq;
+      this.buffer = buffer;
+    }
+
+    // If the file already exists, then it's mapped at its existing size, if larger.
+    static Segment map(Path path, long seq, int size) throws IOException {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        long mapSize = Math.max(size, channel.size());
+        return new Segment(path, seq, channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize));
+      }
+    }
+
+    int limit() {
+      return buffer.capacity() - HEADER;
+    }
+
+    int remaining() {
+      return buffer.capacity() - position;
+    }
+
+    void write(byte[] data) {
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      ByteBuffer b = buffer.duplicate();
+      b.position(position + 4);
+      b.putInt((int) crc.getValue());
+      b.put(data);
+      // The length goes in last, so that a partial write is never seen as a record.
+      buffer.putInt(position, data.length);
+      position += HEADER + data.length;
+    }
+
+    byte[] read(int offset, int length) throws IOException {
+      if (offset + HEADER + length > buffer.capacity()) {
+        throw new IOException("Corrupt record at " + offset + " in [" + path + "]");
+      }
+      byte[] data = new byte[length];
+      ByteBuffer b = buffer.duplicate();
+      b.position(offset + HEADER);
+      b.get(data);
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+        throw new IOException("Checksum mismatch for record at " + offset + " in [" + path + "]");
+      }
+      return data;
+    }
+
+    // Find the end of the last complete record.
+    int scanEnd() {
+      int offset = 0;
+      while (offset < limit()) {
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + HEADER + length > buffer.capacity()) {
+          break;
+        }
+        try {
+          read(offset, length);
+        }
+        catch (IOException e) {
+          break;
+        }
+        offset += HEADER + length;
+      }
+      return offset;
+    }
+
+    // Discard anything after the last complete record (e.g. a write that was interrupted by a crash).
+    void clearFrom(int offset) {
+      for (int i = offset; i < buffer.capacity(); i++) {
+        buffer.put(i, (byte) 0);
+      }
+    }
+
+    void force() {
+      buffer.force();
+    }
+
+    // Release the mapping now rather than when it's garbage collected, which also means the file can be deleted on Windows.
+    // The buffer must never be used again.
+    void unmap() {
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        return;
+      }
+      catch (NoSuchMethodException e) {
+        // Java 8.
+      }
+      catch (Exception e) {
+        return;
+      }
+      try {
+        Method cleaner = buffer.getClass().getMethod("cleaner");
+        cleaner.setAccessible(true);
+        Object c = cleaner.invoke(buffer);
+        if (c != null) {
+          c.getClass().getMethod("clean").invoke(c);
+        }
+      }
+      catch (Exception e) {
+        // Left for the garbage collector.
+      }
+    }
+  }
+}
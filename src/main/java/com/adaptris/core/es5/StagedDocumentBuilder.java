@@ -0,0 +1,40 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.util.concurrent.Callable;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.ProduceException;
+import com.adaptris.core.util.CloseableIterable;
+
+/**
+ * An {@link ElasticDocumentBuilder} that can separate reading the raw records from the message from building the documents.
+ * 
+ * @see ParallelDocumentBuilder
+ */
+public interface StagedDocumentBuilder extends ElasticDocumentBuilder {
+
+  /**
+   * Read the raw records from the message.
+   * <p>
+   * Iterating over the result reads each raw record on the calling thread; the returned task builds the document from that
+   * record and may be executed on any thread.
+   * </p>
+   */
+  CloseableIterable<Callable<DocumentWrapper>> buildTasks(AdaptrisMessage msg) throws ProduceException;
+}
@@ -16,41 +16,62 @@
 
 package com.adaptris.core.es5.actions;
 
-import java.io.IOException;
-
 import org.hibernate.validator.constraints.NotBlank;
 
 import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.ComponentLifecycleExtension;
+import com.adaptris.core.CoreException;
 import com.adaptris.core.ServiceException;
 import com.adaptris.core.es5.DocumentWrapper;
+import com.adaptris.core.util.ExceptionHelper;
+import com.jayway.jsonpath.Configuration;
 import com.jayway.jsonpath.JsonPath;
-import com.jayway.jsonpath.ReadContext;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
 /**
  * Extract the action using a json path.
+ * <p>
+ * The path is compiled once when the producer is initialised, so an invalid path fails then rather than on the first message.
+ * </p>
  * 
  * @config es5-jsonpath-action
  */
 @XStreamAlias("es5-jsonpath-action")
-public class JsonPathAction implements ActionExtractor {
+public class JsonPathAction implements ActionExtractor, ComponentLifecycleExtension {
+
+  private static final Configuration JSON_CONFIG = Configuration.defaultConfiguration();
 
   @NotBlank
   private String jsonPath;
-  
+
+  private transient volatile JsonPath compiledPath;
+
   public JsonPathAction() {
     setJsonPath("$.action");
   }
 
   @Override
-  public String extract(AdaptrisMessage msg, DocumentWrapper document) throws ServiceException {
+  public void prepare() throws CoreException {
     try {
-      String content = document.content().string();
-      ReadContext context = JsonPath.parse(content);
-      return context.read(getJsonPath());
-    } catch (IOException e) {
-      throw new ServiceException(e);
+      compiledPath = JsonPath.compile(getJsonPath());
+    }
+    catch (RuntimeException e) {
+      throw ExceptionHelper.wrapCoreException(e);
+    }
+  }
+
+  @Override
+  public String extract(AdaptrisMessage msg, DocumentWrapper document) throws ServiceException {
+    return compiledPath().read(document.source().utf8ToString(), JSON_CONFIG);
+  }
+
+  private JsonPath compiledPath() {
+    JsonPath result = compiledPath;
+    if (result == null) {
+      // Not prepared, compile it on first use instead.
+      result = compiledPath = JsonPath.compile(getJsonPath());
     }
+    return result;
   }
 
   public String getJsonPath() {
@@ -59,6 +80,7 @@ public class JsonPathAction implements ActionExtractor {
 
   public void setJsonPath(String jsonPath) {
     this.jsonPath = jsonPath;
+    compiledPath = null;
   }
 
 }
@@ -17,6 +17,8 @@
 package com.adaptris.core.es5.actions;
 
 import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.ComponentLifecycleExtension;
+import com.adaptris.core.CoreException;
 import com.adaptris.core.ServiceException;
 import com.adaptris.core.es5.DocumentAction;
 import com.adaptris.core.es5.DocumentWrapper;
@@ -33,7 +35,7 @@ import com.thoughtworks.xstream.annotations.XStreamAlias;
  * @config es5-mapped-action
  */
 @XStreamAlias("es5-mapped-action")
-public class MappedAction implements ActionExtractor {
+public class MappedAction implements ActionExtractor, ComponentLifecycleExtension {
 
   private ActionExtractor action;
   private KeyValuePairList mappings;
@@ -42,6 +44,13 @@ public class MappedAction implements ActionExtractor {
     setMappings(new KeyValuePairList());
   }
 
+  @Override
+  public void prepare() throws CoreException {
+    if (getAction() instanceof ComponentLifecycleExtension) {
+      ((ComponentLifecycleExtension) getAction()).prepare();
+    }
+  }
+
   @Override
   public String extract(AdaptrisMessage msg, DocumentWrapper document) throws ServiceException {
     String action = getAction().extract(msg, document);
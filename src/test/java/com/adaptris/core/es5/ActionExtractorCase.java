@@ -17,6 +17,7 @@
 package com.adaptris.core.es5;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 
@@ -26,6 +27,7 @@ import org.junit.Test;
 
 import com.adaptris.core.AdaptrisMessage;
 import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.core.CoreException;
 import com.adaptris.core.ServiceException;
 import com.adaptris.core.es5.actions.ConfiguredAction;
 import com.adaptris.core.es5.actions.JsonPathAction;
@@ -76,6 +78,21 @@ public class ActionExtractorCase {
     }
   }
   
+  @Test
+  public void testJsonPathAction_InvalidPath() throws Exception {
+    JsonPathAction action = new JsonPathAction();
+    action.setJsonPath("$.[");
+    MappedAction mapped = new MappedAction();
+    mapped.setAction(action);
+    try {
+      mapped.prepare();
+      fail();
+    }
+    catch (CoreException expected) {
+
+    }
+  }
+
   @Test
   public void testMappedAction() throws ServiceException {
     final String KEY = "myaction";
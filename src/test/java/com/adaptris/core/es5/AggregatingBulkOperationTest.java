@@ -0,0 +1,277 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.junit.Test;
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.core.ConfiguredProduceDestination;
+import com.adaptris.core.ProduceException;
+import com.adaptris.core.ProducerCase;
+import com.adaptris.core.StandaloneProducer;
+import com.adaptris.core.es5.types.ConfiguredTypeBuilder;
+import com.adaptris.core.util.LifecycleHelper;
+import com.adaptris.util.KeyValuePair;
+import com.adaptris.util.KeyValuePairSet;
+import com.adaptris.util.TimeInterval;
+
+public class AggregatingBulkOperationTest extends ProducerCase {
+
+  private static final String EXAMPLE_COMMENT_HEADER = "\n<!--" + "\n-->\n";
+
+  @Override
+  public boolean isAnnotatedForJunit4() {
+    return true;
+  }
+
+  @Test
+  public void testLingerTime() throws Exception {
+    AggregatingBulkOperation producer = new AggregatingBulkOperation();
+    assertNull(producer.getLingerTime());
+    assertEquals(50, producer.lingerTimeMs());
+    producer.setLingerTime(new TimeInterval(1L, TimeUnit.SECONDS));
+    assertEquals(1000, producer.lingerTimeMs());
+  }
+
+  @Test
+  public void testLinger() throws Exception {
+    MockTransportClient client = new MockTransportClient(
+        (request, listener) -> listener.onResponse(MockTransportClient.accepted((BulkRequest) request)));
+    AggregatingBulkOperation producer = new AggregatingBulkOperation();
+    producer.setLingerTime(new TimeInterval(100L, TimeUnit.MILLISECONDS));
+    StandaloneProducer sp = client.start(producer);
+    try {
+      long started = System.nanoTime();
+      producer.request(newMessage(), producer.getDestination(), 5000);
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 100);
+      assertEquals(1, client.bulkRequests().size());
+      assertEquals(1, client.bulkRequests().get(0).numberOfActions());
+    }
+    finally {
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testAggregatesMessages() throws Exception {
+    MockTransportClient client = new MockTransportClient(
+        (request, listener) -> listener.onResponse(MockTransportClient.accepted((BulkRequest) request)));
+    AggregatingBulkOperation producer = new AggregatingBulkOperation();
+    producer.setBatchWindow(3);
+    producer.setLingerTime(new TimeInterval(1L, TimeUnit.MINUTES));
+    StandaloneProducer sp = client.start(producer);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      List<Future<AdaptrisMessage>> produced = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        produced.add(executor.submit(() -> producer.request(newMessage(), producer.getDestination(), 5000)));
+      }
+      for (Future<AdaptrisMessage> f : produced) {
+        f.get(10, TimeUnit.SECONDS);
+      }
+      assertEquals(1, client.bulkRequests().size());
+      assertEquals(3, client.bulkRequests().get(0).numberOfActions());
+    }
+    finally {
+      executor.shutdownNow();
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testRetry() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    MockTransportClient client = new MockTransportClient((request, listener) -> listener
+        .onResponse(MockTransportClient.respond((BulkRequest) request, (i) -> attempts.getAndIncrement() == 0)));
+    AggregatingBulkOperation producer = new AggregatingBulkOperation();
+    producer.setLingerTime(new TimeInterval(10L, TimeUnit.MILLISECONDS));
+    producer.setRetryPolicy(retryPolicy(2, 10));
+    StandaloneProducer sp = client.start(producer);
+    try {
+      producer.request(newMessage(), producer.getDestination(), 5000);
+      assertEquals(2, client.bulkRequests().size());
+      assertEquals(1, client.bulkRequests().get(1).numberOfActions());
+    }
+    finally {
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testRetry_Exhausted() throws Exception {
+    MockTransportClient client = new MockTransportClient(
+        (request, listener) -> listener.onResponse(MockTransportClient.respond((BulkRequest) request, (i) -> true)));
+    AggregatingBulkOperation producer = new AggregatingBulkOperation();
+    producer.setLingerTime(new TimeInterval(10L, TimeUnit.MILLISECONDS));
+    producer.setRetryPolicy(retryPolicy(1, 10));
+    StandaloneProducer sp = client.start(producer);
+    try {
+      producer.request(newMessage(), producer.getDestination(), 5000);
+      fail();
+    }
+    catch (ProduceException expected) {
+      assertEquals(2, client.bulkRequests().size());
+    }
+    finally {
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testBackPressure() throws Exception {
+    BlockingQueue<Held> held = new LinkedBlockingQueue<>();
+    MockTransportClient client = new MockTransportClient((request, listener) -> held.add(new Held(request, listener)));
+    AggregatingBulkOperation producer = new AggregatingBulkOperation();
+    producer.setBatchWindow(1);
+    producer.setConcurrentRequests(1);
+    StandaloneProducer sp = client.start(producer);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<AdaptrisMessage> first = executor.submit(() -> producer.request(newMessage(), producer.getDestination(), 5000));
+      Future<AdaptrisMessage> second = executor.submit(() -> producer.request(newMessage(), producer.getDestination(), 5000));
+      Held sent = held.poll(5, TimeUnit.SECONDS);
+      assertNotNull(sent);
+      // The other batch is full, but has to wait for the first to complete.
+      Thread.sleep(200);
+      assertEquals(1, client.bulkRequests().size());
+      sent.accept();
+      Held next = held.poll(5, TimeUnit.SECONDS);
+      assertNotNull(next);
+      next.accept();
+      first.get(5, TimeUnit.SECONDS);
+      second.get(5, TimeUnit.SECONDS);
+      assertEquals(2, client.bulkRequests().size());
+    }
+    finally {
+      executor.shutdownNow();
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testLingerWhileRetrying() throws Exception {
+    BlockingQueue<Held> held = new LinkedBlockingQueue<>();
+    MockTransportClient client = new MockTransportClient((request, listener) -> held.add(new Held(request, listener)));
+    AggregatingBulkOperation producer = new AggregatingBulkOperation();
+    producer.setConcurrentRequests(1);
+    producer.setLingerTime(new TimeInterval(10L, TimeUnit.MILLISECONDS));
+    producer.setRetryPolicy(retryPolicy(1, 200));
+    StandaloneProducer sp = client.start(producer);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<AdaptrisMessage> first = executor.submit(() -> producer.request(newMessage(), producer.getDestination(), 5000));
+      Held sent = held.poll(5, TimeUnit.SECONDS);
+      assertNotNull(sent);
+      sent.reject();
+      // Lingers while the first batch is backing off, and has to wait for the retry to complete.
+      Future<AdaptrisMessage> second = executor.submit(() -> producer.request(newMessage(), producer.getDestination(), 5000));
+      Held retry = held.poll(5, TimeUnit.SECONDS);
+      assertNotNull(retry);
+      retry.accept();
+      Held next = held.poll(5, TimeUnit.SECONDS);
+      assertNotNull(next);
+      next.accept();
+      first.get(5, TimeUnit.SECONDS);
+      second.get(5, TimeUnit.SECONDS);
+      assertEquals(3, client.bulkRequests().size());
+    }
+    catch (ExecutionException e) {
+      fail(e.getCause().getMessage());
+    }
+    finally {
+      executor.shutdownNow();
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  private static AdaptrisMessage newMessage() {
+    return AdaptrisMessageFactory.getDefaultInstance().newMessage("hello world");
+  }
+
+  private static BulkRetryPolicy retryPolicy(int retries, long backoffMs) {
+    BulkRetryPolicy policy = new BulkRetryPolicy(retries);
+    policy.setInitialBackoff(new TimeInterval(backoffMs, TimeUnit.MILLISECONDS));
+    return policy;
+  }
+
+  // A request that the test responds to when it's ready.
+  private static class Held {
+    private final BulkRequest request;
+    private final ActionListener<Object> listener;
+
+    Held(Object request, ActionListener<Object> listener) {
+      this.request = (BulkRequest) request;
+      this.listener = listener;
+    }
+
+    void accept() {
+      respond(MockTransportClient.accepted(request));
+    }
+
+    void reject() {
+      respond(MockTransportClient.respond(request, (i) -> true));
+    }
+
+    private void respond(BulkResponse response) {
+      listener.onResponse(response);
+    }
+  }
+
+  @Override
+  protected Object retrieveObjectForSampleConfig() {
+    KeyValuePairSet settings = new KeyValuePairSet();
+    settings.add(new KeyValuePair("cluster.name", "my-cluster"));
+    settings.add(new KeyValuePair("client.transport.sniff", "true"));
+    ElasticSearchConnection esc = new ElasticSearchConnection();
+    esc.setSettings(settings);
+    esc.addTransportUrl("localhost:9300");
+    esc.addTransportUrl("localhost:9301");
+    esc.addTransportUrl("localhost:9302");
+
+    AggregatingBulkOperation producer = new AggregatingBulkOperation();
+    producer.setBatchWindow(1000);
+    producer.setBatchSizeBytes(5L * 1024 * 1024);
+    producer.setLingerTime(new TimeInterval(50L, TimeUnit.MILLISECONDS));
+    producer.setDestination(new ConfiguredProduceDestination("myIndex"));
+    producer.setDocumentBuilder(new JsonDocumentBuilder(new ConfiguredTypeBuilder("myType")));
+    return new StandaloneProducer(esc, producer);
+  }
+
+  @Override
+  protected String getExampleCommentHeader(Object o) {
+    return super.getExampleCommentHeader(o) + EXAMPLE_COMMENT_HEADER;
+  }
+
+}
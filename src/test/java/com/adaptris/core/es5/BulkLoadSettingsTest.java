@@ -0,0 +1,183 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.adaptris.util.TimeInterval;
+
+public class BulkLoadSettingsTest {
+
+  private MockTransportClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    // "alias" refers to index-1 which has settings, and index-2 which has the defaults.
+    GetSettingsResponse settings = new GetSettingsResponse(ImmutableOpenMap.<String, Settings> builder()
+        .fPut("index-1",
+            Settings.builder().put(BulkLoadSettings.REFRESH_INTERVAL, "5s").put(BulkLoadSettings.NUMBER_OF_REPLICAS, "2").build())
+        .fPut("index-2", Settings.EMPTY).build());
+    client = new MockTransportClient((request, listener) -> {
+      listener.onResponse(request instanceof GetSettingsRequest ? settings : null);
+    });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+  }
+
+  @Test
+  public void testAlias() throws Exception {
+    BulkLoadSettings bulkLoad = new BulkLoadSettings();
+    bulkLoad.setIdleTimeout(new TimeInterval(0L, TimeUnit.MILLISECONDS));
+    bulkLoad.begin(client, "alias");
+    List<UpdateSettingsRequest> updates = updates();
+    assertEquals(1, updates.size());
+    assertArrayEquals(new String[] {"index-1", "index-2"}, updates.get(0).indices());
+    assertEquals("-1", updates.get(0).settings().get(BulkLoadSettings.REFRESH_INTERVAL));
+
+    bulkLoad.end(client, "alias", true);
+    updates = updates();
+    assertEquals(3, updates.size());
+    assertArrayEquals(new String[] {"index-1"}, updates.get(1).indices());
+    assertEquals("5s", updates.get(1).settings().get(BulkLoadSettings.REFRESH_INTERVAL));
+    assertEquals("2", updates.get(1).settings().get(BulkLoadSettings.NUMBER_OF_REPLICAS));
+    assertArrayEquals(new String[] {"index-2"}, updates.get(2).indices());
+    // Reset to the default.
+    assertNull(updates.get(2).settings().get(BulkLoadSettings.REFRESH_INTERVAL));
+    assertEquals(1, client.requests().stream().filter(r -> r instanceof RefreshRequest).count());
+  }
+
+  @Test
+  public void testIdleTimeout() throws Exception {
+    BulkLoadSettings bulkLoad = new BulkLoadSettings();
+    bulkLoad.setIdleTimeout(new TimeInterval(300L, TimeUnit.MILLISECONDS));
+    for (int i = 0; i < 5; i++) {
+      bulkLoad.begin(client, "alias");
+      bulkLoad.end(client, "alias", false);
+    }
+    // Only tuned once, and not restored between messages.
+    assertEquals(1, client.requests().stream().filter(r -> r instanceof GetSettingsRequest).count());
+    assertEquals(1, updates().size());
+    Thread.sleep(1000);
+    assertEquals(3, updates().size());
+    bulkLoad.restoreAll(client);
+    assertEquals(3, updates().size());
+  }
+
+  @Test
+  public void testRestoreAll() throws Exception {
+    BulkLoadSettings bulkLoad = new BulkLoadSettings();
+    bulkLoad.begin(client, "alias");
+    bulkLoad.end(client, "alias", false);
+    assertEquals(1, updates().size());
+    bulkLoad.restoreAll(client);
+    assertEquals(3, updates().size());
+  }
+
+  @Test
+  public void testMissingIndex() throws Exception {
+    AtomicBoolean exists = new AtomicBoolean(false);
+    GetSettingsResponse settings = new GetSettingsResponse(
+        ImmutableOpenMap.<String, Settings> builder().fPut("index", Settings.EMPTY).build());
+    MockTransportClient missing = new MockTransportClient((request, listener) -> {
+      if (request instanceof GetSettingsRequest) {
+        assertEquals(IndicesOptions.lenientExpandOpen(), ((GetSettingsRequest) request).indicesOptions());
+        listener.onResponse(exists.get() ? settings : new GetSettingsResponse(ImmutableOpenMap.of()));
+        return;
+      }
+      listener.onResponse(null);
+    });
+    try {
+      BulkLoadSettings bulkLoad = new BulkLoadSettings();
+      bulkLoad.setIdleTimeout(new TimeInterval(0L, TimeUnit.MILLISECONDS));
+      bulkLoad.begin(missing, "index");
+      bulkLoad.end(missing, "index", false);
+      assertEquals(0, missing.requests().stream().filter(r -> r instanceof UpdateSettingsRequest).count());
+      // Created by the first message, so the next one tunes it.
+      exists.set(true);
+      bulkLoad.begin(missing, "index");
+      assertEquals(1, missing.requests().stream().filter(r -> r instanceof UpdateSettingsRequest).count());
+      bulkLoad.end(missing, "index", false);
+      assertEquals(2, missing.requests().stream().filter(r -> r instanceof UpdateSettingsRequest).count());
+    }
+    finally {
+      missing.close();
+    }
+  }
+
+  @Test
+  public void testTuneFails() throws Exception {
+    GetSettingsResponse settings = new GetSettingsResponse(
+        ImmutableOpenMap.<String, Settings> builder().fPut("index", Settings.EMPTY).build());
+    AtomicInteger updates = new AtomicInteger();
+    MockTransportClient failing = new MockTransportClient((request, listener) -> {
+      if (request instanceof UpdateSettingsRequest && updates.getAndIncrement() == 0) {
+        listener.onFailure(new ElasticsearchException("failed"));
+        return;
+      }
+      listener.onResponse(request instanceof GetSettingsRequest ? settings : null);
+    });
+    try {
+      BulkLoadSettings bulkLoad = new BulkLoadSettings();
+      try {
+        bulkLoad.begin(failing, "index");
+        fail();
+      }
+      catch (RuntimeException expected) {
+        // Restored straight away, in case it was partially applied.
+        assertEquals(2, updates.get());
+      }
+      // Not left looking as though it's tuned.
+      bulkLoad.begin(failing, "index");
+      assertEquals(2, failing.requests().stream().filter(r -> r instanceof GetSettingsRequest).count());
+      assertEquals(3, updates.get());
+      bulkLoad.restoreAll(failing);
+      assertEquals(4, updates.get());
+    }
+    finally {
+      failing.close();
+    }
+  }
+
+  private List<UpdateSettingsRequest> updates() {
+    return client.requests().stream().filter(r -> r instanceof UpdateSettingsRequest).map(r -> (UpdateSettingsRequest) r)
+        .collect(Collectors.toList());
+  }
+}
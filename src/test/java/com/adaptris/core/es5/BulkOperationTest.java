@@ -17,14 +17,43 @@
 package com.adaptris.core.es5;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.junit.Test;
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
 import com.adaptris.core.ConfiguredProduceDestination;
+import com.adaptris.core.ProduceException;
 import com.adaptris.core.ProducerCase;
 import com.adaptris.core.StandaloneProducer;
 import com.adaptris.core.es5.types.ConfiguredTypeBuilder;
+import com.adaptris.core.util.LifecycleHelper;
 import com.adaptris.util.KeyValuePair;
 import com.adaptris.util.KeyValuePairSet;
+import com.adaptris.util.TimeInterval;
 
 public class BulkOperationTest extends ProducerCase {
 
@@ -43,6 +72,383 @@ public class BulkOperationTest extends ProducerCase {
     assertEquals("wait_until", producer.getRefreshPolicy());
   }
 
+  @Test
+  public void testConcurrentRequests() throws Exception {
+    BulkOperation producer = new BulkOperation();
+    assertNull(producer.getConcurrentRequests());
+    assertEquals(0, producer.concurrentRequests());
+    producer.setConcurrentRequests(4);
+    assertEquals(Integer.valueOf(4), producer.getConcurrentRequests());
+    assertEquals(4, producer.concurrentRequests());
+  }
+
+  @Test
+  public void testBatchSizeBytes() throws Exception {
+    BulkOperation producer = new BulkOperation();
+    assertNull(producer.getBatchSizeBytes());
+    assertEquals(0, producer.batchSizeBytes());
+    producer.setBatchSizeBytes(5L * 1024 * 1024);
+    assertEquals(5L * 1024 * 1024, producer.batchSizeBytes());
+  }
+
+  @Test
+  public void testRetryPolicy() throws Exception {
+    BulkOperation producer = new BulkOperation();
+    assertNull(producer.getRetryPolicy());
+    assertEquals(0, producer.retryPolicy().maxRetries());
+    assertTrue(producer.failOnItemFailure());
+    producer.setRetryPolicy(new BulkRetryPolicy());
+    producer.setFailOnItemFailure(false);
+    assertEquals(3, producer.retryPolicy().maxRetries());
+    assertFalse(producer.failOnItemFailure());
+  }
+
+  @Test
+  public void testRetryPolicy_Backoff() throws Exception {
+    BulkRetryPolicy policy = new BulkRetryPolicy();
+    policy.setInitialBackoff(new TimeInterval(100L, TimeUnit.MILLISECONDS));
+    policy.setMaxBackoff(new TimeInterval(1L, TimeUnit.SECONDS));
+    for (int i = 0; i < 10; i++) {
+      long delay = policy.backoffMillis(i);
+      long ceiling = Math.min(1000L, 100L << i);
+      assertTrue(delay >= ceiling / 2);
+      assertTrue(delay <= ceiling);
+    }
+  }
+
+  @Test
+  public void testAdaptiveBatchWindow() throws Exception {
+    BulkOperation producer = new BulkOperation();
+    producer.setBatchWindow(1000);
+    assertEquals(1000, producer.currentBatchWindow());
+    AdaptiveBatchWindow adaptive = new AdaptiveBatchWindow(100, 2000);
+    adaptive.setIncrement(500);
+    adaptive.setTargetLatency(new TimeInterval(1L, TimeUnit.SECONDS));
+    producer.setAdaptiveBatchWindow(adaptive);
+    adaptive.reset(producer.batchWindow());
+    assertEquals(1000, producer.currentBatchWindow());
+    adaptive.update(1000, 100, 200, 0);
+    assertEquals(1500, producer.currentBatchWindow());
+    // Not a full batch.
+    adaptive.update(1000, 100, 200, 0);
+    assertEquals(1500, producer.currentBatchWindow());
+    adaptive.update(1500, 100, 200, 0);
+    adaptive.update(2000, 100, 200, 0);
+    assertEquals(2000, producer.currentBatchWindow());
+    adaptive.update(2000, 100, 200, 1);
+    assertEquals(1000, producer.currentBatchWindow());
+    // Small batches can still shrink the window.
+    adaptive.update(10, 100, 5000, 0);
+    assertEquals(500, producer.currentBatchWindow());
+    for (int i = 0; i < 10; i++) {
+      adaptive.update(500, 5000, 5000, 0);
+    }
+    assertEquals(100, producer.currentBatchWindow());
+  }
+
+  @Test
+  public void testAdaptiveBatchWindow_OnlyFullBatchesGrow() throws Exception {
+    MockTransportClient client = new MockTransportClient(
+        (request, listener) -> listener.onResponse(MockTransportClient.accepted((BulkRequest) request)));
+    AdaptiveBatchWindow adaptive = new AdaptiveBatchWindow(100, 20000);
+    adaptive.setIncrement(500);
+    BulkOperation producer = new BulkOperation();
+    producer.setDocumentBuilder(new JsonArrayDocumentBuilder());
+    producer.setBatchWindow(100);
+    producer.setAdaptiveBatchWindow(adaptive);
+    StandaloneProducer sp = client.start(producer);
+    try {
+      // Lots of small messages, none of which fill a batch.
+      for (int i = 0; i < 50; i++) {
+        producer.produce(jsonArray(10, 0), producer.getDestination());
+      }
+      assertEquals(100, producer.currentBatchWindow());
+      // The first batch is full, the trailing batch of 150 isn't.
+      producer.produce(jsonArray(250, 0), producer.getDestination());
+      assertEquals(600, producer.currentBatchWindow());
+    }
+    finally {
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testShardAwareBatching() throws Exception {
+    BulkOperation producer = new BulkOperation();
+    assertNull(producer.getShardAwareBatching());
+    assertFalse(producer.shardAwareBatching());
+    producer.setShardAwareBatching(true);
+    assertTrue(producer.shardAwareBatching());
+  }
+
+  @Test
+  public void testCoalesce() throws Exception {
+    BulkOperation producer = new BulkOperation();
+    assertNull(producer.getCoalesce());
+    assertFalse(producer.coalesce());
+    producer.setCoalesce(true);
+    assertTrue(producer.coalesce());
+  }
+
+  @Test
+  public void testBulkMemoryBudget() throws Exception {
+    ElasticSearchConnection esc = new ElasticSearchConnection();
+    assertEquals(0, esc.pendingBulkBytes());
+    BulkMemoryBudget budget = new BulkMemoryBudget(1000L);
+    budget.setBlockWhenExhausted(false);
+    esc.setBulkMemoryBudget(budget);
+    // Always allowed if nothing is in use.
+    assertTrue(budget.tryReserve(2000));
+    assertEquals(2000, esc.pendingBulkBytes());
+    assertFalse(budget.tryReserve(10));
+    try {
+      budget.reserve(10);
+      fail();
+    }
+    catch (ProduceException expected) {
+
+    }
+    budget.release(1500);
+    budget.reserve(500);
+    assertEquals(1000, esc.pendingBulkBytes());
+  }
+
+  @Test
+  public void testBulkLoadSettings() throws Exception {
+    BulkOperation producer = new BulkOperation();
+    assertNull(producer.getBulkLoadSettings());
+    BulkLoadSettings settings = new BulkLoadSettings();
+    assertFalse(settings.forceMerge());
+    assertEquals(1, settings.maxNumSegments());
+    assertEquals(30000, settings.idleTimeoutMs());
+    settings.setForceMerge(true);
+    settings.setMaxNumSegments(5);
+    settings.setIdleTimeout(new TimeInterval(0L, TimeUnit.SECONDS));
+    producer.setBulkLoadSettings(settings);
+    assertEquals(settings, producer.getBulkLoadSettings());
+    assertTrue(producer.getBulkLoadSettings().forceMerge());
+    assertEquals(5, producer.getBulkLoadSettings().maxNumSegments());
+    assertEquals(0, producer.getBulkLoadSettings().idleTimeoutMs());
+  }
+
+  @Test
+  public void testResultReport() throws Exception {
+    BulkOperation producer = new BulkOperation();
+    assertNull(producer.getResultReport());
+    BulkResultReport report = new BulkResultReport();
+    assertEquals(BulkResultReport.Target.PAYLOAD, report.target());
+    assertEquals("elasticBulkResults", report.metadataKey());
+    report.setTarget(BulkResultReport.Target.METADATA);
+    report.setMetadataKey("results");
+    producer.setResultReport(report);
+    assertEquals(BulkResultReport.Target.METADATA, producer.getResultReport().target());
+    assertEquals("results", producer.getResultReport().metadataKey());
+  }
+
+  @Test
+  public void testBatchSizeBytes_Flush() throws Exception {
+    // Each document is a little over 1000 bytes, so a batch is full after 2.
+    assertEquals(Arrays.asList(2, 2, 1), batchSizes(jsonArray(5, 1000), null, 2000L));
+    // Small documents never get near the limit.
+    assertEquals(Arrays.asList(5), batchSizes(jsonArray(5, 0), null, 2000L));
+    // Whichever limit is hit first.
+    assertEquals(Arrays.asList(2, 2, 1), batchSizes(jsonArray(5, 0), 2, 2000L));
+  }
+
+  private static List<Integer> batchSizes(AdaptrisMessage msg, Integer batchWindow, Long batchSizeBytes) throws Exception {
+    MockTransportClient client = new MockTransportClient(
+        (request, listener) -> listener.onResponse(MockTransportClient.accepted((BulkRequest) request)));
+    BulkOperation producer = new BulkOperation();
+    producer.setDocumentBuilder(new JsonArrayDocumentBuilder());
+    producer.setBatchWindow(batchWindow);
+    producer.setBatchSizeBytes(batchSizeBytes);
+    StandaloneProducer sp = client.start(producer);
+    try {
+      producer.produce(msg, producer.getDestination());
+      return client.bulkRequests().stream().map(BulkRequest::numberOfActions).collect(Collectors.toList());
+    }
+    finally {
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testShardAwareBatching_NoRoutingTable() throws Exception {
+    MockTransportClient client = new MockTransportClient((request, listener) -> {
+      if (!(request instanceof BulkRequest)) {
+        throw new IllegalStateException("No cluster state");
+      }
+      listener.onResponse(MockTransportClient.accepted((BulkRequest) request));
+    });
+    BulkOperation producer = new BulkOperation();
+    producer.setDocumentBuilder(new JsonArrayDocumentBuilder());
+    producer.setShardAwareBatching(true);
+    StandaloneProducer sp = client.start(producer);
+    try {
+      producer.produce(jsonArray(5, 0), producer.getDestination());
+      // Falls back to a single batch.
+      assertEquals(1, client.bulkRequests().size());
+      assertEquals(5, client.bulkRequests().get(0).numberOfActions());
+    }
+    finally {
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testConcurrentRequests_Pipelined() throws Exception {
+    BlockingQueue<ActionListener<Object>> held = new LinkedBlockingQueue<>();
+    MockTransportClient client = new MockTransportClient((request, listener) -> held.add(listener));
+    BulkOperation producer = new BulkOperation();
+    producer.setDocumentBuilder(new JsonArrayDocumentBuilder());
+    producer.setBatchWindow(1);
+    producer.setConcurrentRequests(2);
+    StandaloneProducer sp = client.start(producer);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> produced = executor.submit(() -> {
+        producer.produce(jsonArray(3, 0), producer.getDestination());
+        return null;
+      });
+      ActionListener<Object> first = held.poll(5, TimeUnit.SECONDS);
+      ActionListener<Object> second = held.poll(5, TimeUnit.SECONDS);
+      assertNotNull(first);
+      assertNotNull(second);
+      // Two batches are sent without waiting for a response, but the third has to wait for one of them.
+      Thread.sleep(200);
+      assertEquals(2, client.bulkRequests().size());
+      first.onResponse(MockTransportClient.accepted(client.bulkRequests().get(0)));
+      ActionListener<Object> third = held.poll(5, TimeUnit.SECONDS);
+      assertNotNull(third);
+      assertFalse(produced.isDone());
+      second.onResponse(MockTransportClient.accepted(client.bulkRequests().get(1)));
+      third.onResponse(MockTransportClient.accepted(client.bulkRequests().get(2)));
+      produced.get(5, TimeUnit.SECONDS);
+      assertEquals(3, client.bulkRequests().size());
+    }
+    finally {
+      executor.shutdownNow();
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testConcurrentRequests_CollectsFailures() throws Exception {
+    BlockingQueue<ActionListener<Object>> held = new LinkedBlockingQueue<>();
+    MockTransportClient client = new MockTransportClient((request, listener) -> held.add(listener));
+    BulkOperation producer = new BulkOperation();
+    producer.setDocumentBuilder(new JsonArrayDocumentBuilder());
+    producer.setBatchWindow(1);
+    producer.setConcurrentRequests(3);
+    StandaloneProducer sp = client.start(producer);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> produced = executor.submit(() -> {
+        producer.produce(jsonArray(3, 0), producer.getDestination());
+        return null;
+      });
+      List<ActionListener<Object>> sent = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        ActionListener<Object> listener = held.poll(5, TimeUnit.SECONDS);
+        assertNotNull(listener);
+        sent.add(listener);
+      }
+      // Every batch fails, and every failure is reported.
+      for (int i = 0; i < sent.size(); i++) {
+        sent.get(i).onFailure(new IOException("batch " + i + " failed"));
+      }
+      try {
+        produced.get(5, TimeUnit.SECONDS);
+        fail();
+      }
+      catch (ExecutionException expected) {
+        assertEquals(ProduceException.class, expected.getCause().getClass());
+        assertTrue(expected.getCause().getMessage().startsWith("batch "));
+        assertEquals(2, expected.getCause().getSuppressed().length);
+      }
+    }
+    finally {
+      executor.shutdownNow();
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testResultReport_AsyncResponses() throws Exception {
+    ScheduledExecutorService responder = Executors.newSingleThreadScheduledExecutor();
+    MockTransportClient client = new MockTransportClient((request, listener) -> responder.schedule(
+        () -> listener.onResponse(MockTransportClient.accepted((BulkRequest) request)), 50, TimeUnit.MILLISECONDS));
+    BulkOperation producer = new BulkOperation();
+    producer.setDocumentBuilder(new JsonArrayDocumentBuilder());
+    producer.setBatchWindow(2);
+    producer.setConcurrentRequests(2);
+    producer.setResultReport(new BulkResultReport());
+    StandaloneProducer sp = client.start(producer);
+    try {
+      AdaptrisMessage msg = jsonArray(5, 0);
+      producer.produce(msg, producer.getDestination());
+      assertEquals(3, client.bulkRequests().size());
+      // Every response arrived after the last batch was sent, and each one is in the report.
+      assertEquals(5, msg.getContent().trim().split("\n").length);
+    }
+    finally {
+      LifecycleHelper.stopAndClose(sp);
+      responder.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testMemoryBudget_Coalesce() throws Exception {
+    List<Long> pendingWhileCoalescing = new ArrayList<>();
+    List<Long> pendingWhenSent = new ArrayList<>();
+    List<Object> gaugeWhenSent = new ArrayList<>();
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName gauge = new ObjectName("com.adaptris:type=ElasticSearchBulkMemoryBudget,id=" + ObjectName.quote("es-connection"));
+    MockTransportClient client = new MockTransportClient((request, listener) -> {
+      gaugeWhenSent.add(mbeanServer.getAttribute(gauge, "PendingBulkBytes"));
+      listener.onResponse(MockTransportClient.accepted((BulkRequest) request));
+    });
+    ElasticSearchConnection esc = client.connection();
+    esc.setUniqueId("es-connection");
+    esc.setBulkMemoryBudget(new BulkMemoryBudget(1024L * 1024));
+    List<DocumentWrapper> docs = Arrays.asList(doc("1", "alice"), doc("2", "bob"), doc("1", "carol"));
+    BulkOperation producer = new BulkOperation();
+    producer.setCoalesce(true);
+    producer.setDocumentBuilder(
+        (msg) -> () -> docs.stream().peek((doc) -> pendingWhileCoalescing.add(esc.pendingBulkBytes())).iterator());
+    StandaloneProducer sp = client.start(producer, esc);
+    try {
+      producer.produce(AdaptrisMessageFactory.getDefaultInstance().newMessage(), producer.getDestination());
+      BulkRequest request = client.bulkRequests().get(0);
+      assertEquals(1, client.bulkRequests().size());
+      assertEquals(2, request.numberOfActions());
+      // Documents waiting to be coalesced hold their reservations.
+      assertEquals(0L, pendingWhileCoalescing.get(0).longValue());
+      assertTrue(pendingWhileCoalescing.get(1) > 0);
+      assertTrue(pendingWhileCoalescing.get(2) > pendingWhileCoalescing.get(1));
+      // Once sent, the reservation matches what's in the request (the merged document has been given back).
+      assertEquals(request.estimatedSizeInBytes(), ((Long) gaugeWhenSent.get(0)).longValue());
+      assertEquals(0, esc.pendingBulkBytes());
+    }
+    finally {
+      LifecycleHelper.stopAndClose(sp);
+    }
+    assertFalse(mbeanServer.isRegistered(gauge));
+  }
+
+  // A JSON array of documents, each with a field padded to the given length.
+  private static AdaptrisMessage jsonArray(int count, int padding) {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < count; i++) {
+      json.append(i > 0 ? "," : "").append("{\"uniqueid\":\"" + i + "\",\"data\":\"" + StringUtils.repeat('x', padding) + "\"}");
+    }
+    return AdaptrisMessageFactory.getDefaultInstance().newMessage(json.append("]").toString());
+  }
+
+  private static DocumentWrapper doc(String id, String name) throws Exception {
+    return new DocumentWrapper(id, XContentFactory.jsonBuilder().startObject().field("name", name).endObject(), "myType");
+  }
+
   @Override
   protected Object retrieveObjectForSampleConfig() {
     KeyValuePairSet settings = new KeyValuePairSet();
@@ -0,0 +1,112 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Test;
+
+public class ChangeDetectionCacheTest {
+
+  @Test
+  public void testUnchanged() throws Exception {
+    ChangeDetectionCache cache = new ChangeDetectionCache();
+    cache.init();
+    DocumentWrapper doc = doc("1", "alice");
+    assertFalse(cache.unchanged("myIndex", DocumentAction.INDEX, doc));
+    cache.written(index("myIndex", doc), true);
+    assertTrue(cache.unchanged("myIndex", DocumentAction.INDEX, doc("1", "alice")));
+    assertTrue(cache.unchanged("myIndex", DocumentAction.UPSERT, doc("1", "alice")));
+    assertFalse(cache.unchanged("myIndex", DocumentAction.INDEX, doc("1", "bob")));
+    assertFalse(cache.unchanged("anotherIndex", DocumentAction.INDEX, doc("1", "alice")));
+    // A partial update never matches a whole document
+    assertFalse(cache.unchanged("myIndex", DocumentAction.UPDATE, doc("1", "alice")));
+    assertEquals(5, cache.lookups());
+    assertEquals(2, cache.hits());
+    assertEquals(0.4, cache.hitRate(), 0.001);
+  }
+
+  @Test
+  public void testUpdate() throws Exception {
+    ChangeDetectionCache cache = new ChangeDetectionCache();
+    cache.init();
+    DocumentWrapper doc = doc("1", "alice");
+    cache.written(new UpdateRequest("myIndex", doc.type(), doc.uniqueId()).doc(doc.content()), true);
+    assertTrue(cache.unchanged("myIndex", DocumentAction.UPDATE, doc("1", "alice")));
+    assertFalse(cache.unchanged("myIndex", DocumentAction.INDEX, doc("1", "alice")));
+  }
+
+  @Test
+  public void testForget() throws Exception {
+    ChangeDetectionCache cache = new ChangeDetectionCache();
+    cache.init();
+    DocumentWrapper doc = doc("1", "alice");
+    cache.written(index("myIndex", doc), true);
+    assertFalse(cache.unchanged("myIndex", DocumentAction.DELETE, doc("1", "alice")));
+    assertFalse(cache.unchanged("myIndex", DocumentAction.INDEX, doc("1", "alice")));
+
+    cache.written(index("myIndex", doc), true);
+    cache.written(new DeleteRequest("myIndex", doc.type(), doc.uniqueId()), true);
+    assertFalse(cache.unchanged("myIndex", DocumentAction.INDEX, doc("1", "alice")));
+
+    cache.written(index("myIndex", doc), true);
+    cache.written(index("myIndex", doc("1", "bob")), false);
+    assertFalse(cache.unchanged("myIndex", DocumentAction.INDEX, doc("1", "alice")));
+  }
+
+  @Test
+  public void testNoId() throws Exception {
+    ChangeDetectionCache cache = new ChangeDetectionCache();
+    cache.init();
+    DocumentWrapper doc = doc(null, "alice");
+    cache.written(index("myIndex", doc), true);
+    assertFalse(cache.unchanged("myIndex", DocumentAction.INDEX, doc));
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    ChangeDetectionCache cache = new ChangeDetectionCache(64);
+    cache.init();
+    for (int i = 0; i < 1000; i++) {
+      cache.written(index("myIndex", doc(String.valueOf(i), "alice")), true);
+    }
+    int remembered = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (cache.unchanged("myIndex", DocumentAction.INDEX, doc(String.valueOf(i), "alice"))) {
+        remembered++;
+      }
+    }
+    assertTrue(remembered > 0);
+    assertTrue(remembered <= 64);
+    // The most recent is always remembered.
+    assertTrue(cache.unchanged("myIndex", DocumentAction.INDEX, doc("999", "alice")));
+  }
+
+  private static IndexRequest index(String index, DocumentWrapper doc) {
+    return new IndexRequest(index, doc.type(), doc.uniqueId()).source(doc.content());
+  }
+
+  private static DocumentWrapper doc(String id, String name) throws Exception {
+    return new DocumentWrapper(id, XContentFactory.jsonBuilder().startObject().field("name", name).endObject(), "myType");
+  }
+}
@@ -0,0 +1,220 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Test;
+
+public class CoalescingBatchTest {
+
+  @Test
+  public void testIndexThenUpdate() throws Exception {
+    CoalescingBatch batch = new CoalescingBatch();
+    batch.add(DocumentAction.INDEX, doc("1", "name", "alice"));
+    batch.add(DocumentAction.INDEX, doc("2", "name", "bob"));
+    batch.add(DocumentAction.UPDATE, doc("1", "age", "30"));
+    assertEquals(2, batch.size());
+    List<DocumentWrapper> docs = new ArrayList<>();
+    List<DocumentAction> actions = new ArrayList<>();
+    batch.drain((action, doc) -> {
+      actions.add(action);
+      docs.add(doc);
+    });
+    assertEquals(0, batch.size());
+    assertEquals(DocumentAction.INDEX, actions.get(0));
+    assertEquals("1", docs.get(0).uniqueId());
+    Map<String, Object> source = XContentHelper.convertToMap(docs.get(0).content().bytes(), true).v2();
+    assertEquals("alice", source.get("name"));
+    assertEquals("30", source.get("age"));
+    assertEquals("2", docs.get(1).uniqueId());
+  }
+
+  @Test
+  public void testDelete() throws Exception {
+    CoalescingBatch batch = new CoalescingBatch();
+    batch.add(DocumentAction.INDEX, doc("1", "name", "alice"));
+    batch.add(DocumentAction.UPDATE, doc("1", "age", "30"));
+    batch.add(DocumentAction.DELETE, doc("1", "name", "alice"));
+    assertEquals(1, batch.size());
+    batch.drain((action, doc) -> assertEquals(DocumentAction.DELETE, action));
+  }
+
+  @Test
+  public void testUpdateAfterDelete() throws Exception {
+    CoalescingBatch batch = new CoalescingBatch();
+    batch.add(DocumentAction.DELETE, doc("1", "name", "alice"));
+    batch.add(DocumentAction.UPDATE, doc("1", "age", "30"));
+    batch.add(DocumentAction.UPDATE, doc("1", "name", "bob"));
+    assertEquals(2, batch.size());
+    List<DocumentAction> actions = new ArrayList<>();
+    batch.drain((action, doc) -> actions.add(action));
+    assertEquals(DocumentAction.DELETE, actions.get(0));
+    assertEquals(DocumentAction.UPDATE, actions.get(1));
+  }
+
+  @Test
+  public void testManyDocuments() throws Exception {
+    CoalescingBatch batch = new CoalescingBatch();
+    for (int i = 0; i < 1000; i++) {
+      batch.add(DocumentAction.INDEX, doc(String.valueOf(i), "count", "0"));
+    }
+    for (int i = 0; i < 1000; i++) {
+      batch.add(DocumentAction.UPDATE, doc(String.valueOf(i), "count", "1"));
+    }
+    assertEquals(1000, batch.size());
+    int[] expected = { 0 };
+    batch.drain((action, doc) -> {
+      assertEquals(String.valueOf(expected[0]++), doc.uniqueId());
+      assertEquals("1", XContentHelper.convertToMap(doc.content().bytes(), true).v2().get("count"));
+    });
+  }
+
+  @Test
+  public void testUpdateThenUpdate() throws Exception {
+    CoalescingBatch batch = new CoalescingBatch();
+    batch.add(DocumentAction.UPDATE, new DocumentWrapper("1",
+        XContentFactory.jsonBuilder().startObject().startObject("address").field("city", "London").endObject().endObject(),
+        "myType"));
+    batch.add(DocumentAction.UPDATE, new DocumentWrapper("1",
+        XContentFactory.jsonBuilder().startObject().startObject("address").field("postcode", "N1").endObject().endObject(),
+        "myType"));
+    batch.add(DocumentAction.UPDATE, doc("1", "name", "alice"));
+    assertEquals(1, batch.size());
+    List<Map<String, Object>> sources = new ArrayList<>();
+    batch.drain((action, doc) -> {
+      assertEquals(DocumentAction.UPDATE, action);
+      sources.add(source(doc));
+    });
+    // Merged field by field, as ElasticSearch would merge a partial document.
+    Map<?, ?> address = (Map<?, ?>) sources.get(0).get("address");
+    assertEquals("London", address.get("city"));
+    assertEquals("N1", address.get("postcode"));
+    assertEquals("alice", sources.get(0).get("name"));
+  }
+
+  @Test
+  public void testIndexThenUpsert() throws Exception {
+    CoalescingBatch batch = new CoalescingBatch();
+    batch.add(DocumentAction.INDEX, doc("1", "name", "alice"));
+    batch.add(DocumentAction.UPSERT, doc("1", "age", "30"));
+    assertEquals(1, batch.size());
+    batch.drain((action, doc) -> {
+      assertEquals(DocumentAction.INDEX, action);
+      assertEquals("alice", source(doc).get("name"));
+      assertEquals("30", source(doc).get("age"));
+    });
+  }
+
+  @Test
+  public void testDeleteThenUpsert() throws Exception {
+    CoalescingBatch batch = new CoalescingBatch();
+    batch.add(DocumentAction.INDEX, doc("1", "name", "alice"));
+    batch.add(DocumentAction.DELETE, doc("1", "name", "alice"));
+    batch.add(DocumentAction.UPSERT, doc("1", "age", "30"));
+    assertEquals(1, batch.size());
+    batch.drain((action, doc) -> {
+      // The document no longer exists, so the upsert is the whole document.
+      assertEquals(DocumentAction.INDEX, action);
+      assertNull(source(doc).get("name"));
+      assertEquals("30", source(doc).get("age"));
+    });
+  }
+
+  @Test
+  public void testUpsertAfterUpdate() throws Exception {
+    CoalescingBatch batch = new CoalescingBatch();
+    batch.add(DocumentAction.UPDATE, doc("1", "name", "alice"));
+    batch.add(DocumentAction.UPSERT, doc("1", "age", "30"));
+    assertEquals(2, batch.size());
+  }
+
+  @Test
+  public void testNotMerged() throws Exception {
+    CoalescingBatch batch = new CoalescingBatch();
+    // No id.
+    batch.add(DocumentAction.INDEX, doc(null, "name", "alice"));
+    batch.add(DocumentAction.INDEX, doc(null, "name", "bob"));
+    // Different types.
+    batch.add(DocumentAction.INDEX, doc("1", "name", "alice"));
+    batch.add(DocumentAction.INDEX, new DocumentWrapper("1",
+        XContentFactory.jsonBuilder().startObject().field("name", "bob").endObject(), "otherType"));
+    // Different routing.
+    batch.add(DocumentAction.INDEX, doc("2", "name", "alice").withRouting("a"));
+    batch.add(DocumentAction.UPDATE, doc("2", "age", "30").withRouting("b"));
+    assertEquals(6, batch.size());
+  }
+
+  @Test
+  public void testOrder() throws Exception {
+    CoalescingBatch batch = new CoalescingBatch();
+    batch.add(DocumentAction.INDEX, doc("1", "name", "alice"));
+    batch.add(DocumentAction.INDEX, doc("2", "name", "bob"));
+    batch.add(DocumentAction.UPDATE, doc("1", "age", "30"));
+    batch.add(DocumentAction.INDEX, doc("3", "name", "carol"));
+    batch.add(DocumentAction.DELETE, doc("2", "name", "bob"));
+    List<String> ids = new ArrayList<>();
+    List<DocumentAction> actions = new ArrayList<>();
+    batch.drain((action, doc) -> {
+      ids.add(doc.uniqueId());
+      actions.add(action);
+    });
+    // Merged operations stay where the document first appeared.
+    assertEquals(Arrays.asList("1", "2", "3"), ids);
+    assertEquals(Arrays.asList(DocumentAction.INDEX, DocumentAction.DELETE, DocumentAction.INDEX), actions);
+  }
+
+  @Test
+  public void testMerge_KeepsRouting() throws Exception {
+    CoalescingBatch batch = new CoalescingBatch();
+    batch.add(DocumentAction.INDEX, doc("1", "name", "alice").withRouting("r").withParent("p"));
+    batch.add(DocumentAction.UPDATE, doc("1", "age", "30").withRouting("r").withParent("p"));
+    batch.drain((action, doc) -> {
+      assertEquals("r", doc.routing());
+      assertEquals("p", doc.parent());
+      assertEquals("30", source(doc).get("age"));
+    });
+  }
+
+  @Test
+  public void testReservedBytes() throws Exception {
+    CoalescingBatch batch = new CoalescingBatch();
+    batch.add(DocumentAction.INDEX, doc("1", "name", "alice"), 100);
+    batch.add(DocumentAction.UPDATE, doc("1", "age", "30"), 50);
+    // Still reserved for the merged operation, until the batch is drained.
+    assertEquals(150, batch.reservedBytes());
+    batch.drain((action, doc) -> {
+    });
+    assertEquals(0, batch.reservedBytes());
+  }
+
+  private static Map<String, Object> source(DocumentWrapper doc) throws Exception {
+    return XContentHelper.convertToMap(doc.source(), true).v2();
+  }
+
+  private static DocumentWrapper doc(String id, String field, String value) throws Exception {
+    return new DocumentWrapper(id, XContentFactory.jsonBuilder().startObject().field(field, value).endObject(), "myType");
+  }
+}
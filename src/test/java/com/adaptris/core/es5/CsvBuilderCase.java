@@ -57,6 +57,58 @@ public abstract class CsvBuilderCase extends BuilderCase {
     assertEquals(5, count);
   }
 
+  @Test
+  public void testBuild_Parallel() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CSV_INPUT);
+    CSVDocumentBuilderImpl documentBuilder = createBuilder();
+    documentBuilder.setParallelChunkSize(64);
+    documentBuilder.setThreads(2);
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
+      for (DocumentWrapper doc : docs) {
+        count++;
+        ReadContext context = parse(doc.content().string());
+        assertEquals("UID-" + count, context.read(JSON_PRODUCTUNIQUEID));
+        assertEquals("UID-" + count, doc.uniqueId());
+      }
+    }
+    assertEquals(5, count);
+  }
+
+  @Test
+  public void testBuild_Unquoted() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CSV_INPUT);
+    CSVDocumentBuilderImpl documentBuilder = createBuilder();
+    documentBuilder.setUnquoted(true);
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
+      for (DocumentWrapper doc : docs) {
+        count++;
+        ReadContext context = parse(doc.content().string());
+        assertEquals("UID-" + count, context.read(JSON_PRODUCTUNIQUEID));
+        assertEquals("UID-" + count, doc.uniqueId());
+        assertEquals("Litres per Hectare", context.read("$.measureunit"));
+      }
+    }
+    assertEquals(5, count);
+  }
+
+  @Test
+  public void testBuild_Unquoted_Parallel() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CSV_INPUT);
+    CSVDocumentBuilderImpl documentBuilder = createBuilder();
+    documentBuilder.setUnquoted(true);
+    documentBuilder.setParallelChunkSize(64);
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
+      for (DocumentWrapper doc : docs) {
+        count++;
+        ReadContext context = parse(doc.content().string());
+        assertEquals("UID-" + count, context.read(JSON_PRODUCTUNIQUEID));
+      }
+    }
+    assertEquals(5, count);
+  }
 
   protected abstract CSVDocumentBuilderImpl createBuilder();
 
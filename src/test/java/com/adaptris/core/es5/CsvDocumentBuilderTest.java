@@ -16,13 +16,263 @@
 
 package com.adaptris.core.es5;
 
-import com.adaptris.core.es5.CSVDocumentBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Test;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.core.ProduceException;
+import com.adaptris.core.util.CloseableIterable;
+import com.jayway.jsonpath.ReadContext;
 
 public class CsvDocumentBuilderTest extends CsvBuilderCase {
 
+  private static final int ROWS = 200;
+
   @Override
   protected CSVDocumentBuilder createBuilder() {
     return new CSVDocumentBuilder();
   }
 
+  @Test
+  public void testBuild_Parallel_QuotedNewlines() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(quotedContent());
+    CSVDocumentBuilder documentBuilder = createBuilder();
+    documentBuilder.setParallelChunkSize(100);
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
+      for (DocumentWrapper doc : docs) {
+        ReadContext context = parse(doc.content().string());
+        assertEquals("UID-" + count, doc.uniqueId());
+        assertEquals(description(count), context.read("$.description"));
+        assertEquals("" + count, context.read("$.count"));
+        count++;
+      }
+    }
+    assertEquals(ROWS, count);
+  }
+
+  @Test
+  public void testBuild_Parallel_NoHeader() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CSV_INPUT);
+    CSVDocumentBuilder documentBuilder = createBuilder();
+    documentBuilder.setUseHeaderRecord(false);
+    documentBuilder.setParallelChunkSize(64);
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
+      for (DocumentWrapper doc : docs) {
+        ReadContext context = parse(doc.content().string());
+        assertEquals(count == 0 ? "productuniqueid" : "UID-" + count, context.read("$.field_0"));
+        count++;
+      }
+    }
+    assertEquals(6, count);
+  }
+
+  @Test
+  public void testBuild_WithSchema() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CSV_INPUT);
+    CSVDocumentBuilder documentBuilder = createBuilder();
+    documentBuilder.setSchema(new CSVSchema(new CSVColumn("applicationweek", CSVColumn.Type.LONG),
+        new CSVColumn("applicationrate", CSVColumn.Type.DOUBLE), new CSVColumn("iscanonical", CSVColumn.Type.BOOLEAN),
+        new CSVColumn("operationdate", "yyyyMMdd"), new CSVColumn("growthstagecode", CSVColumn.Type.LONG),
+        new CSVColumn("productcategory", CSVColumn.Type.SKIP)));
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
+      DocumentWrapper doc = docs.iterator().next();
+      ReadContext context = parse(doc.content().string());
+      assertEquals("UID-1", context.read(JSON_PRODUCTUNIQUEID));
+      assertEquals(48L, context.read("$.applicationweek", Number.class).longValue());
+      assertEquals(1.5, context.read("$.applicationrate", Number.class).doubleValue(), 0.0001);
+      assertEquals(Boolean.FALSE, context.read("$.iscanonical"));
+      assertEquals(1132617600000L, context.read("$.operationdate", Number.class).longValue());
+      Map<String, Object> fields = context.read("$");
+      assertFalse(fields.containsKey("growthstagecode"));
+      assertFalse(fields.containsKey("productcategory"));
+      assertEquals("", context.read("$.manufacturer"));
+    }
+  }
+
+  @Test
+  public void testBuild_WithSchema_BadValue() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CSV_INPUT);
+    CSVDocumentBuilder documentBuilder = createBuilder();
+    documentBuilder.setSchema(new CSVSchema(new CSVColumn("productname", CSVColumn.Type.LONG)));
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
+      docs.iterator().next();
+      fail();
+    }
+    catch (IllegalArgumentException expected) {
+
+    }
+  }
+
+  @Test
+  public void testBuild_IncludeColumns() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CSV_INPUT);
+    CSVDocumentBuilder documentBuilder = createBuilder();
+    documentBuilder.setIncludeColumns("productname, 3,latitude,longitude");
+    documentBuilder.setExcludeColumns("longitude");
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
+      for (DocumentWrapper doc : docs) {
+        count++;
+        assertEquals("UID-" + count, doc.uniqueId());
+        Map<String, Object> fields = parse(doc.content().string()).read("$");
+        assertEquals(3, fields.size());
+        assertTrue(fields.containsKey("productname"));
+        assertTrue(fields.containsKey("productcategory"));
+        assertTrue(fields.containsKey("latitude"));
+      }
+    }
+    assertEquals(5, count);
+  }
+
+  @Test
+  public void testBuild_ExcludeColumns_NoHeader() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CSV_INPUT);
+    CSVDocumentBuilder documentBuilder = createBuilder();
+    documentBuilder.setUseHeaderRecord(false);
+    documentBuilder.setExcludeColumns("0,field_1");
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
+      for (DocumentWrapper doc : docs) {
+        Map<String, Object> fields = parse(doc.content().string()).read("$");
+        assertEquals(13, fields.size());
+        assertFalse(fields.containsKey("field_0"));
+        assertFalse(fields.containsKey("field_1"));
+      }
+    }
+  }
+
+  @Test
+  public void testBuild_Unquoted_WithSchema_IncludeColumns() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CSV_INPUT);
+    CSVDocumentBuilder documentBuilder = createBuilder();
+    documentBuilder.setUnquoted(true);
+    documentBuilder.setIncludeColumns("productname,applicationweek,applicationrate,iscanonical,operationdate");
+    documentBuilder.setSchema(new CSVSchema(new CSVColumn("applicationweek", CSVColumn.Type.LONG),
+        new CSVColumn("applicationrate", CSVColumn.Type.DOUBLE), new CSVColumn("iscanonical", CSVColumn.Type.BOOLEAN),
+        new CSVColumn("operationdate", "yyyyMMdd")));
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
+      for (DocumentWrapper doc : docs) {
+        count++;
+        assertEquals("UID-" + count, doc.uniqueId());
+        ReadContext context = parse(doc.content().string());
+        Map<String, Object> fields = context.read("$");
+        assertEquals(5, fields.size());
+        if (count == 1) {
+          assertEquals("*A Simazine", context.read("$.productname"));
+          assertEquals(48L, context.read("$.applicationweek", Number.class).longValue());
+          assertEquals(1.5, context.read("$.applicationrate", Number.class).doubleValue(), 0.0001);
+          assertEquals(Boolean.FALSE, context.read("$.iscanonical"));
+          assertEquals(1132617600000L, context.read("$.operationdate", Number.class).longValue());
+        }
+      }
+    }
+    assertEquals(5, count);
+  }
+
+  @Test
+  public void testBuild_LegacyWrapper() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CSV_INPUT);
+    LegacyBuilder documentBuilder = new LegacyBuilder();
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
+      for (DocumentWrapper doc : docs) {
+        count++;
+        assertEquals("UID-" + count, doc.uniqueId());
+        assertEquals(1, ((Map) parse(doc.content().string()).read("$")).size());
+      }
+    }
+    assertEquals(5, count);
+  }
+
+  @Test
+  public void testBuild_LegacyWrapper_Unquoted() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CSV_INPUT);
+    LegacyBuilder documentBuilder = new LegacyBuilder();
+    documentBuilder.setUnquoted(true);
+    try {
+      documentBuilder.build(msg);
+      fail();
+    }
+    catch (ProduceException expected) {
+
+    }
+  }
+
+  @Test
+  public void testBuildTasks_LegacyWrapper() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CSV_INPUT);
+    LegacyBuilder documentBuilder = new LegacyBuilder();
+    int count = 0;
+    try (CloseableIterable<Callable<DocumentWrapper>> tasks = documentBuilder.buildTasks(msg)) {
+      for (Callable<DocumentWrapper> task : tasks) {
+        count++;
+        assertEquals("UID-" + count, task.call().uniqueId());
+      }
+    }
+    assertEquals(5, count);
+  }
+
+  @Test
+  public void testBuild_LegacyWrapper_Parallel() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CSV_INPUT);
+    LegacyBuilder documentBuilder = new LegacyBuilder();
+    documentBuilder.setParallelChunkSize(16);
+    try {
+      documentBuilder.build(msg);
+      fail();
+    }
+    catch (ProduceException expected) {
+      assertTrue(expected.getMessage().contains("parallel-chunk-size"));
+    }
+  }
+
+  private static String quotedContent() {
+    StringBuilder result = new StringBuilder("id,description,count\r\n");
+    for (int i = 0; i < ROWS; i++) {
+      result.append("UID-" + i + ",\"" + description(i).replace("\"", "\"\"") + "\"," + i + "\r\n");
+    }
+    return result.toString();
+  }
+
+  private static String description(int i) {
+    return i % 3 == 0 ? "line one\nline \"two\", with a comma" : "plain " + i;
+  }
+
+  // Implements the pre-3.10 extension point.
+  @SuppressWarnings("deprecation")
+  private static class LegacyBuilder extends CSVDocumentBuilderImpl {
+    @Override
+    protected CSVDocumentWrapper buildWrapper(CSVParser parser, AdaptrisMessage msg) throws Exception {
+      return new CSVDocumentWrapper(parser) {
+        private List<String> headers = buildHeaders(csvIterator.next());
+
+        @Override
+        public DocumentWrapper next() {
+          try {
+            CSVRecord record = csvIterator.next();
+            return new DocumentWrapper(record.get(0),
+                jsonBuilder().startObject().field(headers.get(1), record.get(1)).endObject(), "type");
+          }
+          catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+    }
+  }
 }
@@ -0,0 +1,82 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.support.replication.ReplicationRequest;
+import org.junit.Test;
+
+import com.adaptris.core.ProduceException;
+import com.adaptris.util.TimeInterval;
+
+public class DeadlineTest {
+
+  @Test
+  public void testBounded() throws Exception {
+    Deadline deadline = Deadline.after(10000);
+    assertTrue(deadline.bounded());
+    assertFalse(deadline.expired());
+    assertTrue(deadline.remainingMs() > 0);
+    assertTrue(deadline.remainingMs() <= 10000);
+    assertTrue(deadline.remaining().millis() <= 10000);
+    assertTrue(deadline.requestTimeout().millis() <= 10000);
+  }
+
+  @Test
+  public void testExpired() throws Exception {
+    Deadline deadline = Deadline.after(0);
+    assertTrue(deadline.expired());
+    try {
+      deadline.remaining();
+      fail();
+    }
+    catch (ProduceException expected) {
+
+    }
+    try {
+      deadline.requestTimeout();
+      fail();
+    }
+    catch (ProduceException expected) {
+
+    }
+  }
+
+  @Test
+  public void testUnbounded() throws Exception {
+    Deadline deadline = Deadline.after(Deadline.NONE);
+    assertFalse(deadline.bounded());
+    assertFalse(deadline.expired());
+    assertEquals(Long.MAX_VALUE, deadline.remainingMs());
+    assertEquals(Long.MAX_VALUE, deadline.remaining().millis());
+    assertEquals(ReplicationRequest.DEFAULT_TIMEOUT, deadline.requestTimeout());
+  }
+
+  @Test
+  public void testDefaultTimeout() throws Exception {
+    BulkOperation producer = new BulkOperation();
+    assertEquals(Deadline.NONE, producer.defaultTimeout());
+    producer.setTimeout(new TimeInterval(10L, TimeUnit.MINUTES));
+    assertEquals(TimeUnit.MINUTES.toMillis(10), producer.defaultTimeout());
+  }
+}
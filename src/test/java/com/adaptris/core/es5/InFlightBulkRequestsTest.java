@@ -0,0 +1,117 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.adaptris.core.ProduceException;
+
+public class InFlightBulkRequestsTest {
+
+  private List<ActionListener<Object>> held;
+  private MockTransportClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    held = new CopyOnWriteArrayList<>();
+    client = new MockTransportClient((request, listener) -> held.add(listener));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+  }
+
+  @Test
+  public void testAwait() throws Exception {
+    List<BulkRequestBuilder> completed = new CopyOnWriteArrayList<>();
+    AtomicInteger handled = new AtomicInteger();
+    try (InFlightBulkRequests inFlight = new InFlightBulkRequests(2, Deadline.after(5000), completed::add)) {
+      BulkRequestBuilder request = newRequest();
+      inFlight.execute(request, (r, response, attempt, roundTrip) -> {
+        handled.incrementAndGet();
+        return null;
+      });
+      assertEquals(1, held.size());
+      held.get(0).onResponse(MockTransportClient.accepted(request.request()));
+      inFlight.await();
+      assertEquals(1, handled.get());
+      assertEquals(1, completed.size());
+    }
+  }
+
+  @Test
+  public void testAwait_CancelsOnExpiry() throws Exception {
+    List<BulkRequestBuilder> completed = new CopyOnWriteArrayList<>();
+    AtomicInteger handled = new AtomicInteger();
+    BulkRequestBuilder request = newRequest();
+    try (InFlightBulkRequests inFlight = new InFlightBulkRequests(2, Deadline.after(200), completed::add)) {
+      inFlight.execute(request, (r, response, attempt, roundTrip) -> {
+        handled.incrementAndGet();
+        return null;
+      });
+      try {
+        inFlight.await();
+        fail();
+      }
+      catch (ProduceException expected) {
+        assertTrue(expected.getMessage().startsWith("Timed out"));
+      }
+      // The request was abandoned, so it's complete as far as the memory budget is concerned.
+      assertEquals(1, completed.size());
+      assertTrue(inFlight.hasFailures());
+    }
+    // A late response is ignored.
+    held.get(0).onResponse(MockTransportClient.accepted(request.request()));
+    assertEquals(0, handled.get());
+    assertEquals(1, completed.size());
+  }
+
+  @Test
+  public void testExecute_NoCapacityBeforeDeadline() throws Exception {
+    List<BulkRequestBuilder> completed = new CopyOnWriteArrayList<>();
+    try (InFlightBulkRequests inFlight = new InFlightBulkRequests(1, Deadline.after(200), completed::add)) {
+      inFlight.execute(newRequest(), (r, response, attempt, roundTrip) -> null);
+      try {
+        inFlight.execute(newRequest(), (r, response, attempt, roundTrip) -> null);
+        fail();
+      }
+      catch (ProduceException expected) {
+
+      }
+      // The request that was never sent is also complete.
+      assertEquals(1, completed.size());
+      assertEquals(1, held.size());
+    }
+  }
+
+  private BulkRequestBuilder newRequest() {
+    return client.prepareBulk().add(client.prepareIndex("index", "type", "1").setSource("field", "value"));
+  }
+}
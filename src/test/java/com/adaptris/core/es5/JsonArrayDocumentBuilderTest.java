@@ -17,14 +17,19 @@
 package com.adaptris.core.es5;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.concurrent.Callable;
+
 import org.junit.Test;
 
 import com.adaptris.core.AdaptrisMessage;
 import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.core.CoreException;
 import com.adaptris.core.es5.types.ConfiguredTypeBuilder;
 import com.adaptris.core.util.CloseableIterable;
 import com.jayway.jsonpath.PathNotFoundException;
@@ -155,6 +160,131 @@ public class JsonArrayDocumentBuilderTest extends BuilderCase {
     assertEquals(4, count);
   }
 
+  @Test
+  public void testBuild_WithNestedPath() throws Exception {
+    AdaptrisMessage msg = createMessage();
+    JsonArrayDocumentBuilder builder = new JsonArrayDocumentBuilder(new ConfiguredTypeBuilder("cropzones"));
+    builder.setRoutingJsonPath("$.fieldlocation.longitude");
+    builder.setParentJsonPath("$['sourceorgid']");
+    String[] expected = { "1.1", "-1", "-2", "-0.1" };
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(msg))) {
+      for (DocumentWrapper d : docs) {
+        assertEquals(expected[count], d.routing());
+        count++;
+        assertEquals("000" + count, d.uniqueId());
+        assertEquals("9999-000" + count, d.parent());
+        ReadContext context = parse(d.content().string());
+        assertEquals("Clay Loam", context.read("$.fieldsoiltextureclassname"));
+      }
+    }
+    assertEquals(4, count);
+  }
+
+  @Test
+  public void testBuild_ReplacesTimestamp() throws Exception {
+    AdaptrisMessage msg = createMessage();
+    JsonArrayDocumentBuilder builder = new JsonArrayDocumentBuilder(new ConfiguredTypeBuilder("cropzones"));
+    builder.setAddTimestampField("cropyear");
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(msg))) {
+      for (DocumentWrapper d : docs) {
+        ReadContext context = parse(d.content().string());
+        // Was the string "2013" etc.
+        assertTrue(context.read("$.cropyear") instanceof Number);
+      }
+    }
+  }
+
+  @Test
+  public void testBuild_RawSource() throws Exception {
+    AdaptrisMessage msg = createMessage();
+    JsonArrayDocumentBuilder builder = new JsonArrayDocumentBuilder(new ConfiguredTypeBuilder("cropzones"));
+    builder.setRawSource(true);
+    builder.setBufferSize(1024);
+    builder.setRoutingJsonPath("$.fieldlocation.longitude");
+    builder.setParentJsonPath("$['sourceorgid']");
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(msg))) {
+      for (DocumentWrapper d : docs) {
+        count++;
+        assertTrue(d.isRaw());
+        assertEquals("000" + count, d.uniqueId());
+        assertEquals("9999-000" + count, d.parent());
+        assertNotNull(d.routing());
+        String source = d.source().utf8ToString();
+        assertTrue(source.startsWith("{\"uniqueid\":\"000" + count + "\""));
+        assertTrue(source.endsWith("}"));
+        assertEquals("Clay Loam", parse(source).read("$.fieldsoiltextureclassname"));
+        assertEquals("Clay Loam", parse(d.content().string()).read("$.fieldsoiltextureclassname"));
+      }
+    }
+    assertEquals(4, count);
+  }
+
+  @Test
+  public void testBuild_RawSource_WithTimestamp() throws Exception {
+    AdaptrisMessage msg = createMessage();
+    JsonArrayDocumentBuilder builder = new JsonArrayDocumentBuilder(new ConfiguredTypeBuilder("cropzones"));
+    builder.setRawSource(true);
+    builder.setAddTimestampField("timestamp");
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(msg))) {
+      for (DocumentWrapper d : docs) {
+        count++;
+        ReadContext context = parse(d.source().utf8ToString());
+        assertNotNull(context.read("$.timestamp"));
+        assertEquals("000" + count, context.read("$.uniqueid"));
+      }
+    }
+    assertEquals(4, count);
+    builder.setAddTimestampField("cropyear");
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(createMessage()))) {
+      for (DocumentWrapper d : docs) {
+        assertTrue(parse(d.source().utf8ToString()).read("$.cropyear") instanceof Number);
+      }
+    }
+  }
+
+  @Test
+  public void testBuildTasks() throws Exception {
+    JsonArrayDocumentBuilder builder = new JsonArrayDocumentBuilder(new ConfiguredTypeBuilder("cropzones"));
+    builder.setRoutingJsonPath("$.originorgid");
+    int count = 0;
+    try (CloseableIterable<Callable<DocumentWrapper>> tasks = builder.buildTasks(createMessage())) {
+      for (Callable<DocumentWrapper> task : tasks) {
+        count++;
+        // Only simple paths, so the documents are already built.
+        assertTrue(task instanceof BuiltDocument);
+        assertEquals("000" + count, task.call().routing());
+      }
+    }
+    assertEquals(4, count);
+    builder.setRoutingJsonPath("$['originorgid']");
+    count = 0;
+    try (CloseableIterable<Callable<DocumentWrapper>> tasks = builder.buildTasks(createMessage())) {
+      for (Callable<DocumentWrapper> task : tasks) {
+        count++;
+        assertFalse(task instanceof BuiltDocument);
+        assertEquals("000" + count, task.call().routing());
+      }
+    }
+    assertEquals(4, count);
+  }
+
+  @Test
+  public void testPrepare_InvalidPath() throws Exception {
+    JsonArrayDocumentBuilder builder = new JsonArrayDocumentBuilder(new ConfiguredTypeBuilder("cropzones"));
+    builder.prepare();
+    builder.setRoutingJsonPath("$.[");
+    try {
+      new ParallelDocumentBuilder(builder).prepare();
+      fail();
+    }
+    catch (CoreException expected) {
+
+    }
+  }
+
   public static String sampleJsonContent() {
     return "[\n"
         + "{\"uniqueid\":\"0001\",\"originorgid\":\"0001\",\"sourceorgid\":\"9999-0001\",\"organisationid\":\"9999\",\"growername\":\"Lewin Chan\",\"fieldid\":\"BED1-8E7025F0105C\",\"fieldname\":\"My Field\",\"fieldcountrycode\":\"GB\",\"fieldadminname1\":\"England\",\"fieldadminname2\":\"Somewhere\",\"fieldadminname3\":\"Somewhereville\",\"fieldadminname4\":\"Somewhere Else\",\"fieldlocation\":{\"latitude\":\"1.1\",\"longitude\":\"1.1\"},\"cropzoneseedvariety\":\"ELS\",\"cropzoneid\":\"ABB7-92797F481763\",\"cropzonecrop\":\"Arable Stewardship\",\"cropzoneofficialarea\":\"0.04\",\"cropzoneworkingarea\":\"0.04\",\"cropyear\":\"2013\",\"fieldsoiltextureclassabbreviation\":\"CL\",\"fieldsoiltextureclassname\":\"Clay Loam\",\"operationtypes\":[],\"appliedprotectionproducts\":[],\"appliednutritionproducts\":[],\"appliedseedvarieties\":[],\"appliedproductcategories\":[],\"appliedactiveingredients\":[],\"appliednutrients\":[],\"displayablevarieties\":[\"ELS\"],\"sortablevarieties\":\"ELS\",\"action\":\"INSERT\",\"creationdatetime\":\"2017-05-04T15:32:34Z\"},\n"
@@ -19,6 +19,7 @@ package com.adaptris.core.es5;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import org.apache.commons.io.IOUtils;
@@ -29,6 +30,7 @@ import com.adaptris.core.AdaptrisMessageFactory;
 import com.adaptris.core.ProduceException;
 import com.adaptris.core.es5.types.ConfiguredTypeBuilder;
 import com.adaptris.core.util.CloseableIterable;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.jayway.jsonpath.ReadContext;
 
 public class JsonDocumentBuilderTest extends BuilderCase {
@@ -54,6 +56,21 @@ public class JsonDocumentBuilderTest extends BuilderCase {
     assertEquals(1, count);
   }
 
+  @Test
+  public void testBuild_SharesMapper() throws Exception {
+    JsonDocumentBuilder documentBuilder = new JsonDocumentBuilder(new ConfiguredTypeBuilder("store"));
+    ObjectMapper mapper = documentBuilder.mapper();
+    for (int i = 0; i < 2; i++) {
+      AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(sampleJsonContent());
+      try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(documentBuilder.build(msg))) {
+        for (DocumentWrapper doc : docs) {
+          assertEquals("red", parse(doc.content().string()).read("$.store.bicycle.color"));
+        }
+      }
+    }
+    assertSame(mapper, documentBuilder.mapper());
+  }
+
   @Test
   public void testBuild_WithTimestamp() throws Exception {
     AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(sampleJsonContent());
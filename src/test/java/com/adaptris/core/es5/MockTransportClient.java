@@ -0,0 +1,137 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.shard.ShardId;
+
+import com.adaptris.core.ConfiguredProduceDestination;
+import com.adaptris.core.CoreException;
+import com.adaptris.core.StandaloneProducer;
+import com.adaptris.core.util.LifecycleHelper;
+import com.adaptris.util.KeyValuePairSet;
+
+// A TransportClient that never connects to anything; every request is answered by the handler.
+class MockTransportClient extends NettyTransportClient {
+
+  @FunctionalInterface
+  interface Handler {
+    void handle(ActionRequest request, ActionListener<Object> listener) throws Exception;
+  }
+
+  private final Handler handler;
+  private final List<ActionRequest> requests = new CopyOnWriteArrayList<>();
+
+  MockTransportClient(Handler handler) {
+    super(Settings.EMPTY);
+    this.handler = handler;
+  }
+
+  @Override
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  protected void doExecute(Action action, ActionRequest request, ActionListener listener) {
+    requests.add(request);
+    try {
+      handler.handle(request, listener);
+    }
+    catch (RuntimeException e) {
+      // As if the client failed before the request was sent.
+      throw e;
+    }
+    catch (Exception e) {
+      listener.onFailure(e);
+    }
+  }
+
+  List<ActionRequest> requests() {
+    return requests;
+  }
+
+  List<BulkRequest> bulkRequests() {
+    return requests.stream().filter(r -> r instanceof BulkRequest).map(r -> (BulkRequest) r).collect(Collectors.toList());
+  }
+
+  ElasticSearchConnection connection() {
+    ElasticSearchConnection esc = new ElasticSearchConnection(new KeyValuePairSet());
+    esc.setTransportClientFactory((settings) -> this);
+    return esc;
+  }
+
+  /**
+   * Start the producer producing to {@code index} using this client; stopping and closing it also closes this client.
+   *
+   */
+  StandaloneProducer start(ElasticSearchProducer producer) throws CoreException {
+    return start(producer, connection());
+  }
+
+  /**
+   * Start the producer producing to {@code index} using a connection from {@link #connection()}.
+   *
+   */
+  StandaloneProducer start(ElasticSearchProducer producer, ElasticSearchConnection esc) throws CoreException {
+    producer.setDestination(new ConfiguredProduceDestination("index"));
+    StandaloneProducer sp = new StandaloneProducer(esc, producer);
+    LifecycleHelper.initAndStart(sp);
+    return sp;
+  }
+
+  static IndexResponse indexed(String id) {
+    return new IndexResponse(new ShardId("index", "_na_", 0), "type", id, 1, true);
+  }
+
+  /**
+   * Every item in the bulk request is indexed.
+   *
+   */
+  static BulkResponse accepted(BulkRequest request) {
+    return respond(request, (i) -> false);
+  }
+
+  /**
+   * Items for which the predicate is true are rejected with {@code 429 TOO_MANY_REQUESTS}, the rest are indexed.
+   *
+   */
+  static BulkResponse respond(BulkRequest request, IntPredicate rejected) {
+    BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+    for (int i = 0; i < items.length; i++) {
+      String id = "id-" + i;
+      if (rejected.test(i)) {
+        items[i] = new BulkItemResponse(i, DocWriteRequest.OpType.INDEX,
+            new BulkItemResponse.Failure("index", "type", id, new EsRejectedExecutionException("rejected")));
+      }
+      else {
+        items[i] = new BulkItemResponse(i, DocWriteRequest.OpType.INDEX, indexed(id));
+      }
+    }
+    return new BulkResponse(items, 1);
+  }
+}
@@ -0,0 +1,129 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.core.es5.types.ConfiguredTypeBuilder;
+import com.adaptris.core.lms.FileBackedMessageFactory;
+import com.adaptris.core.util.CloseableIterable;
+
+public class NdjsonDocumentBuilderTest extends BuilderCase {
+
+  private static final int LINES = 100;
+
+  @Test
+  public void testBuild() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(sampleContent(LINES));
+    NdjsonDocumentBuilder builder = new NdjsonDocumentBuilder(new ConfiguredTypeBuilder("lines"));
+    builder.setChunkSizeBytes(256);
+    builder.setThreads(4);
+    builder.setRoutingJsonPath("$.location.region");
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(msg))) {
+      for (DocumentWrapper d : docs) {
+        assertEquals(String.valueOf(count), d.uniqueId());
+        assertEquals("region" + count % 3, d.routing());
+        assertEquals("lines", d.type());
+        assertEquals("line " + count, parse(d.content().string()).read("$.text"));
+        count++;
+      }
+    }
+    assertEquals(LINES, count);
+  }
+
+  @Test
+  public void testBuild_FileBacked() throws Exception {
+    AdaptrisMessage msg = new FileBackedMessageFactory().newMessage(sampleContent(LINES));
+    NdjsonDocumentBuilder builder = new NdjsonDocumentBuilder(new ConfiguredTypeBuilder("lines"));
+    builder.setChunkSizeBytes(256);
+    builder.setRawSource(true);
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(msg))) {
+      for (DocumentWrapper d : docs) {
+        assertTrue(d.isRaw());
+        assertEquals(String.valueOf(count), d.uniqueId());
+        assertEquals("line " + count, parse(d.source().utf8ToString()).read("$.text"));
+        count++;
+      }
+    }
+    assertEquals(LINES, count);
+  }
+
+  @Test
+  public void testBuild_Unordered() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(sampleContent(LINES));
+    NdjsonDocumentBuilder builder = new NdjsonDocumentBuilder(new ConfiguredTypeBuilder("lines"));
+    builder.setChunkSizeBytes(128);
+    builder.setOrdered(false);
+    Set<String> ids = new HashSet<>();
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(msg))) {
+      for (DocumentWrapper d : docs) {
+        ids.add(d.uniqueId());
+      }
+    }
+    assertEquals(LINES, ids.size());
+  }
+
+  @Test
+  public void testBuild_NotAnObject() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(sampleContent(2) + "[1,2]\n");
+    NdjsonDocumentBuilder builder = new NdjsonDocumentBuilder(new ConfiguredTypeBuilder("lines"));
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(msg))) {
+      for (DocumentWrapper d : docs) {
+      }
+      fail();
+    }
+    catch (RuntimeException expected) {
+
+    }
+  }
+
+  @Test
+  public void testBuildTasks() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(sampleContent(LINES));
+    ParallelDocumentBuilder builder = new ParallelDocumentBuilder(new NdjsonDocumentBuilder(new ConfiguredTypeBuilder("lines")));
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(msg))) {
+      for (DocumentWrapper d : docs) {
+        count++;
+      }
+    }
+    assertEquals(LINES, count);
+  }
+
+  private static String sampleContent(int lines) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < lines; i++) {
+      result.append("{\"uniqueid\":\"" + i + "\",\"text\":\"line " + i + "\",\"location\":{\"region\":\"region" + i % 3
+          + "\"}}\n");
+      if (i % 10 == 0) {
+        result.append("\n");
+      }
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,101 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
+import com.adaptris.core.es5.types.ConfiguredTypeBuilder;
+import com.adaptris.core.util.CloseableIterable;
+import com.jayway.jsonpath.PathNotFoundException;
+import com.jayway.jsonpath.ReadContext;
+
+public class ParallelDocumentBuilderTest extends BuilderCase {
+
+  @Test
+  public void testBuild_JsonArray() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance()
+        .newMessage(JsonArrayDocumentBuilderTest.sampleJsonContent());
+    ParallelDocumentBuilder builder = new ParallelDocumentBuilder(
+        new JsonArrayDocumentBuilder(new ConfiguredTypeBuilder("cropzones")));
+    builder.setThreads(2);
+    builder.setQueueSize(2);
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(msg))) {
+      for (DocumentWrapper d : docs) {
+        count++;
+        assertEquals("000" + count, d.uniqueId());
+        assertNotNull(d.content().string());
+        assertEquals("cropzones", d.type());
+      }
+    }
+    assertEquals(4, count);
+  }
+
+  @Test
+  public void testBuild_JsonArray_Failure() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance()
+        .newMessage(JsonArrayDocumentBuilderTest.sampleJsonContent());
+    JsonArrayDocumentBuilder jsonBuilder = new JsonArrayDocumentBuilder(new ConfiguredTypeBuilder("cropzones"));
+    jsonBuilder.setUniqueIdJsonPath("$.umwhat");
+    ParallelDocumentBuilder builder = new ParallelDocumentBuilder(jsonBuilder);
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(msg))) {
+      for (DocumentWrapper d : docs) {
+        fail();
+      }
+    }
+    catch (PathNotFoundException expected) {
+
+    }
+  }
+
+  @Test
+  public void testBuild_CSV() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage(CsvBuilderCase.CSV_INPUT);
+    ParallelDocumentBuilder builder = new ParallelDocumentBuilder(new CSVDocumentBuilder());
+    builder.setThreads(4);
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(msg))) {
+      for (DocumentWrapper doc : docs) {
+        count++;
+        ReadContext context = parse(doc.content().string());
+        assertEquals("UID-" + count, context.read(CsvBuilderCase.JSON_PRODUCTUNIQUEID));
+        assertEquals("UID-" + count, doc.uniqueId());
+      }
+    }
+    assertEquals(5, count);
+  }
+
+  @Test
+  public void testBuild_NotStaged() throws Exception {
+    AdaptrisMessage msg = AdaptrisMessageFactory.getDefaultInstance().newMessage("hello");
+    ParallelDocumentBuilder builder = new ParallelDocumentBuilder(new SimpleDocumentBuilder());
+    int count = 0;
+    try (CloseableIterable<DocumentWrapper> docs = CloseableIterable.ensureCloseable(builder.build(msg))) {
+      for (DocumentWrapper doc : docs) {
+        count++;
+        assertEquals(msg.getUniqueId(), doc.uniqueId());
+      }
+    }
+    assertEquals(1, count);
+  }
+}
@@ -0,0 +1,90 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+package com.adaptris.core.es5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.routing.Murmur3HashFunction;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Test;
+
+public class ShardLocatorTest {
+
+  @Test
+  public void testShard() throws Exception {
+    ShardLocator locator = new ShardLocator(index(3), "node-a", "node-b", "node-c");
+    Set<Integer> shards = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      DocumentWrapper doc = doc(String.valueOf(i));
+      int shard = locator.shard(doc);
+      assertTrue(shard >= 0 && shard < 3);
+      assertEquals(new String[] {"node-a", "node-b", "node-c"}[shard], locator.primaryNode(doc));
+      shards.add(shard);
+    }
+    assertEquals(3, shards.size());
+  }
+
+  @Test
+  public void testShard_Routing() throws Exception {
+    ShardLocator locator = new ShardLocator(index(5), "node-a", "node-b", "node-c", "node-d", "node-e");
+    for (int i = 0; i < 20; i++) {
+      String key = "key-" + i;
+      int expected = locator.shard(doc(key));
+      // An explicit routing wins, then the parent, then the id.
+      assertEquals(expected, locator.shard(doc("id-" + i).withRouting(key)));
+      assertEquals(expected, locator.shard(doc("id-" + i).withParent(key)));
+      assertEquals(expected, locator.shard(doc("id-" + i).withRouting(key).withParent("parent-" + i)));
+    }
+  }
+
+  @Test
+  public void testShard_NoId() throws Exception {
+    ShardLocator locator = new ShardLocator(index(3), "node-a", "node-b", "node-c");
+    assertEquals(-1, locator.shard(doc(null)));
+    assertEquals("", locator.primaryNode(doc(null)));
+  }
+
+  @Test
+  public void testShard_RoutingFactor() throws Exception {
+    // e.g. an index that has been shrunk from 6 shards to 3.
+    IndexMetaData meta = IndexMetaData.builder("index").settings(settings()).numberOfShards(3).numberOfReplicas(0)
+        .setRoutingNumShards(6).build();
+    ShardLocator locator = new ShardLocator(meta, "node-a", "node-b", "node-c");
+    for (int i = 0; i < 100; i++) {
+      String id = String.valueOf(i);
+      assertEquals(Math.floorMod(Murmur3HashFunction.hash(id), 6) / 2, locator.shard(doc(id)));
+    }
+  }
+
+  private static IndexMetaData index(int shards) {
+    return IndexMetaData.builder("index").settings(settings()).numberOfShards(shards).numberOfReplicas(0).build();
+  }
+
+  private static Settings.Builder settings() {
+    return Settings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT);
+  }
+
+  private static DocumentWrapper doc(String id) throws Exception {
+    return new DocumentWrapper(id, XContentFactory.jsonBuilder().startObject().field("name", "alice").endObject(), "myType");
+  }
+}
@@ -16,11 +16,31 @@
 
 package com.adaptris.core.es5;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.WriteRequest;
 import org.junit.Test;
+import com.adaptris.core.AdaptrisMessage;
+import com.adaptris.core.AdaptrisMessageFactory;
 import com.adaptris.core.ConfiguredProduceDestination;
+import com.adaptris.core.ProduceException;
 import com.adaptris.core.ProducerCase;
 import com.adaptris.core.StandaloneProducer;
+import com.adaptris.core.es5.actions.ConfiguredAction;
 import com.adaptris.core.es5.types.ConfiguredTypeBuilder;
+import com.adaptris.core.util.LifecycleHelper;
 import com.adaptris.util.KeyValuePair;
 import com.adaptris.util.KeyValuePairSet;
 
@@ -38,6 +58,149 @@ public class SingleOperationTest extends ProducerCase {
 
   }
 
+  @Test
+  public void testConcurrentRequests() throws Exception {
+    SingleOperation producer = new SingleOperation();
+    assertNull(producer.getConcurrentRequests());
+    assertEquals(0, producer.concurrentRequests());
+    producer.setConcurrentRequests(8);
+    assertEquals(8, producer.concurrentRequests());
+  }
+
+  @Test
+  public void testBulkThreshold() throws Exception {
+    SingleOperation producer = new SingleOperation();
+    assertNull(producer.getBulkThreshold());
+    assertEquals(0, producer.bulkThreshold());
+    producer.setBulkThreshold(100);
+    assertEquals(100, producer.bulkThreshold());
+  }
+
+  @Test
+  public void testBulkThreshold_NotExceeded() throws Exception {
+    MockTransportClient client = new MockTransportClient((request, listener) -> listener
+        .onResponse(MockTransportClient.indexed(((IndexRequest) request).id())));
+    SingleOperation producer = new SingleOperation();
+    producer.setBulkThreshold(3);
+    producer.setDocumentBuilder(new JsonArrayDocumentBuilder());
+    StandaloneProducer sp = client.start(producer);
+    try {
+      producer.produce(newMessage(3), producer.getDestination());
+      assertEquals(3, client.requests().size());
+      assertTrue(client.bulkRequests().isEmpty());
+    }
+    finally {
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testBulkThreshold_Exceeded() throws Exception {
+    MockTransportClient client = new MockTransportClient(
+        (request, listener) -> listener.onResponse(MockTransportClient.accepted((BulkRequest) request)));
+    SingleOperation producer = new SingleOperation();
+    producer.setBulkThreshold(3);
+    producer.setAction(new ConfiguredAction(DocumentAction.DELETE));
+    producer.setRefreshPolicy("wait_for");
+    producer.setDocumentBuilder(new JsonArrayDocumentBuilder());
+    StandaloneProducer sp = client.start(producer);
+    try {
+      producer.produce(newMessage(4), producer.getDestination());
+      // Every document, including those peeked at, is in a single bulk request.
+      assertEquals(1, client.requests().size());
+      BulkRequest bulk = client.bulkRequests().get(0);
+      assertEquals(4, bulk.numberOfActions());
+      for (int i = 0; i < 4; i++) {
+        DocWriteRequest<?> item = bulk.requests().get(i);
+        assertEquals(DocWriteRequest.OpType.DELETE, item.opType());
+        assertEquals(String.valueOf(i), item.id());
+      }
+      assertEquals(WriteRequest.RefreshPolicy.WAIT_UNTIL, bulk.getRefreshPolicy());
+    }
+    finally {
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testBulkThreshold_ItemFailure() throws Exception {
+    MockTransportClient client = new MockTransportClient((request, listener) -> listener
+        .onResponse(MockTransportClient.respond((BulkRequest) request, (i) -> i == 1)));
+    SingleOperation producer = new SingleOperation();
+    producer.setBulkThreshold(1);
+    producer.setDocumentBuilder(new JsonArrayDocumentBuilder());
+    StandaloneProducer sp = client.start(producer);
+    try {
+      producer.produce(newMessage(2), producer.getDestination());
+      fail();
+    }
+    catch (ProduceException expected) {
+      assertEquals(1, client.bulkRequests().size());
+    }
+    finally {
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testConcurrent_TimeoutCancelsOutstanding() throws Exception {
+    List<ActionListener<Object>> held = new CopyOnWriteArrayList<>();
+    MockTransportClient client = new MockTransportClient((request, listener) -> held.add(listener));
+    SingleOperation producer = new SingleOperation();
+    producer.setConcurrentRequests(2);
+    producer.setDocumentBuilder(new JsonArrayDocumentBuilder());
+    StandaloneProducer sp = client.start(producer);
+    try {
+      producer.request(newMessage(3), producer.getDestination(), 300);
+      fail();
+    }
+    catch (ProduceException expected) {
+      // The third document never got a permit, and the other two were abandoned.
+      assertEquals(2, held.size());
+      for (ActionListener<Object> request : held) {
+        assertTrue(((Future<?>) request).isCancelled());
+      }
+    }
+    finally {
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  @Test
+  public void testConcurrent_ExecuteThrows() throws Exception {
+    AtomicInteger count = new AtomicInteger();
+    MockTransportClient client = new MockTransportClient((request, listener) -> {
+      if (count.getAndIncrement() == 0) {
+        throw new IllegalStateException("no nodes available");
+      }
+      listener.onResponse(MockTransportClient.indexed("id"));
+    });
+    SingleOperation producer = new SingleOperation();
+    producer.setConcurrentRequests(1);
+    producer.setDocumentBuilder(new JsonArrayDocumentBuilder());
+    StandaloneProducer sp = client.start(producer);
+    try {
+      producer.request(newMessage(3), producer.getDestination(), 5000);
+      fail();
+    }
+    catch (ProduceException expected) {
+      // Not a timeout, the permit was released.
+      assertTrue(expected.getMessage().contains("no nodes available"));
+      assertEquals(1, count.get());
+    }
+    finally {
+      LifecycleHelper.stopAndClose(sp);
+    }
+  }
+
+  private static AdaptrisMessage newMessage(int documents) {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < documents; i++) {
+      json.append(i > 0 ? "," : "").append("{\"uniqueid\":\"" + i + "\"}");
+    }
+    return AdaptrisMessageFactory.getDefaultInstance().newMessage(json.append("]").toString());
+  }
+
   @Override
   protected Object retrieveObjectForSampleConfig() {
     KeyValuePairSet settings = new KeyValuePairSet();
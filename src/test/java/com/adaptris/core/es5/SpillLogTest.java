@@ -0,0 +1,198 @@
+/*
+    Copyright Adaptris Ltd.
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.adaptris.core.es5;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillLogTest {
+
+  @Rule
+  public TemporaryFolder tempDir = new TemporaryFolder();
+
+  @Test
+  public void testAppendAndRead() throws Exception {
+    try (SpillLog spill = SpillLog.open(tempDir.getRoot().toPath(), 1024)) {
+      spill.append(bytes("hello"));
+      spill.append(bytes("world"));
+      assertArrayEquals(bytes("hello"), spill.next(10));
+      // Not acknowledged, so we get the same one back.
+      assertArrayEquals(bytes("hello"), spill.next(10));
+      spill.ack();
+      assertArrayEquals(bytes("world"), spill.next(10));
+      spill.ack();
+      assertNull(spill.next(10));
+    }
+  }
+
+  @Test
+  public void testRollsSegments() throws Exception {
+    try (SpillLog spill = SpillLog.open(tempDir.getRoot().toPath(), 1024)) {
+      for (int i = 0; i < 100; i++) {
+        spill.append(bytes("record-" + i));
+      }
+      // Bigger than a segment.
+      spill.append(new byte[2048]);
+      for (int i = 0; i < 100; i++) {
+        assertArrayEquals(bytes("record-" + i), spill.next(10));
+        spill.ack();
+      }
+      assertArrayEquals(new byte[2048], spill.next(10));
+      spill.ack();
+      assertNull(spill.next(10));
+    }
+  }
+
+  @Test
+  public void testRecovery() throws Exception {
+    Path dir = tempDir.getRoot().toPath();
+    try (SpillLog spill = SpillLog.open(dir, 1024)) {
+      for (int i = 0; i < 100; i++) {
+        spill.append(bytes("record-" + i));
+      }
+      for (int i = 0; i < 50; i++) {
+        spill.next(10);
+        spill.ack();
+      }
+      // Read, but not acknowledged.
+      spill.next(10);
+    }
+    try (SpillLog spill = SpillLog.open(dir, 1024)) {
+      spill.append(bytes("after-restart"));
+      for (int i = 50; i < 100; i++) {
+        assertArrayEquals(bytes("record-" + i), spill.next(10));
+        spill.ack();
+      }
+      assertArrayEquals(bytes("after-restart"), spill.next(10));
+      spill.ack();
+      assertNull(spill.next(10));
+    }
+  }
+
+  @Test
+  public void testCorruptRecord() throws Exception {
+    Path dir = tempDir.getRoot().toPath();
+    writeRecords(dir, 100);
+    // record-0 is 16 bytes including the header, so this is the first byte of record-1.
+    overwrite(firstSegment(dir), 24, (byte) 'X');
+    try (SpillLog spill = SpillLog.open(dir, 1024)) {
+      assertArrayEquals(bytes("record-0"), spill.next(10));
+      spill.ack();
+      assertArrayEquals(bytes("record-2"), spill.next(10));
+      spill.ack();
+    }
+    List<Path> quarantined = quarantined(dir);
+    assertEquals(1, quarantined.size());
+    // The whole record including the header.
+    assertEquals(16, Files.size(quarantined.get(0)));
+  }
+
+  @Test
+  public void testCorruptLength() throws Exception {
+    Path dir = tempDir.getRoot().toPath();
+    writeRecords(dir, 100);
+    overwrite(firstSegment(dir), 16, (byte) 0x7f);
+    try (SpillLog spill = SpillLog.open(dir, 1024)) {
+      assertArrayEquals(bytes("record-0"), spill.next(10));
+      spill.ack();
+      // Skips the rest of the first segment.
+      String next = new String(spill.next(10), StandardCharsets.UTF_8);
+      assertTrue(next.startsWith("record-"));
+      assertTrue(Integer.parseInt(next.substring(7)) > 1);
+      spill.ack();
+      for (int i = Integer.parseInt(next.substring(7)) + 1; i < 100; i++) {
+        assertArrayEquals(bytes("record-" + i), spill.next(10));
+        spill.ack();
+      }
+      assertNull(spill.next(10));
+    }
+    assertEquals(1, quarantined(dir).size());
+  }
+
+  @Test
+  public void testQuarantine() throws Exception {
+    Path dir = tempDir.getRoot().toPath();
+    try (SpillLog spill = SpillLog.open(dir, 1024)) {
+      spill.append(bytes("hello"));
+      spill.append(bytes("world"));
+      assertArrayEquals(bytes("hello"), spill.next(10));
+      spill.quarantine();
+      assertArrayEquals(bytes("world"), spill.next(10));
+      spill.ack();
+      assertNull(spill.next(10));
+    }
+    List<Path> quarantined = quarantined(dir);
+    assertEquals(1, quarantined.size());
+    assertArrayEquals(bytes("hello"), Files.readAllBytes(quarantined.get(0)));
+  }
+
+  private static void writeRecords(Path dir, int count) throws Exception {
+    try (SpillLog spill = SpillLog.open(dir, 1024)) {
+      for (int i = 0; i < count; i++) {
+        spill.append(bytes("record-" + i));
+      }
+    }
+  }
+
+  private static Path firstSegment(Path dir) throws Exception {
+    Path first = null;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment-*")) {
+      for (Path p : files) {
+        if (first == null || p.getFileName().toString().compareTo(first.getFileName().toString()) < 0) {
+          first = p;
+        }
+      }
+    }
+    assertNotNull(first);
+    return first;
+  }
+
+  private static void overwrite(Path file, long position, byte b) throws Exception {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {b}), position);
+    }
+  }
+
+  private static List<Path> quarantined(Path dir) throws Exception {
+    List<Path> result = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "corrupt-*")) {
+      files.forEach(result::add);
+    }
+    return result;
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+}